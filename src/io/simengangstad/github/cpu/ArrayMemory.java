@@ -0,0 +1,360 @@
+package io.simengangstad.github.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Memory with arbitrary capasity, held in an array.
+ *
+ * @author simengangstad
+ * @since 09.08.14
+ */
+public class ArrayMemory extends Memory {
+
+    /**
+     * Atomic access to the words and to the bits of the written pages.
+     */
+    private static final VarHandle
+
+            WORDS   = MethodHandles.arrayElementVarHandle(int[].class),
+            BITS    = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * The memory.
+     */
+    private final int[] ram;
+
+    /**
+     * One bit per page, set if the page has been written to since the last reset.
+     */
+    private final long[] dirtyPages;
+
+    /**
+     * The image the memory is restored to on reset, or null to clear it.
+     */
+    private int[] baseline;
+
+    /**
+     * Initializes the memory with a capasity.
+     */
+    public ArrayMemory(int words) {
+
+        ram = new int[words];
+        dirtyPages = new long[(pages() + 63) >>> 6];
+    }
+
+    private ArrayMemory(ArrayMemory memory) {
+
+        ram = memory.ram.clone();
+        dirtyPages = memory.dirtyPages.clone();
+        baseline = memory.baseline;
+
+        watchCode(memory);
+    }
+
+    @Override
+    public int capasity() {
+
+        return ram.length;
+    }
+
+    @Override
+    public int get(int address) throws RuntimeException {
+
+        evaluateAddress(address);
+
+        return ram[address];
+    }
+
+    @Override
+    public void set(int address, int value) throws RuntimeException {
+
+        evaluateAddress(address);
+
+        ram[address] = value;
+
+        markDirty(address);
+        written(address);
+    }
+
+    @Override
+    public int compareAndExchange(int address, int expected, int value) throws RuntimeException {
+
+        evaluateAddress(address);
+        markDirty(address);
+
+        int previous = (int) WORDS.compareAndExchange(ram, address, expected, value);
+
+        written(address);
+
+        return previous;
+    }
+
+    @Override
+    public int getAndAdd(int address, int delta) throws RuntimeException {
+
+        evaluateAddress(address);
+        markDirty(address);
+
+        int previous = (int) WORDS.getAndAdd(ram, address, delta);
+
+        written(address);
+
+        return previous;
+    }
+
+    @Override
+    public int getAndSet(int address, int value) throws RuntimeException {
+
+        evaluateAddress(address);
+        markDirty(address);
+
+        int previous = (int) WORDS.getAndSet(ram, address, value);
+
+        written(address);
+
+        return previous;
+    }
+
+    /**
+     * Marks the page of an address as written to. The bit is set atomically, as cores sharing the
+     * memory may set bits of the same word.
+     */
+    private void markDirty(int address) {
+
+        long bit = 1L << (address >>> PAGE_SHIFT);
+
+        if ((dirtyPages[address >>> (PAGE_SHIFT + 6)] & bit) == 0) {
+
+            BITS.getAndBitwiseOr(dirtyPages, address >>> (PAGE_SHIFT + 6), bit);
+        }
+    }
+
+    @Override
+    public void combine(int operation, int destination, int source, int length) throws RuntimeException {
+
+        Vectors.evaluateOperation(operation);
+
+        evaluateArea(destination, length);
+        evaluateArea(source, length);
+
+        if (length == 0) {
+
+            return;
+        }
+
+        Vectors.combine(operation, ram, destination, ram, source, length);
+
+        markDirty(destination, length);
+        written(destination, length);
+    }
+
+    @Override
+    public int sum(int address, int length) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        return Vectors.sum(ram, address, length);
+    }
+
+    @Override
+    public int dot(int first, int second, int length) throws RuntimeException {
+
+        evaluateArea(first, length);
+        evaluateArea(second, length);
+
+        return Vectors.dot(ram, first, ram, second, length);
+    }
+
+    /**
+     * Marks the pages of an area as written to.
+     */
+    private void markDirty(int address, int length) {
+
+        for (int page = address >>> PAGE_SHIFT; page <= (address + length - 1) >>> PAGE_SHIFT; page++) {
+
+            markDirty(page << PAGE_SHIFT);
+        }
+    }
+
+    /**
+     * Checks if the address given is valid.
+     *
+     * @throws RuntimeException If the address is invalid.
+     */
+    private void evaluateAddress(int address) throws RuntimeException {
+
+        if (address < 0 || address >= ram.length) {
+
+            throw invalidAddress(address);
+        }
+    }
+
+    @Override
+    public void copyInto(int sourcePosition, int[] destination, int destinationPosition, int length) {
+
+        System.arraycopy(ram, sourcePosition, destination, destinationPosition, length);
+    }
+
+    @Override
+    public void copyFrom(int[] source, int sourcePosition, int destinationPosition, int length) throws RuntimeException {
+
+        if (length <= 0) {
+
+            return;
+        }
+
+        evaluateAddress(destinationPosition);
+        evaluateAddress(destinationPosition + length - 1);
+
+        System.arraycopy(source, sourcePosition, ram, destinationPosition, length);
+
+        markDirty(destinationPosition, length);
+        written(destinationPosition, length);
+    }
+
+    @Override
+    public void copy(int sourcePosition, int destinationPosition, int length) throws RuntimeException {
+
+        evaluateArea(sourcePosition, length);
+        evaluateArea(destinationPosition, length);
+
+        if (length == 0) {
+
+            return;
+        }
+
+        System.arraycopy(ram, sourcePosition, ram, destinationPosition, length);
+
+        markDirty(destinationPosition, length);
+        written(destinationPosition, length);
+    }
+
+    @Override
+    public void fill(int address, int length, int value) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        if (length == 0) {
+
+            return;
+        }
+
+        Arrays.fill(ram, address, address + length, value);
+
+        markDirty(address, length);
+        written(address, length);
+    }
+
+    @Override
+    public int mismatch(int first, int second, int length) throws RuntimeException {
+
+        evaluateArea(first, length);
+        evaluateArea(second, length);
+
+        return Arrays.mismatch(ram, first, first + length, ram, second, second + length);
+    }
+
+    @Override
+    public int indexOf(int address, int length, int value) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        for (int i = address; i < address + length; i++) {
+
+            if (ram[i] == value) {
+
+                return i - address;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void reset() {
+
+        for (int i = 0; i < dirtyPages.length; i++) {
+
+            long pages = dirtyPages[i];
+
+            while (pages != 0) {
+
+                int page = (i << 6) + Long.numberOfTrailingZeros(pages);
+                int from = page << PAGE_SHIFT, to = Math.min(from + PAGE_SIZE, ram.length);
+
+                if (baseline == null) {
+
+                    Arrays.fill(ram, from, to, 0);
+                }
+                else {
+
+                    System.arraycopy(baseline, from, ram, from, to - from);
+                }
+
+                written(from, to - from);
+
+                pages &= pages - 1;
+            }
+
+            dirtyPages[i] = 0;
+        }
+    }
+
+    @Override
+    public void captureBaseline() {
+
+        // A new array, as forks may share the old one
+        baseline = ram.clone();
+
+        Arrays.fill(dirtyPages, 0);
+    }
+
+    @Override
+    public void discardBaseline() {
+
+        if (baseline == null) {
+
+            return;
+        }
+
+        // The pages of the baseline have to be cleared by the next reset
+        for (int page = 0; page < pages(); page++) {
+
+            dirtyPages[page >>> 6] |= 1L << page;
+        }
+
+        baseline = null;
+    }
+
+    @Override
+    public int dirtyPages() {
+
+        int amount = 0;
+
+        for (long pages : dirtyPages) {
+
+            amount += Long.bitCount(pages);
+        }
+
+        return amount;
+    }
+
+    /**
+     * Copies the array, as it can't be shared.
+     */
+    @Override
+    public Memory fork() {
+
+        return new ArrayMemory(this);
+    }
+
+    /**
+     * @return The amount of pages of the memory.
+     */
+    private int pages() {
+
+        return (ram.length + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+    }
+}
@@ -66,6 +66,12 @@ public class Assembler {
         MUL         (0x12, 2, 2),
         DIV         (0x13, 2, 2),
         MOD         (0x14, 2, 2),
+        ADDW        (0x15, 2, 2),
+        SUBW        (0x16, 2, 2),
+        MULW        (0x17, 2, 2),
+        MULH        (0x18, 2, 2),
+        ADX         (0x19, 2, 2),
+        SBX         (0x1a, 2, 2),
 
         AND         (0x20, 2, 2),
         OR          (0x21, 2, 2),
@@ -81,9 +87,47 @@ public class Assembler {
         IFL         (0x33, 2, 2),
 
         JSR         (0x40, 1, 1),
+        RET         (0x41, 0, 1),
+        ENTER       (0x42, 1, 1),
+        LEAVE       (0x43, 1, 1),
 
         HDP         (0x50, 1, -1),
-        HRT         (0x51, 1, -1);
+        HRT         (0x51, 1, -1),
+
+        CAS         (0x60, 3, 3),
+        XADD        (0x61, 2, 2),
+        XCHG        (0x62, 2, 2),
+
+        BCPY        (0x70, 3, 3),
+        BFIL        (0x71, 3, 3),
+        BCMP        (0x72, 3, 3),
+        BSCN        (0x73, 3, 3),
+
+        VADD        (0x80, 3, 3),
+        VSUB        (0x81, 3, 3),
+        VMUL        (0x82, 3, 3),
+        VAND        (0x83, 3, 3),
+        VOR         (0x84, 3, 3),
+        VXOR        (0x85, 3, 3),
+        VMIN        (0x86, 3, 3),
+        VMAX        (0x87, 3, 3),
+        VSUM        (0x88, 3, 3),
+        VDOT        (0x89, 4, 4),
+
+        FADD        (0x90, 2, 2),
+        FSUB        (0x91, 2, 2),
+        FMUL        (0x92, 2, 2),
+        FDIV        (0x93, 2, 2),
+        FSQRT       (0x94, 2, 2),
+        FCMP        (0x95, 2, 2),
+        ITOF        (0x96, 2, 2),
+        FTOI        (0x97, 2, 2),
+
+        INT         (0xa0, 1, 1),
+        IRET        (0xa1, 0, 0),
+        IMS         (0xa2, 1, 1),
+        IVT         (0xa3, 1, 1),
+        HLT         (0xa4, 0, 0);
 
         int identifier, minimumAmountOfArguments, maximumAmountOfArguments;
 
@@ -101,7 +145,7 @@ public class Assembler {
     public static final String[] Registers = {"A", "B", "C", "X", "Y", "Z", "I", "J", "PC", "SP", "PUSH|POP", "PEEK", "EX"};
 
     /**
-     * Assembles the input.
+     * Assembles the input to a version 2 program, see {@link ProgramFormat}.
      */
     public int[] assemble(String input, boolean debug) throws AssembleException {
 
@@ -109,8 +153,8 @@ public class Assembler {
 
         if (debug) System.out.println("Assembling " + lines.length + " lines of code.");
 
-        int[] instructionList = new int[0];
-        int counter = 0;
+        int[] instructionList = {ProgramFormat.MAGIC};
+        int counter = 1;
 
         ArrayList<Label> labels = new ArrayList<>();
         int instructionCounter = 0;
@@ -191,9 +235,10 @@ public class Assembler {
 
             String[] components = line.split(" ");
 
-            int[] instruction = new int[1 + 1 + (components.length - 1) * 3];
+            int amountOfArguments = components.length - 1;
 
-            instruction[0] = instruction.length;
+            int[] modes = new int[amountOfArguments];
+            int[] values = new int[amountOfArguments];
 
             InstructionInformation instructionInformationInfo = getInstructionFromName(components[0]);
 
@@ -201,22 +246,18 @@ public class Assembler {
 
                 throw new AssembleException(i + 1, "Error assembling input: '" + components[0] + "'. Not a valid instruction.");
             }
-            else if (((instruction.length - 2) / 3 < instructionInformationInfo.minimumAmountOfArguments || ((instruction.length - 2) / 3 > instructionInformationInfo.maximumAmountOfArguments) && instructionInformationInfo.maximumAmountOfArguments != -1)) {
+            else if ((amountOfArguments < instructionInformationInfo.minimumAmountOfArguments || (amountOfArguments > instructionInformationInfo.maximumAmountOfArguments) && instructionInformationInfo.maximumAmountOfArguments != -1) || amountOfArguments > ProgramFormat.MAXIMUM_AMOUNT_OF_ARGUMENTS) {
 
                 throw new AssembleException(i + 1, "Error assembling input: '" + line + "'. Not a valid amount of arguments.");
             }
-            else {
 
-                instruction[1] = instructionInformationInfo.identifier;
-            }
-
-            for (int c = 2; c < instruction.length; c += 3) {
+            for (int c = 0; c < amountOfArguments; c++) {
 
-                boolean registerValue = false, retrieveFromMemory = false;
+                boolean registerValue = false, retrieveFromMemory = false, stackRelative = false;
 
                 int value = -1;
 
-                String component = components[1 + (c - 2) / 3];
+                String component = components[1 + c];
 
                 try {
 
@@ -237,7 +278,14 @@ public class Assembler {
 
                         // Try hexadecimal or binary.
 
-                        if (testValue.startsWith("0X")) {
+                        if (retrieveFromMemory && (testValue.startsWith("SP+") || testValue.startsWith("SP-"))) {
+
+                            // Relative to SP, e.g. *SP+2 or *SP-0x1
+                            stackRelative = true;
+
+                            value = Integer.decode(testValue.substring(2));
+                        }
+                        else if (testValue.startsWith("0X")) {
 
                             value = Integer.parseUnsignedInt(testValue.substring(2), 16);
                         }
@@ -245,14 +293,19 @@ public class Assembler {
 
                             value = Integer.parseUnsignedInt(testValue.substring(2), 2);
                         }
+                        else if (testValue.contains(".")) {
+
+                            // The bits of a float, e.g. 1.5 or -2.0E-3
+                            value = Float.floatToIntBits(Float.parseFloat(testValue));
+                        }
                         else {
 
-                            if (component.equalsIgnoreCase("POP") && c == 2) {
+                            if (component.equalsIgnoreCase("POP") && c == 0) {
 
                                 throw new AssembleException(i + 1, "Can't set POP, use PUSH or PEEK instead.");
                             }
 
-                            if (component.equalsIgnoreCase("PUSH") && c == 2 + 3) {
+                            if (component.equalsIgnoreCase("PUSH") && c == 1) {
 
                                 throw new AssembleException(i + 1, "Can't retrieve from PUSH, use POP or PEEK instead.");
                             }
@@ -291,21 +344,22 @@ public class Assembler {
                             if (value == -1) {
 
                                 // Value is not a qualified integer or register
-                                throw new AssembleException(i + 1, "Error assembling input: '" + components[1 + (c - 2) / 3] + "'.");
+                                throw new AssembleException(i + 1, "Error assembling input: '" + components[1 + c] + "'.");
                             }
                         }
                     }
                     catch (NumberFormatException numberFormatException1) {
 
-                        throw new AssembleException(i + 1, "Error assembling input: '" + components[1 + (c - 2) / 3] + "' (might exceed bounds of 32 bit unsigned integer).");
+                        throw new AssembleException(i + 1, "Error assembling input: '" + components[1 + c] + "' (might exceed bounds of 32 bit unsigned integer).");
                     }
                 }
 
-                instruction[c] = value;
-                instruction[c + 1] = !retrieveFromMemory ? 0 : 1;
-                instruction[c + 2] = !registerValue ? 0 : 1;
+                values[c] = value;
+                modes[c] = stackRelative ? ProgramFormat.STACK : (!retrieveFromMemory ? ProgramFormat.IMMEDIATE : ProgramFormat.MEMORY) | (!registerValue ? ProgramFormat.IMMEDIATE : ProgramFormat.REGISTER);
             }
 
+            int[] instruction = ProgramFormat.encode(instructionInformationInfo.identifier, modes, values);
+
             int[] oldInstructionList = instructionList;
             instructionList = new int[counter + instruction.length];
             System.arraycopy(oldInstructionList, 0, instructionList, 0, counter);
@@ -1,6 +1,20 @@
 package io.simengangstad.github.cpu;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
+ * Hardware which programs talk to through HDP and HRT.
+ *
+ * Hardware attached to several cores sharing a memory, see {@link Multicore}, is called by one core
+ * at a time, as the cores synchronize on it when calling process and retrieve. isReady is called
+ * without synchronizing, so that a waiting core doesn't hold up the others.
+ *
+ * Instead of being polled, hardware can get the attention of the program by raising a line of the
+ * interrupt controller, see {@link #raise(int)}. Hardware attached to several cores raises lines on
+ * the first core it was attached to.
+ *
  * @author simengangstad
  * @since 29.11.14
  */
@@ -11,6 +25,74 @@ public abstract class AttachableHardware {
      */
     protected Memory memory;
 
+    /**
+     * The interrupt controller of the CPU the hardware is attached to, or null.
+     */
+    volatile InterruptController interrupts;
+
+    /**
+     * Sets the memory the hardware operates on. This is done by the CPU when the hardware is attached,
+     * and by programs compiled ahead of time when they start.
+     *
+     * @param memory The memory.
+     */
+    public void setMemory(Memory memory) {
+
+        this.memory = memory;
+    }
+
+    /**
+     * Raises a line of the interrupt controller of the CPU the hardware is attached to, see
+     * {@link InterruptController#raise(int)}. Can be called from any thread, e.g. when work the
+     * hardware does in the background is done. Does nothing while the hardware isn't attached, and
+     * in programs compiled ahead of time.
+     *
+     * @param line The line, from 0 to {@link InterruptController#LINES} - 1.
+     */
+    protected void raise(int line) {
+
+        InterruptController interrupts = this.interrupts;
+
+        if (interrupts != null) {
+
+            interrupts.raise(line);
+        }
+    }
+
+    /**
+     * Tells if the hardware can process and return data right now. The CPU waits at instructions
+     * addressing the hardware until it is, see {@link CPU.Status#WAITING}.
+     *
+     * @return If the hardware is ready, which it is by default.
+     */
+    public boolean isReady() {
+
+        return true;
+    }
+
+    /**
+     * Writes the state of the hardware to a snapshot of the CPU, see {@link Snapshot}. Hardware
+     * without state writes nothing, which is the default.
+     *
+     * @param output Where the state is written.
+     *
+     * @throws IOException If the state can't be written.
+     */
+    public void save(DataOutput output) throws IOException {
+
+    }
+
+    /**
+     * Reads the state written by {@link #save(DataOutput)} when a snapshot of the CPU is restored.
+     *
+     * @param input Where the state is read from.
+     *
+     * @throws IOException If the state can't be read.
+     */
+    public void restore(DataInput input) throws IOException {
+
+    }
+
     /**
      * Processes an array of arguments. Mind that the array may be bigger
      * than the amount of arguments that shall be processed. Therefore
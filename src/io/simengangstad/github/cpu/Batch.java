@@ -0,0 +1,522 @@
+package io.simengangstad.github.cpu;
+
+import io.simengangstad.github.cpu.exception.CpuFault;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Executes large amounts of independent jobs, each a program run against an initial memory image,
+ * on a fork-join pool, and hands back the results as the jobs finish.
+ *
+ * Every thread of the pool keeps one CPU and memory, which is reused for every job the thread
+ * executes. Only the pages written by the previous job are reset, see {@link Memory#reset()}, and
+ * a program is only decoded and compiled again when a thread gets a job with another program, so
+ * jobs sharing a program array run on warm code.
+ *
+ * Usage:
+ *
+ *      Batch batch = new Batch(CPU.Engine.JIT, () -> new ArrayMemory(0x10000));
+ *
+ *      Batch.Summary summary = batch.execute(images.map(image -> new Batch.Job(program, image)), result -> {
+ *
+ *          System.out.println(result.index() + ": " + result.register(0));
+ *      });
+ *
+ *      System.out.println(summary);
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Batch {
+
+    /**
+     * The engine executing the programs.
+     */
+    private final CPU.Engine engine;
+
+    /**
+     * Creates the memory of every thread.
+     */
+    private final Supplier<? extends Memory> memory;
+
+    /**
+     * The threads executing the jobs.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The CPU of every thread.
+     */
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(this::newWorker);
+
+    /**
+     * Initializes the batch executing jobs on the common pool.
+     *
+     * @param engine The engine executing the programs.
+     * @param memory Creates the memory of every thread. Memories with a baseline are reset to it
+     *               before every job, see {@link Memory#captureBaseline()}.
+     */
+    public Batch(CPU.Engine engine, Supplier<? extends Memory> memory) {
+
+        this(engine, memory, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes the batch.
+     *
+     * @param engine The engine executing the programs.
+     * @param memory Creates the memory of every thread. Memories with a baseline are reset to it
+     *               before every job, see {@link Memory#captureBaseline()}.
+     * @param pool The threads executing the jobs.
+     */
+    public Batch(CPU.Engine engine, Supplier<? extends Memory> memory, ForkJoinPool pool) {
+
+        this.engine = engine;
+        this.memory = memory;
+        this.pool = pool;
+    }
+
+    /**
+     * Executes jobs and waits until every job has been executed. Every thread of the pool takes the
+     * next job from the stream once it has finished its last one.
+     *
+     * @param jobs The jobs, which are consumed as they're executed.
+     * @param results Receives the result of every job as it finishes, from the threads of the pool
+     *                and in any order.
+     *
+     * @return The totals of the jobs.
+     *
+     * @throws RuntimeException The first exception thrown by a job which can't be executed, e.g. as
+     * its image doesn't fit the memory, by the stream or by the receiver of the results. No jobs are
+     * started after it.
+     */
+    public Summary execute(Stream<Job> jobs, Consumer<? super Result> results) {
+
+        Iterator<Job> iterator = jobs.iterator();
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        LongAdder faulted = new LongAdder(), exhausted = new LongAdder(), instructions = new LongAdder();
+        long[] index = new long[1];
+
+        Callable<Void> task = () -> {
+
+            Worker worker = workers.get();
+
+            try {
+
+                while (true) {
+
+                    Job job;
+                    long current;
+
+                    synchronized (iterator) {
+
+                        if (failure.get() != null || !iterator.hasNext()) {
+
+                            return null;
+                        }
+
+                        job = iterator.next();
+                        current = index[0]++;
+                    }
+
+                    Result result = worker.execute(job, current);
+
+                    if (result.status == CPU.Status.FAULTED) {
+
+                        faulted.increment();
+                    }
+                    else if (result.status == CPU.Status.BUDGET_EXHAUSTED) {
+
+                        exhausted.increment();
+                    }
+
+                    instructions.add(result.instructions);
+
+                    results.accept(result);
+                }
+            }
+            catch (RuntimeException | Error exception) {
+
+                failure.compareAndSet(null, exception);
+
+                return null;
+            }
+        };
+
+        long start = System.nanoTime();
+
+        pool.invokeAll(Collections.nCopies(pool.getParallelism(), task));
+
+        Throwable exception = failure.get();
+
+        if (exception instanceof RuntimeException) {
+
+            throw (RuntimeException) exception;
+        }
+
+        if (exception != null) {
+
+            throw (Error) exception;
+        }
+
+        return new Summary(index[0], faulted.sum(), exhausted.sum(), instructions.sum(), System.nanoTime() - start);
+    }
+
+    private Worker newWorker() {
+
+        return new Worker(new CPU(engine, memory.get()));
+    }
+
+    /**
+     * The CPU of a thread, and the program last loaded into it.
+     */
+    private static final class Worker {
+
+        private final CPU cpu;
+
+        private int[] program;
+
+        private Worker(CPU cpu) {
+
+            this.cpu = cpu;
+        }
+
+        private Result execute(Job job, long index) {
+
+            long start = System.nanoTime();
+
+            cpu.memory.reset();
+
+            if (job.image != null) {
+
+                cpu.memory.copyFrom(job.image, 0, 0, job.image.length);
+            }
+
+            CPU.Status status;
+
+            try {
+
+                if (job.program == program) {
+
+                    cpu.restart();
+                }
+                else {
+
+                    program = null;
+
+                    cpu.load(job.program);
+
+                    program = job.program;
+                }
+
+                status = run(job);
+            }
+            catch (CpuFault fault) {
+
+                status = CPU.Status.FAULTED;
+            }
+
+            int[][] ranges = new int[job.ranges.length / 2][];
+
+            for (int i = 0; i < ranges.length; i++) {
+
+                ranges[i] = new int[job.ranges[i * 2 + 1]];
+
+                cpu.memory.copyInto(job.ranges[i * 2], ranges[i], 0, ranges[i].length);
+            }
+
+            return new Result(job, index, status, cpu.registers.clone(), ranges, cpu.getFault(), cpu.getClock().instructions(), System.nanoTime() - start);
+        }
+
+        /**
+         * Runs the loaded program with the hardware of a job until it stops, waiting for the hardware
+         * when it isn't ready.
+         */
+        private CPU.Status run(Job job) {
+
+            for (Map.Entry<Integer, Supplier<? extends AttachableHardware>> entry : job.hardware.entrySet()) {
+
+                cpu.attachHardware(entry.getKey(), entry.getValue().get());
+            }
+
+            try {
+
+                while (true) {
+
+                    CPU.Status status = cpu.run(job.budget - Math.min(job.budget, cpu.getClock().instructions()));
+
+                    if (status == CPU.Status.HALTED) {
+
+                        cpu.interrupts.await(Long.MAX_VALUE);
+                    }
+                    else if (status != CPU.Status.WAITING) {
+
+                        return status;
+                    }
+                    else {
+
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+            finally {
+
+                for (Integer location : job.hardware.keySet()) {
+
+                    cpu.detachHardware(location);
+                }
+            }
+        }
+    }
+
+    /**
+     * A program to execute against an initial memory image.
+     */
+    public static final class Job {
+
+        private final int[] program;
+
+        private final int[] image;
+
+        private final int[] ranges;
+
+        private final Map<Integer, Supplier<? extends AttachableHardware>> hardware;
+
+        private final long budget;
+
+        /**
+         * Initializes a job without hardware or budget, which retrieves no memory.
+         *
+         * @see #Job(int[], int[], int[], Map, long)
+         */
+        public Job(int[] program, int[] image) {
+
+            this(program, image, new int[0], Collections.emptyMap(), Long.MAX_VALUE);
+        }
+
+        /**
+         * Initializes a job.
+         *
+         * @param program The program. Jobs should share the array of a program, as it's only decoded
+         *                and compiled again when it differs from the last job of a thread.
+         * @param image The words written to the memory from address 0 before the program starts, or
+         *              null to start from a cleared memory.
+         * @param ranges Pairs of addresses and amounts of words which are retrieved from the memory
+         *               once the program has stopped, see {@link Result#memory(int)}.
+         * @param hardware Creates the hardware attached at every location for the job.
+         * @param budget The maximum amount of instructions the program executes.
+         */
+        public Job(int[] program, int[] image, int[] ranges, Map<Integer, Supplier<? extends AttachableHardware>> hardware, long budget) {
+
+            if (program == null) {
+
+                throw new IllegalArgumentException("Invalid program: " + "'" + null + "'.");
+            }
+
+            if (ranges.length % 2 != 0) {
+
+                throw new IllegalArgumentException("Invalid ranges: " + "'" + ranges.length + " words'.");
+            }
+
+            if (budget < 0) {
+
+                throw new IllegalArgumentException("Invalid budget: " + "'" + budget + "'.");
+            }
+
+            this.program = program;
+            this.image = image;
+            this.ranges = ranges;
+            this.hardware = hardware;
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * The state in which the program of a job stopped.
+     */
+    public static final class Result {
+
+        private final Job job;
+
+        private final long index;
+
+        private final CPU.Status status;
+
+        private final int[] registers;
+
+        private final int[][] memory;
+
+        private final CpuFault fault;
+
+        private final long instructions, nanoseconds;
+
+        private Result(Job job, long index, CPU.Status status, int[] registers, int[][] memory, CpuFault fault, long instructions, long nanoseconds) {
+
+            this.job = job;
+            this.index = index;
+            this.status = status;
+            this.registers = registers;
+            this.memory = memory;
+            this.fault = fault;
+            this.instructions = instructions;
+            this.nanoseconds = nanoseconds;
+        }
+
+        /**
+         * @return The job.
+         */
+        public Job job() {
+
+            return job;
+        }
+
+        /**
+         * @return The position of the job in the stream of jobs, from 0.
+         */
+        public long index() {
+
+            return index;
+        }
+
+        /**
+         * @return {@link CPU.Status#FINISHED}, {@link CPU.Status#FAULTED} or
+         * {@link CPU.Status#BUDGET_EXHAUSTED}.
+         */
+        public CPU.Status status() {
+
+            return status;
+        }
+
+        /**
+         * @return The value of a register when the program stopped (A, B, C, X, Y, Z, I, J, PC, SP,
+         * PUSH|POP, PEEK, EX).
+         */
+        public int register(int register) {
+
+            return registers[register];
+        }
+
+        /**
+         * @return The words of a range of the job when the program stopped, in the order the ranges
+         * were given.
+         */
+        public int[] memory(int range) {
+
+            return memory[range];
+        }
+
+        /**
+         * @return The fault which stopped the program, or null if it didn't fault.
+         */
+        public CpuFault fault() {
+
+            return fault;
+        }
+
+        /**
+         * @return The amount of instructions the program executed.
+         */
+        public long instructions() {
+
+            return instructions;
+        }
+
+        /**
+         * @return The nanoseconds the job took, including resetting the memory and writing the image.
+         */
+        public long nanoseconds() {
+
+            return nanoseconds;
+        }
+    }
+
+    /**
+     * The totals of the jobs of a batch.
+     */
+    public static final class Summary {
+
+        private final long jobs, faulted, exhausted, instructions, nanoseconds;
+
+        private Summary(long jobs, long faulted, long exhausted, long instructions, long nanoseconds) {
+
+            this.jobs = jobs;
+            this.faulted = faulted;
+            this.exhausted = exhausted;
+            this.instructions = instructions;
+            this.nanoseconds = nanoseconds;
+        }
+
+        /**
+         * @return The amount of jobs executed.
+         */
+        public long jobs() {
+
+            return jobs;
+        }
+
+        /**
+         * @return The amount of jobs which faulted.
+         */
+        public long faulted() {
+
+            return faulted;
+        }
+
+        /**
+         * @return The amount of jobs which used up their budget.
+         */
+        public long exhausted() {
+
+            return exhausted;
+        }
+
+        /**
+         * @return The amount of instructions executed by every job.
+         */
+        public long instructions() {
+
+            return instructions;
+        }
+
+        /**
+         * @return The nanoseconds from the first job was submitted until the last one finished.
+         */
+        public long nanoseconds() {
+
+            return nanoseconds;
+        }
+
+        /**
+         * @return The amount of jobs executed per second.
+         */
+        public double jobsPerSecond() {
+
+            return jobs * 1e9 / Math.max(1, nanoseconds);
+        }
+
+        /**
+         * @return The amount of instructions executed per second by every job.
+         */
+        public double instructionsPerSecond() {
+
+            return instructions * 1e9 / Math.max(1, nanoseconds);
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format("%d jobs (%d faulted, %d exhausted) in %.3f s, %.1f jobs/s, %.1f M instructions/s",
+                    jobs, faulted, exhausted, nanoseconds / 1e9, jobsPerSecond(), instructionsPerSecond() / 1e6);
+        }
+    }
+}
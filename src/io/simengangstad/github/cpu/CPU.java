@@ -1,6 +1,9 @@
 package io.simengangstad.github.cpu;
 
-import java.util.ArrayList;
+import io.simengangstad.github.cpu.compiler.CompiledRegion;
+import io.simengangstad.github.cpu.compiler.JustInTimeCompiler;
+import io.simengangstad.github.cpu.exception.CpuFault;
+
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -10,6 +13,59 @@ import java.util.HashMap;
  */
 public class CPU {
 
+    /**
+     * The engines which can execute a program.
+     */
+    public enum Engine {
+
+        /**
+         * Dispatches on the decoded instruction every cycle.
+         */
+        INTERPRETER,
+
+        /**
+         * Compiles every instruction to a specialized handler before executing the program.
+         */
+        THREADED,
+
+        /**
+         * Interprets the program, and compiles regions which are jumped to often to JVM bytecode.
+         */
+        JIT
+    }
+
+    /**
+     * Why the CPU stopped executing a program in {@link #run(long)}.
+     */
+    public enum Status {
+
+        /**
+         * The program finished.
+         */
+        FINISHED,
+
+        /**
+         * The CPU executed the instructions it was given.
+         */
+        BUDGET_EXHAUSTED,
+
+        /**
+         * The next instruction addresses hardware which isn't ready.
+         */
+        WAITING,
+
+        /**
+         * The program executed HLT and waits for an interrupt. The CPU takes it when run once a line
+         * is raised, see {@link InterruptController}.
+         */
+        HALTED,
+
+        /**
+         * An instruction faulted.
+         */
+        FAULTED
+    }
+
     /**
      * Instructions.
      */
@@ -23,6 +79,12 @@ public class CPU {
             MUL             = 0x12,
             DIV             = 0x13,
             MOD             = 0x14,
+            ADDW            = 0x15,
+            SUBW            = 0x16,
+            MULW            = 0x17,
+            MULH            = 0x18,
+            ADX             = 0x19,
+            SBX             = 0x1a,
 
             AND             = 0x20,
             OR              = 0x21,
@@ -38,9 +100,47 @@ public class CPU {
             IFL             = 0x33,
 
             JSR             = 0x40,
+            RET             = 0x41,
+            ENTER           = 0x42,
+            LEAVE           = 0x43,
 
             HDP             = 0x50,
-            HRT             = 0x51;
+            HRT             = 0x51,
+
+            CAS             = 0x60,
+            XADD            = 0x61,
+            XCHG            = 0x62,
+
+            BCPY            = 0x70,
+            BFIL            = 0x71,
+            BCMP            = 0x72,
+            BSCN            = 0x73,
+
+            VADD            = 0x80,
+            VSUB            = 0x81,
+            VMUL            = 0x82,
+            VAND            = 0x83,
+            VOR             = 0x84,
+            VXOR            = 0x85,
+            VMIN            = 0x86,
+            VMAX            = 0x87,
+            VSUM            = 0x88,
+            VDOT            = 0x89,
+
+            FADD            = 0x90,
+            FSUB            = 0x91,
+            FMUL            = 0x92,
+            FDIV            = 0x93,
+            FSQRT           = 0x94,
+            FCMP            = 0x95,
+            ITOF            = 0x96,
+            FTOI            = 0x97,
+
+            INT             = 0xa0,
+            IRET            = 0xa1,
+            IMS             = 0xa2,
+            IVT             = 0xa3,
+            HLT             = 0xa4;
 
     /**
      * Return registers from get instruction.
@@ -48,43 +148,94 @@ public class CPU {
     private static final int
 
             MEMORY_CAPASITY = 0x0,
-            TIME_SINCE_BOOT = 0x1;
+            TIME_SINCE_BOOT = 0x1,
+            CORE_ID         = 0x2;
 
     /**
      * Program counter, stack pointer and extra.
      */
-    private static final int PC         = 0x8,
-                             SP         = 0x9,
-                             PUSH_POP   = 0xA,
-                             PEEK       = 0xB,
-                             EX         = 0xC;
+    public static final int PC         = 0x8,
+                            SP         = 0x9,
+                            PUSH_POP   = 0xA,
+                            PEEK       = 0xB,
+                            EX         = 0xC;
+
+    /**
+     * The program being executed, decoded so that PC indexes it directly.
+     */
+    DecodedProgram program;
+
+    /**
+     * If the program is executed from memory, see {@link #load(int[], int)}.
+     */
+    boolean codeInMemory = false;
+
+    /**
+     * The address of the program in memory.
+     */
+    int codeAddress;
+
+    /**
+     * The version of the code in memory the program was decoded from, see {@link Memory#codeVersion}.
+     */
+    private int codeVersion;
+
+    /**
+     * The engine executing the program.
+     */
+    private final Engine engine;
 
     /**
-     * Instruction counter. Used for tracking within instructions.
+     * The handlers of the program if it's executed by the threaded engine.
      */
-    private int instructionCounter = 0;
+    private ThreadedCode.Handler[] handlers;
 
     /**
-     * Holds registers to translate program count registers to instruction count registers.
+     * The pairs of instructions the threaded engine fuses.
      */
-    private int[] instructionCounterArray;
+    private Superinstructions superinstructions = Superinstructions.predefined();
+
+    /**
+     * The profile recording the executed pairs of instructions, if any.
+     */
+    private Profile profile;
+
+    /**
+     * The compiler of hot regions if the program is executed by the JIT engine.
+     */
+    private JustInTimeCompiler compiler;
 
     /**
      * The unsigned 32 bit registers which can hold data (a, b, c, x, y, i, j, pc, sp and ex).
      */
-    private int[] registers = new int[13];
+    int[] registers = new int[13];
 
     /**
      * If the program should pass one instruction cycle.
      */
-    private int passCycle = 0;
+    int passCycle = 0;
 
     /**
      * Determine that the current cycle is setting the program counter, and
      * should therefore not add the offset to the program counter after the
      * instruction.
      */
-    private boolean settingProgramCounter = false;
+    boolean settingProgramCounter = false;
+
+    /**
+     * If the program executed HLT and waits for an interrupt.
+     */
+    boolean halted = false;
+
+    /**
+     * The instruction executed in the previous cycle if it wasn't skipped, used when profiling.
+     */
+    private int previous = -2;
+
+    /**
+     * The fault which stopped the last program, if any.
+     */
+    private CpuFault fault;
 
     /**
      * The memory.
@@ -92,15 +243,44 @@ public class CPU {
     public Memory memory;
 
     /**
-     * A variable which holds the value since boot. Gets reset after 0xffffffff milliseconds, or let me do the math for you...
+     * The clock keeping the time since boot, which gets reset after 0xffffffff milliseconds, or let me do the math for you...
      * 49.71 days.
      */
-    private int time = 0x0;
+    Clock clock = Clock.wallClock();
+
+    /**
+     * The interrupt controller, through which hardware raises lines the program takes between
+     * instructions.
+     */
+    final InterruptController interrupts = new InterruptController();
 
     /**
      * The attached hardware of the CPU.
      */
-    private HashMap<Integer, AttachableHardware> attachableHardware = new HashMap<>();
+    HashMap<Integer, AttachableHardware> attachableHardware = new HashMap<>();
+
+    /**
+     * The identifier of the CPU among the cores sharing its memory, see {@link Multicore}.
+     */
+    int core = 0;
+
+    /**
+     * The amount of words between the end of the memory and the stack of the CPU, so that cores
+     * sharing a memory have their own stacks.
+     */
+    int stackOffset = 0;
+
+    /**
+     * If the CPU is a core of a {@link Lockstep}, where it stops before the instructions other cores
+     * could observe at once, see {@link #synchronizes(int)}, and executes them at the barrier between
+     * quanta.
+     */
+    boolean lockstep = false;
+
+    /**
+     * Set while the CPU executes the instruction it stopped before at the barrier.
+     */
+    boolean atBarrier = false;
 
     /**
      * Variables used to reduce memory footprint.
@@ -114,7 +294,29 @@ public class CPU {
      */
     public CPU() {
 
-        memory = new Memory(0x10000);
+        this(Engine.INTERPRETER);
+    }
+
+    /**
+     * Constructs the CPU with the engine that shall execute programs.
+     *
+     * @param engine The engine.
+     */
+    public CPU(Engine engine) {
+
+        this(engine, new ArrayMemory(0x10000));
+    }
+
+    /**
+     * Constructs the CPU with the engine that shall execute programs and its memory.
+     *
+     * @param engine The engine.
+     * @param memory The memory, for example a {@link PagedMemory} for a large address space.
+     */
+    public CPU(Engine engine, Memory memory) {
+
+        this.engine = engine;
+        this.memory = memory;
     }
 
     /**
@@ -127,10 +329,15 @@ public class CPU {
 
         if (this.attachableHardware.containsKey(location)) {
 
-            fault("Already attached hardware at locaiton " + location + ". Select a different location.");
+            throw new IllegalArgumentException("Already attached hardware at locaiton " + location + ". Select a different location.");
         }
 
-        attachableHardware.memory = memory;
+        attachableHardware.setMemory(memory);
+
+        if (attachableHardware.interrupts == null) {
+
+            attachableHardware.interrupts = interrupts;
+        }
 
         this.attachableHardware.put(location, attachableHardware);
     }
@@ -142,80 +349,602 @@ public class CPU {
      */
     public void detachHardware(int location) {
 
-        attachableHardware.get(location).memory = null;
+        AttachableHardware hardware = attachableHardware.remove(location);
+
+        hardware.setMemory(null);
+
+        if (hardware.interrupts == interrupts) {
+
+            hardware.interrupts = null;
+        }
+    }
+
+    /**
+     * Forks the CPU in its current state, for example to run variations of a program from a state
+     * that took long to reach. The fork has a copy of the registers, the clock and the state of the
+     * program being executed, and a fork of the memory, see {@link Memory#fork()}. The decoded
+     * program and compiled code are shared. Hardware and profiles aren't forked.
+     *
+     * @return The fork, which continues where this CPU is when run.
+     */
+    public CPU fork() {
+
+        CPU cpu = new CPU(engine, memory.fork());
+
+        cpu.clock = clock.copy();
+        cpu.program = program;
+        cpu.handlers = handlers;
+        cpu.superinstructions = superinstructions;
+        cpu.compiler = compiler == null ? null : compiler.fork(cpu.clock);
+
+        cpu.codeInMemory = codeInMemory;
+        cpu.codeAddress = codeAddress;
+        cpu.codeVersion = codeVersion;
+
+        cpu.core = core;
+        cpu.stackOffset = stackOffset;
+        cpu.registers = registers.clone();
+        cpu.passCycle = passCycle;
+        cpu.settingProgramCounter = settingProgramCounter;
+        cpu.halted = halted;
+        cpu.fault = fault;
+        cpu.interrupts.copy(interrupts);
+
+        return cpu;
+    }
+
+    /**
+     * @return The interrupt controller, through which lines can be raised from any thread.
+     */
+    public InterruptController getInterruptController() {
+
+        return interrupts;
+    }
 
-        attachableHardware.remove(location);
+    /**
+     * Sets the clock keeping the time of the CPU.
+     */
+    public void setClock(Clock clock) {
+
+        this.clock = clock;
+    }
+
+    /**
+     * @return The clock keeping the time of the CPU.
+     */
+    public Clock getClock() {
+
+        return clock;
     }
 
-    /*
-     * Executes the program.
+    /**
+     * Sets the pairs of instructions the threaded engine fuses to superinstructions.
+     *
+     * @param superinstructions The pairs, or null to execute every instruction separately.
      */
-    public void execute(int[] program) {
+    public void setSuperinstructions(Superinstructions superinstructions) {
+
+        this.superinstructions = superinstructions;
+    }
+
+    /**
+     * Sets the profile recording which pairs of instructions are executed. Superinstructions are
+     * left out while profiling, so that every executed pair is seen.
+     *
+     * @param profile The profile, or null to stop profiling.
+     */
+    public void setProfile(Profile profile) {
+
+        this.profile = profile;
+    }
+
+    /**
+     * Executes the program. When an instruction faults the CPU stops at it, so that the registers and
+     * the memory can be inspected. Waits for hardware which isn't ready, and parks the thread while
+     * the program is halted.
+     *
+     * @throws CpuFault If an instruction faults.
+     */
+    public void execute(int[] program) throws CpuFault {
 
         if (program == null) {
 
             return;
         }
 
-        reset();
+        load(program);
+
+        while (true) {
+
+            switch (run(Long.MAX_VALUE)) {
 
-        // TODO: Might need optimization
-        ArrayList<Integer> instructionCounterArrayBuild = new ArrayList<>();
+                case FAULTED:
 
-        instructionCounterArrayBuild.add(0);
+                    throw fault;
 
-        for (int c = 0; c < program.length; c += program[c]) {
+                case WAITING:
 
-            instructionCounterArrayBuild.add(program[c] + (instructionCounterArrayBuild.size() > 0 ? instructionCounterArrayBuild.get(instructionCounterArrayBuild.size() - 1) : 0));
+                    Thread.onSpinWait();
+
+                    break;
+
+                case HALTED:
+
+                    interrupts.await(Long.MAX_VALUE);
+
+                    break;
+
+                default:
+
+                    return;
+            }
         }
+    }
+
+    /**
+     * Loads a program and resets the registers and the clock, so that the program can be executed
+     * with {@link #run(long)}.
+     *
+     * @throws CpuFault If the program can't be decoded.
+     */
+    public void load(int[] program) throws CpuFault {
+
+        resetRegisters();
+
+        this.program = null;
+
+        codeInMemory = false;
 
-        instructionCounterArray = new int[instructionCounterArrayBuild.size()];
+        try {
 
-        for (int c = 0; c < instructionCounterArray.length; c++) {
+            prepare(new DecodedProgram(program));
+        }
+        catch (RuntimeException exception) {
 
-            instructionCounterArray[c] = instructionCounterArrayBuild.get(c);
+            throw newFault(exception.getMessage(), exception);
         }
 
-        int offset;
+        clock.reset();
+    }
+
+    /**
+     * Loads a program into memory at an address and executes it from there, so that the program can
+     * load code at runtime. PC still counts the instructions from the address. The decoded program
+     * and the compiled code are kept until the program writes to the pages holding it, and decoded
+     * again once it jumps, see the specification.
+     *
+     * @param program The program.
+     * @param address The address the program in version 2 is written to, see {@link ProgramFormat}.
+     *
+     * @throws CpuFault If the program can't be decoded or doesn't fit the memory.
+     */
+    public void load(int[] program, int address) throws CpuFault {
+
+        resetRegisters();
+
+        this.program = null;
+
+        codeInMemory = false;
+
+        try {
+
+            program = ProgramFormat.convert(program);
 
-        long startupTime = System.currentTimeMillis();
+            memory.copyFrom(program, 0, address, program.length);
+        }
+        catch (RuntimeException exception) {
 
-        while (registers[PC] + instructionCounter < program.length) {
+            throw newFault(exception.getMessage(), exception);
+        }
 
-            offset = program[registers[PC] + instructionCounter];
+        loadCode(address, program.length);
 
-            if (passCycle == 0) {
+        clock.reset();
+    }
 
-                executeInstruction(program);
+    /**
+     * Decodes the program in memory at an address and executes it from there, without resetting the
+     * registers or the clock.
+     *
+     * @param address The address of the program.
+     * @param length The amount of words of the program.
+     *
+     * @throws CpuFault If the program can't be decoded.
+     */
+    void loadCode(int address, int length) throws CpuFault {
+
+        try {
+
+            memory.watchCode(address, length);
+
+            int version = memory.codeVersion;
+            int[] words = new int[length];
+
+            memory.copyInto(address, words, 0, length);
+
+            codeInMemory = true;
+            codeAddress = address;
+            codeVersion = version;
+
+            prepare(new DecodedProgram(words));
+        }
+        catch (RuntimeException exception) {
+
+            program = null;
+            codeInMemory = false;
+
+            throw newFault(exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Prepares a decoded program to be executed by the engine of the CPU.
+     */
+    private void prepare(DecodedProgram program) {
+
+        this.program = program;
+
+        handlers = engine == Engine.THREADED ? ThreadedCode.compile(program, profile == null ? superinstructions : null) : null;
+        compiler = engine == Engine.JIT ? new JustInTimeCompiler(program, JustInTimeCompiler.DEFAULT_THRESHOLD, clock, !lockstep) : null;
+
+        if (compiler != null && codeInMemory) {
+
+            compiler.watch(codeAddress, codeVersion);
+        }
+    }
+
+    /**
+     * Decodes the program executed from memory again once it has been written to. The handlers and
+     * the compiled code of the instructions which haven't been written to are kept, as long as the
+     * instructions haven't moved.
+     *
+     * @throws CpuFault If the program can't be decoded.
+     */
+    private void refreshCode() throws CpuFault {
+
+        int version = memory.codeVersion;
+        int length = program.words.length;
+        long address = Integer.toUnsignedLong(codeAddress);
+        int first = length, last = -1;
+
+        for (long page = address >>> Memory.PAGE_SHIFT; page <= (address + length - 1) >>> Memory.PAGE_SHIFT; page++) {
+
+            if (memory.codeVersion((int) (page << Memory.PAGE_SHIFT)) - codeVersion > 0) {
+
+                first = (int) Math.min(first, Math.max(0, (page << Memory.PAGE_SHIFT) - address));
+                last = (int) Math.min(length - 1, ((page + 1) << Memory.PAGE_SHIFT) - 1 - address);
             }
+        }
+
+        if (last < 0) {
+
+            // Other code in the memory was written to
+            codeVersion = version;
+
+            return;
+        }
+
+        DecodedProgram decoded;
+
+        try {
+
+            int[] words = new int[length];
+
+            memory.copyInto(codeAddress, words, 0, length);
+
+            decoded = new DecodedProgram(words);
+        }
+        catch (RuntimeException exception) {
+
+            throw newFault(exception.getMessage(), exception);
+        }
 
-            passCycle -= (passCycle > 0 ? 1 : 0);
+        codeVersion = version;
 
-            if (!settingProgramCounter) {
+        if (!Arrays.equals(decoded.positions, program.positions)) {
 
-                registers[PC]++;
-                instructionCounter += (offset - 1);
+            prepare(decoded);
+
+            return;
+        }
+
+        if (handlers != null) {
+
+            handlers = ThreadedCode.recompile(handlers, decoded, profile == null ? superinstructions : null, Math.max(0, decoded.instructionAt(first)), decoded.instructionAt(last));
+        }
+
+        if (compiler != null) {
+
+            compiler = compiler.invalidate(decoded, first, last, version);
+        }
+
+        program = decoded;
+    }
+
+    /**
+     * Resets the registers and the clock to execute the loaded program again from the start, keeping
+     * the decoded program and the code compiled for it.
+     */
+    void restart() {
+
+        resetRegisters();
+
+        clock.reset();
+    }
+
+    /**
+     * Executes the loaded program until it finishes, faults, has executed an amount of instructions,
+     * reaches an instruction addressing hardware which isn't ready or is halted without a line to
+     * take. Calling it again continues where it stopped.
+     *
+     * Compiled code checks the amount at loop headers once it has executed a batch of instructions,
+     * so the JIT engine may execute up to {@link Clock#BATCH} instructions more than it was given.
+     * Compiled code leaves at the same checks when an interrupt is raised, so the handler of an
+     * interrupt raised during a loop runs up to a batch later than with the other engines.
+     *
+     * @param maxInstructions The maximum amount of instructions to execute.
+     *
+     * @return Why the CPU stopped. The fault is kept in {@link #getFault()}.
+     */
+    public Status run(long maxInstructions) {
+
+        if (program == null) {
+
+            return fault != null ? Status.FAULTED : Status.FINISHED;
+        }
+
+        if (fault != null) {
+
+            return Status.FAULTED;
+        }
+
+        long deadline = maxInstructions >= Long.MAX_VALUE - clock.instructions() ? Long.MAX_VALUE : clock.instructions() + Math.max(0, maxInstructions);
+
+        clock.setDeadline(deadline);
+        clock.setInterrupts(interrupts);
+
+        try {
+
+            if (codeInMemory && memory.codeVersion != codeVersion) {
+
+                refreshCode();
             }
 
-            settingProgramCounter = false;
+            while (registers[PC] < program.length) {
+
+                if (clock.instructions() >= deadline) {
+
+                    return Status.BUDGET_EXHAUSTED;
+                }
+
+                if (passCycle == 0 && interrupts.isRaised()) {
+
+                    interrupt();
+                }
+
+                if (halted) {
+
+                    return Status.HALTED;
+                }
+
+                if (passCycle == 0 && isWaiting(registers[PC])) {
+
+                    return Status.WAITING;
+                }
+
+                if (profile != null) {
+
+                    if (registers[PC] == previous + 1) {
+
+                        profile.record(program.opcodes[previous], program.opcodes[registers[PC]]);
+                    }
+
+                    previous = passCycle == 0 ? registers[PC] : -2;
+                }
+
+                if (passCycle == 0) {
+
+                    clock.tick(program.opcodes[registers[PC]]);
+
+                    if (handlers == null) {
+
+                        executeInstruction(registers[PC]);
+                    }
+                    else {
+
+                        try {
+
+                            handlers[registers[PC]].execute(this);
+                        }
+                        catch (CpuFault fault) {
+
+                            throw fault;
+                        }
+                        catch (RuntimeException exception) {
+
+                            throw newFault(exception.getMessage(), exception);
+                        }
+                    }
+                }
+
+                passCycle -= (passCycle > 0 ? 1 : 0);
+
+                if (!settingProgramCounter) {
+
+                    registers[PC]++;
+                }
+                else if (passCycle == 0) {
+
+                    // Writes to code take effect once the program jumps
+                    if (codeInMemory && memory.codeVersion != codeVersion) {
+
+                        refreshCode();
+                    }
+
+                    CompiledRegion region = compiler != null && registers[PC] < program.length ? compiler.enter(registers[PC]) : null;
+
+                    if (region != null) {
 
-            if ((System.currentTimeMillis() - startupTime) > 0xffffffffl) {
+                        registers[PC] = region.execute(registers, memory, clock);
 
-                startupTime += 0xffffffffl;
+                        if (codeInMemory && memory.codeVersion != codeVersion) {
+
+                            refreshCode();
+                        }
+                    }
+                }
+
+                settingProgramCounter = false;
             }
+        }
+        catch (CpuFault exception) {
 
-            time = (int) (System.currentTimeMillis() - startupTime);
+            return Status.FAULTED;
         }
+        finally {
+
+            clock.setDeadline(Long.MAX_VALUE);
+            clock.setInterrupts(null);
+        }
+
+        return Status.FINISHED;
+    }
+
+    /**
+     * @return If the instruction addresses hardware which isn't ready, or has to wait for the barrier
+     * of a {@link Lockstep}. Only hardware locations given as an immediate, a register or an address
+     * are checked, as reading the others has side effects.
+     */
+    private boolean isWaiting(int index) {
+
+        int opcode = program.opcodes[index];
+
+        if (lockstep && !atBarrier && synchronizes(opcode)) {
+
+            return true;
+        }
+
+        if ((opcode != HDP && opcode != HRT) || program.operandCounts[index] == 0) {
+
+            return false;
+        }
+
+        int offset = program.operandOffsets[index];
+        int value = program.operandValues[offset];
+        int location;
+
+        switch (program.operandKinds[offset]) {
+
+            case DecodedProgram.IMMEDIATE:
+
+                location = value;
+
+                break;
+
+            case DecodedProgram.REGISTER:
+
+                location = registers[value];
+
+                break;
+
+            case DecodedProgram.MEMORY:
+
+                if (Integer.compareUnsigned(value, memory.capasity()) >= 0) {
+
+                    return false;
+                }
+
+                location = memory.get(value);
+
+                break;
+
+            case DecodedProgram.INDIRECT:
+
+                if (Integer.compareUnsigned(registers[value], memory.capasity()) >= 0) {
+
+                    return false;
+                }
+
+                location = memory.get(registers[value]);
+
+                break;
+
+            case DecodedProgram.STACK:
+
+                if (Integer.compareUnsigned(registers[SP] + value, memory.capasity()) >= 0) {
+
+                    return false;
+                }
+
+                location = memory.get(registers[SP] + value);
+
+                break;
+
+            default:
+
+                return false;
+        }
+
+        AttachableHardware hardware = attachableHardware.get(location);
+
+        return hardware != null && !hardware.isReady();
+    }
+
+    /**
+     * @return If the instruction is seen by other cores or hardware at once: the atomic instructions
+     * and the instructions addressing hardware.
+     */
+    static boolean synchronizes(int opcode) {
+
+        return opcode == HDP || opcode == HRT || opcode == CAS || opcode == XADD || opcode == XCHG;
+    }
+
+    /**
+     * @return If the instruction works on an area of the memory: BCPY, BFIL, BCMP and BSCN. Their
+     * arguments are all values, so an immediate can be the first one.
+     */
+    static boolean isBlock(int opcode) {
+
+        return opcode == BCPY || opcode == BFIL || opcode == BCMP || opcode == BSCN;
+    }
+
+    /**
+     * @return If the instruction is an element-wise vector instruction, VADD to VMAX, whose arguments
+     * are all values as for the block instructions.
+     */
+    static boolean isVector(int opcode) {
+
+        return opcode >= VADD && opcode <= VMAX;
+    }
+
+    /**
+     * @return If the instruction manages the frame of a subroutine: RET, ENTER and LEAVE. Their
+     * argument is an amount of words, so it can be an immediate.
+     */
+    static boolean isFrame(int opcode) {
+
+        return opcode == RET || opcode == ENTER || opcode == LEAVE;
+    }
+
+    /**
+     * @return If the instruction configures or raises interrupts: INT, IMS and IVT. Their argument
+     * is a value, so it can be an immediate.
+     */
+    static boolean isInterrupt(int opcode) {
+
+        return opcode == INT || opcode == IMS || opcode == IVT;
     }
 
     /**
      * Executes the instruction.
      */
-    private void executeInstruction(int program[]) {
+    void executeInstruction(int index) {
 
         try {
 
-            int amountOfArguments = (program[registers[PC] + instructionCounter] - 2) / 3;
+            int instruction = program.opcodes[index];
+            int amountOfArguments = program.operandCounts[index];
+            int offset = program.operandOffsets[index];
             int address = -1;
             boolean writeToMemory = false;
 
@@ -226,97 +955,123 @@ public class CPU {
 
             for (int i = 0; i < amountOfArguments; i++) {
 
-                int value                  = program[registers[PC] + instructionCounter + 2 + 3 * i];
-                boolean retrieveFromMemory = program[registers[PC] + instructionCounter + 3 + 3 * i] == 1;
-                boolean register           = program[registers[PC] + instructionCounter + 4 + 3 * i] == 1;
+                int value = program.operandValues[offset + i];
+                boolean destination = i == 0 || (i == 1 && (instruction == HDP || instruction == HRT));
 
-                if (register) {
+                switch (program.operandKinds[offset + i]) {
 
-                    if (value == PUSH_POP) {
+                    case DecodedProgram.IMMEDIATE:
 
-                        // Push
-                        if (i == 0 && retrieveFromMemory) {
+                        if (destination) {
 
-                            if (registers[SP] - 1 < 0) {
+                            address = value;
+                        }
 
-                                fault("Stack overflow.");
-                            }
+                        arguments[i] = value;
 
-                            writeToMemory = true;
+                        break;
 
-                            address = registers[SP] - 1;
-                            arguments[i] = memory.get(registers[SP] - 1);
+                    case DecodedProgram.REGISTER:
 
-                            registers[SP]--;
+                        if (destination) {
+
+                            address = value;
                         }
-                        // Pop
-                        else if (i == 1) {
 
-                            if (registers[SP] + 1 >= memory.capasity()) {
+                        arguments[i] = registers[value];
+
+                        break;
 
-                                fault("Stack underflow.");
-                            }
+                    case DecodedProgram.MEMORY:
 
-                            arguments[i] = memory.get(registers[SP]);
+                        if (destination) {
 
-                            memory.set(registers[SP], 0);
+                            writeToMemory = true;
 
-                            registers[SP]++;
+                            address = value;
                         }
 
-                        continue;
-                    }
-                    else if (value == PEEK && retrieveFromMemory) {
+                        arguments[i] = memory.get(value);
 
-                        if (i == 0) {
+                        break;
 
-                            writeToMemory = true;
+                    case DecodedProgram.INDIRECT:
 
-                            address = registers[SP];
+                        if (destination) {
 
-                            arguments[i] = memory.get(registers[SP]);
+                            writeToMemory = true;
 
-                            continue;
+                            address = registers[value];
                         }
-                        else if (i == 1) {
 
-                            arguments[i] = memory.get(registers[SP]);
+                        arguments[i] = memory.get(registers[value]);
+
+                        break;
 
-                            continue;
+                    case DecodedProgram.STACK:
+
+                        if (destination) {
+
+                            writeToMemory = true;
+
+                            address = registers[SP] + value;
                         }
-                    }
-                }
 
-                int instruction = program[registers[PC] + instructionCounter + 1];
+                        arguments[i] = memory.get(registers[SP] + value);
 
-                if (retrieveFromMemory) {
+                        break;
 
-                    if (i == 0 || (i == 1 && (instruction == HDP || instruction == HRT))) {
+                    case DecodedProgram.PUSH:
+
+                        if (Integer.compareUnsigned(registers[SP] - 1, memory.capasity()) >= 0) {
+
+                            fault("Stack overflow.");
+                        }
 
                         writeToMemory = true;
 
-                        address = register ? registers[value] : value;
-                    }
+                        address = registers[SP] - 1;
+                        arguments[i] = memory.get(registers[SP] - 1);
 
-                    arguments[i] = register ? memory.get(registers[value]) : memory.get(value);
-                }
-                else {
+                        registers[SP]--;
+
+                        break;
 
-                    if (i == 0 || (i == 1 && (instruction == HDP || instruction == HRT))) {
+                    case DecodedProgram.POP:
 
-                        if (!register && instruction != HDP && instruction != HRT && instruction != JSR) {
+                        if (Integer.compareUnsigned(registers[SP] + 1, memory.capasity()) >= 0) {
 
-                            fault("Invalid argument: " + "'" + value + "'.");
+                            fault("Stack underflow.");
                         }
 
-                        address = value;
-                    }
+                        arguments[i] = memory.get(registers[SP]);
+
+                        memory.set(registers[SP], 0);
+
+                        registers[SP]++;
+
+                        break;
+
+                    case DecodedProgram.PEEK:
+
+                        if (i == 0) {
+
+                            writeToMemory = true;
+
+                            address = registers[SP];
+                        }
+
+                        arguments[i] = memory.get(registers[SP]);
+
+                        break;
+
+                    case DecodedProgram.INVALID:
 
-                    arguments[i] = register ? registers[value] : value;
+                        fault("Invalid argument: " + "'" + value + "'.");
                 }
             }
 
-            switch (program[registers[PC] + instructionCounter + 1]) {
+            switch (instruction) {
 
                 case SET:
 
@@ -338,7 +1093,13 @@ public class CPU {
 
                         case TIME_SINCE_BOOT:
 
-                            setValue(address, writeToMemory, time);
+                            setValue(address, writeToMemory, clock.time());
+
+                            break;
+
+                        case CORE_ID:
+
+                            setValue(address, writeToMemory, core);
 
                             break;
                     }
@@ -423,6 +1184,22 @@ public class CPU {
 
                     break;
 
+                case ADDW:
+                case SUBW:
+                case MULW:
+                case MULH:
+                case ADX:
+                case SBX:
+
+                    if (amountOfArguments != 2) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    setValue(address, writeToMemory, wide(instruction, arguments[0], arguments[1]));
+
+                    break;
+
                 case AND:
 
                     arguments[0] &= arguments[1];
@@ -526,6 +1303,29 @@ public class CPU {
 
                     break;
 
+                case RET:
+
+                    if (amountOfArguments > 1) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    frame(instruction, amountOfArguments == 0 ? 0 : arguments[0]);
+
+                    break;
+
+                case ENTER:
+                case LEAVE:
+
+                    if (amountOfArguments != 1) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    frame(instruction, arguments[0]);
+
+                    break;
+
                 case HDP:
 
                     {
@@ -536,19 +1336,18 @@ public class CPU {
 
                         System.arraycopy(arguments, 1, hardwareArgs, 0, arguments.length - 1);
 
-                        int location = arguments[0];
+                        AttachableHardware hardware = attachableHardware.get(arguments[0]);
 
-                        if (writeToMemory) {
+                        if (hardware == null) {
 
-                            location = memory.get(address);
+                            fault("Invalid hardware location.");
                         }
 
-                        if (!attachableHardware.containsKey(location)) {
+                        // Hardware may be attached to several cores
+                        synchronized (hardware) {
 
-                            fault("Invalid hardware location.");
+                            hardware.process(hardwareArgs, amountOfArguments - 1);
                         }
-
-                        attachableHardware.get(location).process(hardwareArgs, amountOfArguments - 1);
                     }
 
                     break;
@@ -563,18 +1362,174 @@ public class CPU {
 
                         System.arraycopy(arguments, 1, hardwareArgs, 0, arguments.length - 1);
 
-                        int location = arguments[0];
+                        AttachableHardware hardware = attachableHardware.get(arguments[0]);
 
-                        if (!attachableHardware.containsKey(location)) {
+                        if (hardware == null) {
 
                             fault("Invalid hardware location.");
                         }
 
-                        System.out.println(Arrays.toString(hardwareArgs));
+                        int value;
+
+                        synchronized (hardware) {
+
+                            value = hardware.retrieve(hardwareArgs, amountOfArguments - 1);
+                        }
+
+                        setValue(address, writeToMemory, value);
+                    }
+
+                    break;
+
+                case CAS:
+
+                    exchange(instruction, address, writeToMemory, arguments[0], arguments[1], arguments[2]);
+
+                    break;
+
+                case XADD:
+                case XCHG:
+
+                    exchange(instruction, address, writeToMemory, arguments[0], arguments[1], 0);
+
+                    break;
+
+                case BCPY:
+                case BFIL:
+                case BCMP:
+                case BSCN:
+                case VADD: case VSUB: case VMUL: case VAND: case VOR: case VXOR: case VMIN: case VMAX:
+
+                    if (amountOfArguments != 3) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    block(instruction, arguments[0], arguments[1], arguments[2]);
+
+                    break;
+
+                case VSUM:
+
+                    if (amountOfArguments != 3) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    setValue(address, writeToMemory, memory.sum(arguments[1], arguments[2]));
+
+                    break;
+
+                case VDOT:
+
+                    if (amountOfArguments != 4) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    setValue(address, writeToMemory, memory.dot(arguments[1], arguments[2], arguments[3]));
+
+                    break;
+
+                case FADD:
+                case FSUB:
+                case FMUL:
+                case FDIV:
+                case FSQRT:
+                case ITOF:
+                case FTOI:
+
+                    if (amountOfArguments != 2) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    setValue(address, writeToMemory, Floats.apply(instruction, arguments[0], arguments[1]));
+
+                    break;
+
+                case FCMP:
+
+                    if (amountOfArguments != 2) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    registers[EX] = Floats.compare(arguments[0], arguments[1]);
+
+                    break;
+
+                case INT:
+
+                    if (amountOfArguments != 1) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    if (Integer.compareUnsigned(arguments[0], InterruptController.LINES) >= 0) {
+
+                        fault("Invalid interrupt line: " + "'" + arguments[0] + "'.");
+                    }
+
+                    interrupts.raiseFromProgram(arguments[0]);
+
+                    break;
+
+                case IRET:
+
+                    if (amountOfArguments != 0) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    if (!interrupts.inService) {
+
+                        fault("No interrupt to return from.");
+                    }
 
-                        setValue(address, writeToMemory, attachableHardware.get(location).retrieve(hardwareArgs, amountOfArguments - 1));
+                    frame(RET, 0);
+
+                    interrupts.inService = false;
+
+                    break;
+
+                case IMS:
+
+                    if (amountOfArguments != 1) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    interrupts.mask = arguments[0];
+
+                    break;
+
+                case IVT:
+
+                    if (amountOfArguments != 1) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
+                    }
+
+                    interrupts.vectorTable = arguments[0];
+
+                    break;
+
+                case HLT:
+
+                    if (amountOfArguments != 0) {
+
+                        fault("Unknown instruction or too many/few arguments in instruction.");
                     }
 
+                    // Nothing could wake the CPU
+                    if (interrupts.mask == 0 || interrupts.inService) {
+
+                        fault("Can't halt without interrupts to take.");
+                    }
+
+                    halted = true;
+
                     break;
 
                 default:
@@ -582,22 +1537,232 @@ public class CPU {
                     fault("Unknown instruction or too many/few arguments in instruction.");
             }
         }
-        catch (Exception exception) {
+        catch (CpuFault fault) {
+
+            throw fault;
+        }
+        catch (RuntimeException exception) {
+
+            throw newFault(exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Executes an atomic instruction (CAS, XADD or XCHG) on a located destination and sets EX to the
+     * value the destination held. Registers belong to a single core, so a register destination is
+     * updated as by any other instruction.
+     *
+     * @param previous The value of the destination when it was located.
+     * @param b The second argument.
+     * @param c The third argument of CAS.
+     */
+    void exchange(int instruction, int address, boolean writeToMemory, int previous, int b, int c) {
+
+        if (writeToMemory) {
+
+            switch (instruction) {
+
+                case CAS:   previous = memory.compareAndExchange(address, b, c);    break;
+                case XADD:  previous = memory.getAndAdd(address, b);                break;
+                default:    previous = memory.getAndSet(address, b);                break;
+            }
+
+            registers[EX] = previous;
+
+            return;
+        }
+
+        registers[EX] = previous;
+
+        switch (instruction) {
+
+            case CAS:
+
+                if (previous == b) {
+
+                    setValue(address, false, c);
+                }
+
+                break;
+
+            case XADD:
+
+                setValue(address, false, previous + b);
+
+                break;
+
+            default:
+
+                setValue(address, false, b);
+        }
+    }
+
+    /**
+     * Executes a wrapping arithmetic instruction (ADDW, SUBW, MULW, MULH, ADX or SBX) on unsigned
+     * words, and sets EX to the carry, the borrow or the high word of the product. MULH leaves EX as
+     * it is.
+     *
+     * @return The result, which is written to the destination after EX.
+     */
+    int wide(int instruction, int a, int b) {
+
+        long x = a & 0xffffffffl, y = b & 0xffffffffl, carry = registers[EX] & 0xffffffffl;
+
+        switch (instruction) {
+
+            case ADDW:
+            case ADX:
+
+                long sum = x + y + (instruction == ADX ? carry : 0);
+
+                registers[EX] = (int) (sum >>> 32);
+
+                return (int) sum;
+
+            case SUBW:
+            case SBX:
+
+                long difference = x - y - (instruction == SBX ? carry : 0);
+
+                registers[EX] = (int) -(difference >> 32);
+
+                return (int) difference;
+
+            case MULW:
+
+                long product = x * y;
+
+                registers[EX] = (int) (product >>> 32);
+
+                return (int) product;
+
+            default:
+
+                return (int) ((x * y) >>> 32);
+        }
+    }
+
+    /**
+     * Executes a block instruction (BCPY, BFIL, BCMP or BSCN) or an element-wise vector instruction
+     * (VADD to VMAX) on an area of the memory at once. The areas are checked before any word is
+     * written, so that a faulting instruction has no effect.
+     *
+     * @param a The first argument, the address of the area.
+     * @param b The second argument, the address of the source or the other area, or the value.
+     * @param c The third argument, the amount of words.
+     */
+    void block(int instruction, int a, int b, int c) {
+
+        switch (instruction) {
+
+            case BCPY:  memory.copy(b, a, c);                           break;
+            case BFIL:  memory.fill(a, c, b);                           break;
+            case BCMP:  registers[EX] = memory.mismatch(a, b, c);       break;
+            case BSCN:  registers[EX] = memory.indexOf(a, c, b);        break;
+            default:    memory.combine(instruction - VADD, a, b, c);    break;
+        }
+    }
+
+    /**
+     * Executes a frame instruction. RET pops the return address without clearing the word it was
+     * held in, and drops the given amount of words above it, e.g. the arguments pushed by the
+     * caller. ENTER reserves words below SP for the locals of a subroutine, which are left as they
+     * are, and LEAVE releases them. The stack is empty when SP is at the last word of the memory,
+     * as for PUSH and POP.
+     *
+     * @param words The amount of words.
+     */
+    void frame(int instruction, int words) {
+
+        long top = Integer.toUnsignedLong(registers[SP]) + Integer.toUnsignedLong(words);
+        long capasity = Integer.toUnsignedLong(memory.capasity());
+
+        switch (instruction) {
+
+            case RET:
+
+                if (top + 1 >= capasity) {
+
+                    fault("Stack underflow.");
+                }
+
+                setValue(PC, false, memory.get(registers[SP]));
+
+                registers[SP] = (int) top + 1;
+
+                break;
+
+            case ENTER:
+
+                if (Integer.compareUnsigned(words, registers[SP]) > 0) {
+
+                    fault("Stack overflow.");
+                }
+
+                registers[SP] -= words;
+
+                break;
+
+            default:
+
+                if (top >= capasity) {
+
+                    fault("Stack underflow.");
+                }
+
+                registers[SP] = (int) top;
+        }
+    }
+
+    /**
+     * Takes the raised interrupt: pushes PC as JSR does and continues at the handler of the line in
+     * the vector table. The fault of an invalid handler or a full stack is given to the instruction
+     * PC is at, and leaves the line pending.
+     */
+    private void interrupt() {
+
+        int line = Integer.numberOfTrailingZeros(interrupts.pending() & interrupts.mask);
+        int entry = interrupts.vectorTable + line;
+
+        if (Integer.compareUnsigned(entry, memory.capasity()) >= 0) {
+
+            fault("Invalid interrupt vector table: " + "'" + interrupts.vectorTable + "'.");
+        }
+
+        int handler = memory.get(entry);
+
+        if (handler < 0 || handler >= program.length) {
+
+            fault("Invalid interrupt handler: " + "'" + handler + "'.");
+        }
 
-            exception.printStackTrace();
+        if (Integer.compareUnsigned(registers[SP] - 1, memory.capasity()) >= 0) {
 
-            fault(exception.getMessage());
+            fault("Stack overflow.");
         }
+
+        interrupts.acknowledge();
+
+        registers[SP]--;
+
+        memory.set(registers[SP], registers[PC]);
+
+        registers[PC] = handler;
+        previous = -2;
+        halted = false;
     }
 
     /**
      * Sets the value at the specified address.
      */
-    private void setValue(int address, boolean writeToMemory, int value) {
+    void setValue(int address, boolean writeToMemory, int value) {
 
         if (address == PC && !writeToMemory) {
 
-            instructionCounter = instructionCounterArray[value] - value;
+            if (value < 0 || value > program.length) {
+
+                fault("Invalid program counter: " + "'" + value + "'.");
+            }
 
             settingProgramCounter = true;
         }
@@ -613,11 +1778,51 @@ public class CPU {
     }
 
     /**
-     * Warns that the current instruction isn't a valid instruction.
+     * Faults the current instruction.
+     *
+     * @throws CpuFault Always.
+     */
+    void fault(String msg) throws CpuFault {
+
+        throw newFault(msg, null);
+    }
+
+    /**
+     * @return A fault of the current instruction, which is kept for inspection.
+     */
+    private CpuFault newFault(String msg, Throwable cause) {
+
+        int programCounter = registers[PC];
+        int opcode = program != null && programCounter >= 0 && programCounter < program.length ? program.opcodes[programCounter] : -1;
+
+        fault = new CpuFault(programCounter, opcode, msg, registers, cause);
+
+        return fault;
+    }
+
+    /**
+     * @return The fault which stopped the last program, or null if it finished.
+     */
+    public CpuFault getFault() {
+
+        return fault;
+    }
+
+    /**
+     * @return The identifier of the CPU among the cores sharing its memory, 0 unless it's a core of
+     * a {@link Multicore}.
+     */
+    public int getCore() {
+
+        return core;
+    }
+
+    /**
+     * @return The value of a register (A, B, C, X, Y, Z, I, J, PC, SP, PUSH|POP, PEEK, EX).
      */
-    private void fault(String msg) {
+    public int getRegister(int register) {
 
-        Exit.exit("Instruction fault at " + registers[PC] + ": " + msg);
+        return registers[register];
     }
 
     /**
@@ -641,16 +1846,36 @@ public class CPU {
         );
     }
 
+    /**
+     * Resets the registers and the memory, so that the CPU can be reused for another program. Only
+     * the pages of the memory written to since the last reset are reset, see {@link Memory#reset()}.
+     * A program executed from memory is reset as well unless it's part of the baseline.
+     */
+    public void reset() {
+
+        resetRegisters();
+
+        memory.reset();
+    }
+
     /**
      * Resets the registers.
      */
-    private void reset() {
+    private void resetRegisters() {
 
         for (int i = 0; i < registers.length; i++) {
 
             registers[i] = 0;
         }
 
-        registers[SP] = memory.capasity() - 1;
+        registers[SP] = memory.capasity() - 1 - stackOffset;
+
+        passCycle = 0;
+        settingProgramCounter = false;
+        previous = -2;
+        halted = false;
+        fault = null;
+
+        interrupts.reset();
     }
 }
@@ -0,0 +1,393 @@
+package io.simengangstad.github.cpu;
+
+/**
+ * Keeps the time of a CPU (GET a 0x1) without reading the host clock for every instruction.
+ *
+ * Every executed instruction is counted together with its cost in cycles. A cycle counted clock
+ * derives the time from the cycles and its frequency, so programs see the same time on every run
+ * and every engine. A wall clock reads the host clock every N instructions, or only when the time
+ * is asked for.
+ *
+ * Either clock can throttle the CPU to a target frequency, in which case it sleeps in batches
+ * whenever the cycles get ahead of the host clock.
+ *
+ * Usage:
+ *
+ *      Clock clock = Clock.cycleCounted(1000000);
+ *
+ *      clock.throttle(1000000);
+ *      cpu.setClock(clock);
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Clock {
+
+    /**
+     * The amount of cycles compiled code executes between reporting them to the clock.
+     */
+    public static final int BATCH = 0x1000;
+
+    /**
+     * The maximum cost of an instruction.
+     */
+    public static final int MAXIMUM_COST = 0xffff;
+
+    /**
+     * The amount of instructions between the checks of a throttled clock.
+     */
+    private static final int THROTTLE_INTERVAL = 0x10000;
+
+    /**
+     * The cost of every instruction by instruction identifier.
+     */
+    private final int[] costs = new int[Superinstructions.INSTRUCTIONS];
+
+    /**
+     * The cycles per second of a cycle counted clock, or 0 for a wall clock.
+     */
+    private final long frequency;
+
+    /**
+     * The amount of instructions between reading the host clock, or 0 to read it when the time is
+     * asked for. Only used by a wall clock.
+     */
+    private final int sampleInterval;
+
+    /**
+     * The cycles per second to throttle to, or 0 to run as fast as possible.
+     */
+    private long targetFrequency = 0;
+
+    /**
+     * The amount of executed instructions and cycles.
+     */
+    private long instructions = 0, cycles = 0;
+
+    /**
+     * The amount of instructions at which the CPU yields, see {@link #expired()}.
+     */
+    private long deadline = Long.MAX_VALUE;
+
+    /**
+     * The interrupt controller of the CPU while it's running, see {@link #expired()}.
+     */
+    private InterruptController interrupts;
+
+    /**
+     * The amount of instructions when the clock is polled next.
+     */
+    private long nextPoll = Long.MAX_VALUE;
+
+    /**
+     * The host time when the clock was reset, in milliseconds and nanoseconds.
+     */
+    private long startupTime, startupNanos;
+
+    /**
+     * The milliseconds since reset when the host clock was last read.
+     */
+    private long sampledTime = 0;
+
+    private Clock(long frequency, int sampleInterval, int[] costs) {
+
+        this.frequency = frequency;
+        this.sampleInterval = sampleInterval;
+
+        for (int i = 0; i < this.costs.length; i++) {
+
+            int cost = costs == null || i >= costs.length ? 1 : costs[i];
+
+            if (cost < 0 || cost > MAXIMUM_COST) {
+
+                throw new IllegalArgumentException("Invalid cost of instruction " + i + ": " + "'" + cost + "'.");
+            }
+
+            this.costs[i] = cost;
+        }
+
+        reset();
+    }
+
+    /**
+     * @return A clock reading the host clock when the time is asked for.
+     */
+    public static Clock wallClock() {
+
+        return wallClock(0);
+    }
+
+    /**
+     * @param sampleInterval The amount of instructions between reading the host clock, or 0 to read
+     *                       it when the time is asked for.
+     *
+     * @return A clock reading the host clock.
+     */
+    public static Clock wallClock(int sampleInterval) {
+
+        if (sampleInterval < 0) {
+
+            throw new IllegalArgumentException("Invalid sample interval: " + "'" + sampleInterval + "'.");
+        }
+
+        return new Clock(0, sampleInterval, null);
+    }
+
+    /**
+     * @param frequency The cycles per second.
+     *
+     * @return A clock deriving the time from the executed cycles, where every instruction costs one cycle.
+     */
+    public static Clock cycleCounted(long frequency) {
+
+        return cycleCounted(frequency, null);
+    }
+
+    /**
+     * @param frequency The cycles per second.
+     * @param costs The cost of every instruction by instruction identifier, where instructions
+     *              beyond the array cost one cycle, or null for one cycle each.
+     *
+     * @return A clock deriving the time from the executed cycles.
+     */
+    public static Clock cycleCounted(long frequency, int[] costs) {
+
+        if (frequency <= 0) {
+
+            throw new IllegalArgumentException("Invalid frequency: " + "'" + frequency + "'.");
+        }
+
+        return new Clock(frequency, 0, costs);
+    }
+
+    /**
+     * @return A copy of the clock with the same costs, counts and time, for a forked CPU.
+     */
+    public Clock copy() {
+
+        Clock clock = new Clock(frequency, sampleInterval, costs);
+
+        clock.targetFrequency = targetFrequency;
+        clock.instructions = instructions;
+        clock.cycles = cycles;
+        clock.startupTime = startupTime;
+        clock.startupNanos = startupNanos;
+        clock.sampledTime = sampledTime;
+
+        clock.schedule();
+
+        return clock;
+    }
+
+    /**
+     * Throttles the CPU to a frequency.
+     *
+     * @param targetFrequency The cycles per second, or 0 to run as fast as possible.
+     */
+    public void throttle(long targetFrequency) {
+
+        if (targetFrequency < 0) {
+
+            throw new IllegalArgumentException("Invalid frequency: " + "'" + targetFrequency + "'.");
+        }
+
+        this.targetFrequency = targetFrequency;
+
+        schedule();
+    }
+
+    /**
+     * @return The cost of an instruction in cycles.
+     */
+    public int cost(int opcode) {
+
+        return opcode >= 0 && opcode < costs.length ? costs[opcode] : 0;
+    }
+
+    /**
+     * Resets the counters and the time, done when the CPU starts executing a program.
+     */
+    public void reset() {
+
+        instructions = 0;
+        cycles = 0;
+        sampledTime = 0;
+
+        startupTime = System.currentTimeMillis();
+        startupNanos = System.nanoTime();
+
+        schedule();
+    }
+
+    /**
+     * Counts an executed instruction.
+     */
+    void tick(int opcode) {
+
+        cycles += costs[opcode & 0xff];
+
+        if (++instructions >= nextPoll) {
+
+            poll();
+        }
+    }
+
+    /**
+     * Counts instructions executed by compiled code.
+     *
+     * @param instructions The amount of instructions.
+     * @param cycles The amount of cycles of the instructions.
+     */
+    public void advance(long instructions, long cycles) {
+
+        this.cycles += cycles;
+        this.instructions += instructions;
+
+        if (this.instructions >= nextPoll) {
+
+            poll();
+        }
+    }
+
+    /**
+     * @return The amount of executed instructions since reset.
+     */
+    public long instructions() {
+
+        return instructions;
+    }
+
+    /**
+     * @return The amount of executed cycles since reset.
+     */
+    public long cycles() {
+
+        return cycles;
+    }
+
+    /**
+     * Sets the amount of instructions at which the CPU yields.
+     */
+    void setDeadline(long deadline) {
+
+        this.deadline = deadline;
+    }
+
+    /**
+     * Sets the interrupt controller of the running CPU, or null when it stops.
+     */
+    void setInterrupts(InterruptController interrupts) {
+
+        this.interrupts = interrupts;
+    }
+
+    /**
+     * @return If the CPU has executed the instructions it was given, or has an interrupt to take,
+     * and shall yield. Checked by compiled code whenever it reports a batch.
+     */
+    public boolean expired() {
+
+        return instructions >= deadline || interrupts != null && interrupts.isRaised();
+    }
+
+    /**
+     * @return The milliseconds since reset. Gets reset after 0xffffffff milliseconds.
+     */
+    public int time() {
+
+        long milliseconds;
+
+        if (frequency > 0) {
+
+            milliseconds = cycles / frequency * 1000 + cycles % frequency * 1000 / frequency;
+        }
+        else {
+
+            if (sampleInterval == 0) {
+
+                sampledTime = System.currentTimeMillis() - startupTime;
+            }
+
+            milliseconds = sampledTime;
+        }
+
+        return (int) (milliseconds % 0xffffffffl);
+    }
+
+    /**
+     * @return The milliseconds since reset, without being reset after 0xffffffff milliseconds.
+     */
+    long elapsed() {
+
+        return frequency > 0 ? cycles / frequency * 1000 + cycles % frequency * 1000 / frequency : System.currentTimeMillis() - startupTime;
+    }
+
+    /**
+     * Continues counting from a snapshot of a clock.
+     *
+     * @param instructions The amount of executed instructions.
+     * @param cycles The amount of executed cycles.
+     * @param elapsed The milliseconds since reset.
+     */
+    void restore(long instructions, long cycles, long elapsed) {
+
+        this.instructions = instructions;
+        this.cycles = cycles;
+
+        startupTime = System.currentTimeMillis() - elapsed;
+        startupNanos = System.nanoTime() - elapsed * 1000000;
+        sampledTime = elapsed;
+
+        schedule();
+    }
+
+    /**
+     * Reads the host clock and sleeps if the CPU is ahead of the target frequency.
+     */
+    private void poll() {
+
+        if (frequency == 0 && sampleInterval > 0) {
+
+            sampledTime = System.currentTimeMillis() - startupTime;
+        }
+
+        if (targetFrequency > 0) {
+
+            long ahead = (long) (cycles * (1000000000.0 / targetFrequency)) - (System.nanoTime() - startupNanos);
+
+            if (ahead > 0) {
+
+                try {
+
+                    Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+                }
+                catch (InterruptedException exception) {
+
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        schedule();
+    }
+
+    /**
+     * Sets when the clock is polled next.
+     */
+    private void schedule() {
+
+        long interval = Long.MAX_VALUE;
+
+        if (frequency == 0 && sampleInterval > 0) {
+
+            interval = sampleInterval;
+        }
+
+        if (targetFrequency > 0) {
+
+            interval = Math.min(interval, THROTTLE_INTERVAL);
+        }
+
+        nextPoll = interval == Long.MAX_VALUE ? Long.MAX_VALUE : instructions + interval;
+    }
+}
@@ -0,0 +1,232 @@
+package io.simengangstad.github.cpu;
+
+import java.util.Arrays;
+
+/**
+ * An assembled program decoded once into a struct-of-arrays form, so that the CPU doesn't have to
+ * read the header and the argument words of every instruction each cycle.
+ *
+ * The instructions are indexed by their instruction number (which is what PC holds), and the
+ * arguments of instruction n are found at operandOffsets[n] to operandOffsets[n] + operandCounts[n] - 1
+ * in operandKinds and operandValues.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class DecodedProgram {
+
+    /**
+     * Kinds of arguments.
+     */
+    public static final int
+
+            IMMEDIATE       = 0x0,  // value
+            REGISTER        = 0x1,  // registers[value]
+            MEMORY          = 0x2,  // *value
+            INDIRECT        = 0x3,  // *registers[value]
+            PUSH            = 0x4,  // *--SP
+            POP             = 0x5,  // *SP++
+            PEEK            = 0x6,  // *SP
+            INVALID         = 0x7,  // value as a destination where it isn't allowed, faults when executed
+            STACK           = 0x8;  // *(SP + value)
+
+    /**
+     * The amount of instructions in the program.
+     */
+    public final int length;
+
+    /**
+     * The program in version 2, as it was decoded.
+     */
+    final int[] words;
+
+    /**
+     * The word of the program every instruction starts at, followed by the length of the program.
+     */
+    final int[] positions;
+
+    /**
+     * The instruction identifier of every instruction.
+     */
+    final int[] opcodes;
+
+    /**
+     * The amount of arguments of every instruction.
+     */
+    final int[] operandCounts;
+
+    /**
+     * The index of the first argument of every instruction in the argument arrays.
+     */
+    final int[] operandOffsets;
+
+    /**
+     * The kind and value of every argument.
+     */
+    final int[] operandKinds;
+    final int[] operandValues;
+
+    /**
+     * Decodes an assembled program in either format, see {@link ProgramFormat}.
+     *
+     * @throws RuntimeException If the program is malformed.
+     */
+    public DecodedProgram(int[] program) throws RuntimeException {
+
+        program = ProgramFormat.convert(program);
+
+        words = program;
+
+        int instructions = 0, operands = 0;
+
+        for (int c = 1; c < program.length; c += size(program, c)) {
+
+            instructions++;
+            operands += ProgramFormat.amountOfArguments(program[c]);
+        }
+
+        length = instructions;
+
+        positions = new int[instructions + 1];
+        opcodes = new int[instructions];
+        operandCounts = new int[instructions];
+        operandOffsets = new int[instructions];
+        operandKinds = new int[operands];
+        operandValues = new int[operands];
+
+        int instruction = 0, operand = 0;
+
+        for (int c = 1; c < program.length; c += size(program, c), instruction++) {
+
+            int opcode = ProgramFormat.opcode(program[c]);
+            int amountOfArguments = ProgramFormat.amountOfArguments(program[c]);
+            int values = c + 1 + ProgramFormat.extensions(amountOfArguments);
+
+            positions[instruction] = c;
+            opcodes[instruction] = opcode;
+            operandCounts[instruction] = amountOfArguments;
+            operandOffsets[instruction] = operand;
+
+            for (int i = 0; i < amountOfArguments; i++, operand++) {
+
+                int value = program[values + i];
+                int mode  = ProgramFormat.mode(program, c, i);
+
+                operandValues[operand] = value;
+                operandKinds[operand] = mode == ProgramFormat.STACK ? STACK : kindOf(opcode, i, value, (mode & ProgramFormat.MEMORY) != 0, (mode & ProgramFormat.REGISTER) != 0);
+            }
+        }
+
+        positions[instructions] = program.length;
+    }
+
+    /**
+     * @return The word of the program in version 2 an instruction starts at, or the length of the
+     * program for the instruction after the last one.
+     */
+    public int position(int instruction) {
+
+        return positions[instruction];
+    }
+
+    /**
+     * @return The instruction holding a word of the program in version 2, or -1 for the first word.
+     */
+    public int instructionAt(int word) {
+
+        int instruction = Arrays.binarySearch(positions, word);
+
+        return instruction >= 0 ? Math.min(instruction, length - 1) : -instruction - 2;
+    }
+
+    /**
+     * @return The instruction identifier of an instruction.
+     */
+    public int opcode(int instruction) {
+
+        return opcodes[instruction];
+    }
+
+    /**
+     * @return The amount of arguments of an instruction.
+     */
+    public int operandCount(int instruction) {
+
+        return operandCounts[instruction];
+    }
+
+    /**
+     * @return The kind of an argument of an instruction.
+     */
+    public int operandKind(int instruction, int argument) {
+
+        return operandKinds[operandOffsets[instruction] + argument];
+    }
+
+    /**
+     * @return The value of an argument of an instruction.
+     */
+    public int operandValue(int instruction, int argument) {
+
+        return operandValues[operandOffsets[instruction] + argument];
+    }
+
+    /**
+     * @return The amount of words of the version 2 instruction starting at the given word.
+     *
+     * @throws RuntimeException If the instruction is malformed.
+     */
+    private static int size(int[] program, int word) throws RuntimeException {
+
+        int amountOfArguments = ProgramFormat.amountOfArguments(program[word]);
+        int size = 1 + ProgramFormat.extensions(amountOfArguments) + amountOfArguments;
+
+        if (word + size > program.length) {
+
+            throw new RuntimeException("Malformed instruction at word " + word + ".");
+        }
+
+        for (int i = 0; i < amountOfArguments; i++) {
+
+            if (ProgramFormat.mode(program, word, i) > ProgramFormat.STACK) {
+
+                throw new RuntimeException("Invalid addressing mode at word " + word + ".");
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The kind of the argument at the given position in an instruction.
+     */
+    private static int kindOf(int opcode, int position, int value, boolean retrieveFromMemory, boolean register) {
+
+        if (register && value == CPU.PUSH_POP) {
+
+            return position == 0 ? PUSH : POP;
+        }
+
+        if (register && value == CPU.PEEK && retrieveFromMemory) {
+
+            return PEEK;
+        }
+
+        if (retrieveFromMemory) {
+
+            return register ? INDIRECT : MEMORY;
+        }
+
+        if (register) {
+
+            return REGISTER;
+        }
+
+        if (position == 0 && opcode != CPU.HDP && opcode != CPU.HRT && opcode != CPU.JSR && !CPU.isBlock(opcode) && !CPU.isVector(opcode) && !CPU.isFrame(opcode) && !CPU.isInterrupt(opcode)) {
+
+            return INVALID;
+        }
+
+        return IMMEDIATE;
+    }
+}
@@ -0,0 +1,115 @@
+package io.simengangstad.github.cpu;
+
+/**
+ * The floating point instructions, on words holding the bits of an IEEE 754 single precision float.
+ *
+ * Every engine goes through these methods, compiled code included, so that every engine gives the
+ * same words. Results are converted back with {@link Float#floatToIntBits(float)}, which gives
+ * every NaN the same bits, as the bits of a NaN from arithmetic may differ between hosts.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Floats {
+
+    /**
+     * Results of {@link #compare(int, int)}.
+     */
+    public static final int
+
+            LESS            = -0x1,
+            EQUAL           = 0x0,
+            GREATER         = 0x1,
+            UNORDERED       = 0x2;
+
+    private Floats() {
+
+    }
+
+    public static int add(int a, int b) {
+
+        return bits(value(a) + value(b));
+    }
+
+    public static int subtract(int a, int b) {
+
+        return bits(value(a) - value(b));
+    }
+
+    public static int multiply(int a, int b) {
+
+        return bits(value(a) * value(b));
+    }
+
+    public static int divide(int a, int b) {
+
+        return bits(value(a) / value(b));
+    }
+
+    /**
+     * @return The square root. Rounding the square root in double precision to a float gives the
+     * correctly rounded result.
+     */
+    public static int squareRoot(int a) {
+
+        return bits((float) Math.sqrt(value(a)));
+    }
+
+    /**
+     * @return The float nearest to a signed integer.
+     */
+    public static int fromInteger(int a) {
+
+        return bits((float) a);
+    }
+
+    /**
+     * @return The signed integer of a float rounded towards zero, the least or greatest integer if
+     * it's outside them, or 0 for NaN.
+     */
+    public static int toInteger(int a) {
+
+        return (int) value(a);
+    }
+
+    /**
+     * @return {@link #LESS}, {@link #EQUAL} or {@link #GREATER}, or {@link #UNORDERED} if either is
+     * NaN. Zero and negative zero are equal.
+     */
+    public static int compare(int a, int b) {
+
+        float x = value(a), y = value(b);
+
+        return x < y ? LESS : x > y ? GREATER : x == y ? EQUAL : UNORDERED;
+    }
+
+    /**
+     * @return The result of a floating point instruction other than FCMP.
+     *
+     * @throws IllegalArgumentException If the instruction isn't one of them.
+     */
+    static int apply(int instruction, int a, int b) throws IllegalArgumentException {
+
+        switch (instruction) {
+
+            case CPU.FADD:  return add(a, b);
+            case CPU.FSUB:  return subtract(a, b);
+            case CPU.FMUL:  return multiply(a, b);
+            case CPU.FDIV:  return divide(a, b);
+            case CPU.FSQRT: return squareRoot(b);
+            case CPU.ITOF:  return fromInteger(b);
+            case CPU.FTOI:  return toInteger(b);
+            default:        throw new IllegalArgumentException("Invalid instruction: " + "'" + instruction + "'.");
+        }
+    }
+
+    private static float value(int word) {
+
+        return Float.intBitsToFloat(word);
+    }
+
+    private static int bits(float value) {
+
+        return Float.floatToIntBits(value);
+    }
+}
@@ -0,0 +1,231 @@
+package io.simengangstad.github.cpu;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The interrupt controller of a CPU, through which hardware gets the attention of a program instead
+ * of being polled.
+ *
+ * A line is raised by setting its bit in a bitmap of pending lines, which any thread can do without
+ * locking. The CPU checks the bitmap between instructions, and takes the lowest pending line which
+ * isn't masked: it pushes PC and continues at the handler the program has put in the vector table
+ * for the line. Further lines stay pending until the handler returns with IRET. A CPU halted by HLT
+ * is woken by the next line raised, see {@link CPU.Status#HALTED}.
+ *
+ * The cores of a {@link Lockstep} defer the lines raised by hardware to the next barrier, see
+ * {@link #deliver()}, so that they're taken at the same instruction on every run.
+ *
+ * Usage:
+ *
+ *      cpu.load(program);
+ *
+ *      // From any thread
+ *      cpu.getInterruptController().raise(3);
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class InterruptController {
+
+    /**
+     * The amount of lines.
+     */
+    public static final int LINES = 0x20;
+
+    /**
+     * The lines which are raised and not yet taken, one bit each.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * The lines raised by hardware which aren't delivered yet, if deferred.
+     */
+    private final AtomicInteger incoming = new AtomicInteger();
+
+    /**
+     * If lines raised by hardware are only pending once delivered. Set before the CPU is used.
+     */
+    boolean deferred = false;
+
+    /**
+     * The lines the program takes, one bit each. Written by the CPU only.
+     */
+    int mask = 0;
+
+    /**
+     * The address of the vector table, which holds the handler of every line. Written by the CPU only.
+     */
+    int vectorTable = 0;
+
+    /**
+     * If the CPU is executing a handler. Written by the CPU only.
+     */
+    boolean inService = false;
+
+    /**
+     * Run once by the next raised line, to wake a halted CPU.
+     */
+    private final AtomicReference<Runnable> wakeUp = new AtomicReference<>();
+
+    /**
+     * Raises a line. The line stays pending until the CPU takes it, and raising a pending line again
+     * does nothing. If deferred, the line is pending from the next delivery.
+     *
+     * @param line The line, from 0 to {@link #LINES} - 1.
+     */
+    public void raise(int line) {
+
+        if (line < 0 || line >= LINES) {
+
+            throw new IllegalArgumentException("Invalid line: " + "'" + line + "'.");
+        }
+
+        set(deferred ? incoming : pending, 1 << line);
+
+        Runnable action = wakeUp.getAndSet(null);
+
+        if (action != null) {
+
+            action.run();
+        }
+    }
+
+    /**
+     * Raises a line from the program executed by the CPU (INT), which is pending at once, as it's
+     * raised at the same instruction on every run.
+     */
+    void raiseFromProgram(int line) {
+
+        set(pending, 1 << line);
+    }
+
+    /**
+     * Makes the deferred lines pending. Done by a {@link Lockstep} at every barrier.
+     */
+    void deliver() {
+
+        int lines = incoming.getAndSet(0);
+
+        if (lines != 0) {
+
+            set(pending, lines);
+        }
+    }
+
+    /**
+     * @return The lines which are raised and not yet taken, one bit each, without the deferred lines
+     * which aren't delivered yet.
+     */
+    public int pending() {
+
+        return pending.get();
+    }
+
+    /**
+     * @return If the CPU shall take a line before the next instruction. Only called by the CPU, which
+     * reads the bitmap last, so that it's only read while the program takes interrupts.
+     */
+    boolean isRaised() {
+
+        return mask != 0 && !inService && (pending.get() & mask) != 0;
+    }
+
+    /**
+     * Runs an action once when the next line is raised, or at once if the CPU has a line to take or
+     * a line is waiting to be delivered. Raising a masked line runs it as well, so the CPU has to
+     * check again when woken. Replaces the action given before, if it hasn't run.
+     *
+     * @param action The action, run on the thread raising the line.
+     */
+    void whenRaised(Runnable action) {
+
+        wakeUp.set(action);
+
+        // A line raised before the action was set has to be seen here
+        if ((isRaised() || incoming.get() != 0) && wakeUp.compareAndSet(action, null)) {
+
+            action.run();
+        }
+    }
+
+    /**
+     * Parks the calling thread until the next line is raised, the time has passed or the thread is
+     * interrupted.
+     *
+     * @param nanos The maximum nanoseconds to wait.
+     */
+    void await(long nanos) {
+
+        Thread thread = Thread.currentThread();
+
+        whenRaised(() -> LockSupport.unpark(thread));
+
+        LockSupport.parkNanos(this, nanos);
+    }
+
+    /**
+     * Takes the lowest pending line which isn't masked, if any.
+     *
+     * @return The line.
+     */
+    int acknowledge() {
+
+        int lines, line;
+
+        do {
+
+            lines = pending.get();
+            line = Integer.numberOfTrailingZeros(lines & mask);
+        }
+        while (!pending.compareAndSet(lines, lines & ~(1 << line)));
+
+        inService = true;
+
+        return line;
+    }
+
+    /**
+     * Copies the state of another controller, for a forked CPU.
+     */
+    void copy(InterruptController controller) {
+
+        restore(controller.mask, controller.vectorTable, controller.pending.get(), controller.inService);
+    }
+
+    /**
+     * Sets the state, as saved to a snapshot of the CPU.
+     */
+    void restore(int mask, int vectorTable, int pending, boolean inService) {
+
+        this.mask = mask;
+        this.vectorTable = vectorTable;
+        this.pending.set(pending);
+        this.inService = inService;
+    }
+
+    /**
+     * Masks every line and drops the pending ones, done when the CPU starts executing a program.
+     */
+    void reset() {
+
+        restore(0, 0, 0, false);
+
+        incoming.set(0);
+    }
+
+    /**
+     * Sets bits of a bitmap without locking.
+     */
+    private static void set(AtomicInteger bitmap, int bits) {
+
+        int lines;
+
+        do {
+
+            lines = bitmap.get();
+        }
+        while ((lines & bits) != bits && !bitmap.compareAndSet(lines, lines | bits));
+    }
+}
@@ -0,0 +1,350 @@
+package io.simengangstad.github.cpu;
+
+import io.simengangstad.github.cpu.exception.CpuFault;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Several cores executing a program over one shared memory in lockstep, so that a parallel program
+ * behaves the same on every run, whatever the host does with the threads. Concurrency bugs can then
+ * be replayed exactly.
+ *
+ * The cores advance in quanta of instructions on a fork-join pool, with a barrier between quanta.
+ * During a quantum every core works on its own fork of the memory, and sees only its own writes.
+ * At the barrier the words every core changed are written to the memory in order of the cores, so
+ * that a later core wins where two cores wrote the same word.
+ *
+ * Atomic instructions and instructions addressing hardware are seen by other cores or hardware at
+ * once, so a core stops before them during a quantum. At the barrier, once the memory is written,
+ * every stopped core executes its instruction on the memory, in order of the cores. A core thus
+ * executes at most one such instruction per quantum.
+ *
+ * Interrupt lines raised by hardware are delivered at the barrier, in order of the cores, so that
+ * every core takes them at the start of a quantum, see {@link InterruptController#deliver()}. A
+ * halted core sits out quanta until it has a line to take, and while every core is halted or
+ * finished the thread is parked until hardware raises a line.
+ *
+ * The cores have cycle counted clocks, so that the time is the same on every run, see
+ * {@link CPU#setClock(Clock)}. Compiled code checks the quantum at loop headers, so a JIT core may
+ * run past it by up to {@link Clock#BATCH} instructions, the same amount on every run.
+ *
+ * Usage:
+ *
+ *      Lockstep lockstep = new Lockstep(CPU.Engine.JIT, new PagedMemory(0x100000), 4);
+ *
+ *      lockstep.execute(program);
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Lockstep {
+
+    /**
+     * The default amount of instructions every core executes between barriers.
+     */
+    public static final long DEFAULT_QUANTUM = 0x10000;
+
+    /**
+     * The frequency of the clocks of the cores.
+     */
+    public static final long FREQUENCY = 1000000;
+
+    /**
+     * The memory shared by the cores.
+     */
+    private final PagedMemory memory;
+
+    /**
+     * The cores.
+     */
+    private final CPU[] cores;
+
+    /**
+     * The amount of instructions every core executes between barriers.
+     */
+    private final long quantum;
+
+    /**
+     * The threads executing the cores during a quantum.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Initializes the cores with the default stack size and quantum, executed on the common pool.
+     *
+     * @param engine The engine executing the program on every core.
+     * @param memory The memory shared by the cores.
+     * @param cores The amount of cores.
+     */
+    public Lockstep(CPU.Engine engine, PagedMemory memory, int cores) {
+
+        this(engine, memory, cores, Multicore.DEFAULT_STACK_SIZE, DEFAULT_QUANTUM, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes the cores.
+     *
+     * @param engine The engine executing the program on every core.
+     * @param memory The memory shared by the cores, which is paged so that forking it every quantum
+     *               is cheap.
+     * @param cores The amount of cores.
+     * @param stackSize The amount of words of the stack of every core.
+     * @param quantum The amount of instructions every core executes between barriers.
+     * @param pool The threads executing the cores during a quantum.
+     */
+    public Lockstep(CPU.Engine engine, PagedMemory memory, int cores, int stackSize, long quantum, ForkJoinPool pool) {
+
+        if (cores <= 0) {
+
+            throw new IllegalArgumentException("Invalid amount of cores: " + "'" + cores + "'.");
+        }
+
+        if (stackSize <= 0 || (long) cores * stackSize > Integer.toUnsignedLong(memory.capasity())) {
+
+            throw new IllegalArgumentException("Invalid stack size: " + "'" + stackSize + "'.");
+        }
+
+        if (quantum <= 0) {
+
+            throw new IllegalArgumentException("Invalid quantum: " + "'" + quantum + "'.");
+        }
+
+        this.memory = memory;
+        this.quantum = quantum;
+        this.pool = pool;
+        this.cores = new CPU[cores];
+
+        for (int core = 0; core < cores; core++) {
+
+            CPU cpu = new CPU(engine, memory);
+
+            cpu.core = core;
+            cpu.stackOffset = core * stackSize;
+            cpu.lockstep = true;
+            cpu.interrupts.deferred = true;
+
+            cpu.setClock(Clock.cycleCounted(FREQUENCY));
+
+            this.cores[core] = cpu;
+        }
+    }
+
+    /**
+     * @return The amount of cores.
+     */
+    public int cores() {
+
+        return cores.length;
+    }
+
+    /**
+     * @return A core, e.g. to inspect its registers after the program has finished.
+     */
+    public CPU core(int core) {
+
+        return cores[core];
+    }
+
+    /**
+     * Attaches hardware to every core. The hardware is only called at barriers, in order of the cores.
+     *
+     * @param location The location to attach the hardware.
+     * @param attachableHardware The hardware.
+     */
+    public void attachHardware(int location, AttachableHardware attachableHardware) {
+
+        for (CPU cpu : cores) {
+
+            cpu.attachHardware(location, attachableHardware);
+        }
+    }
+
+    /**
+     * Detaches hardware from every core.
+     *
+     * @param location The location of the hardware.
+     */
+    public void detachHardware(int location) {
+
+        for (CPU cpu : cores) {
+
+            cpu.detachHardware(location);
+        }
+    }
+
+    /**
+     * Executes a program on every core until every core has finished or a core faults. If the thread
+     * is interrupted the cores stop at the next barrier, with the memory as published there.
+     *
+     * @throws CpuFault The fault of the first core which faulted, by identifier.
+     */
+    public void execute(int[] program) throws CpuFault {
+
+        if (program == null) {
+
+            return;
+        }
+
+        for (CPU cpu : cores) {
+
+            cpu.load(program);
+        }
+
+        CPU.Status[] status = new CPU.Status[cores.length];
+
+        while (!Thread.currentThread().isInterrupted()) {
+
+            for (CPU cpu : cores) {
+
+                cpu.interrupts.deliver();
+            }
+
+            List<Integer> running = new ArrayList<>();
+            boolean halted = false;
+
+            for (int core = 0; core < cores.length; core++) {
+
+                // A halted core has nothing to execute until it has a line to take
+                if (status[core] == CPU.Status.HALTED && !cores[core].interrupts.isRaised()) {
+
+                    halted = true;
+
+                    continue;
+                }
+
+                if (status[core] != CPU.Status.FINISHED) {
+
+                    running.add(core);
+                }
+            }
+
+            if (running.isEmpty()) {
+
+                if (!halted) {
+
+                    return;
+                }
+
+                await(status);
+
+                continue;
+            }
+
+            PagedMemory base = (PagedMemory) memory.fork();
+            List<Callable<CPU.Status>> tasks = new ArrayList<>();
+
+            for (int core : running) {
+
+                CPU cpu = cores[core];
+
+                cpu.memory = memory.fork();
+
+                tasks.add(() -> cpu.run(quantum));
+            }
+
+            // The barrier, after which the writes are published in order of the cores
+            List<Future<CPU.Status>> results = pool.invokeAll(tasks);
+
+            for (int i = 0; i < running.size(); i++) {
+
+                CPU cpu = cores[running.get(i)];
+
+                ((PagedMemory) cpu.memory).publish(base, memory);
+
+                cpu.memory = memory;
+
+                status[running.get(i)] = result(results.get(i));
+            }
+
+            throwFault(status);
+
+            for (int core : running) {
+
+                if (status[core] != CPU.Status.WAITING) {
+
+                    continue;
+                }
+
+                CPU cpu = cores[core];
+
+                cpu.atBarrier = true;
+
+                try {
+
+                    status[core] = cpu.run(1);
+                }
+                finally {
+
+                    cpu.atBarrier = false;
+                }
+            }
+
+            throwFault(status);
+        }
+    }
+
+    /**
+     * Parks the thread while every core which hasn't finished is halted, until a line is raised for
+     * one of them, see {@link InterruptController#whenRaised(Runnable)}. The line is delivered at the
+     * next barrier.
+     */
+    private void await(CPU.Status[] status) {
+
+        Thread thread = Thread.currentThread();
+
+        for (int core = 0; core < cores.length; core++) {
+
+            if (status[core] == CPU.Status.HALTED) {
+
+                cores[core].interrupts.whenRaised(() -> LockSupport.unpark(thread));
+            }
+        }
+
+        LockSupport.park(this);
+    }
+
+    /**
+     * @return The status of a core after a quantum.
+     */
+    private static CPU.Status result(Future<CPU.Status> result) {
+
+        try {
+
+            return result.get();
+        }
+        catch (ExecutionException exception) {
+
+            if (exception.getCause() instanceof RuntimeException) {
+
+                throw (RuntimeException) exception.getCause();
+            }
+
+            throw new RuntimeException(exception.getCause());
+        }
+        catch (InterruptedException exception) {
+
+            // The tasks are done when the barrier is passed
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Throws the fault of the first core which faulted, if any.
+     */
+    private void throwFault(CPU.Status[] status) throws CpuFault {
+
+        for (int core = 0; core < cores.length; core++) {
+
+            if (status[core] == CPU.Status.FAULTED) {
+
+                throw cores[core].getFault();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package io.simengangstad.github.cpu;
 
 import io.simengangstad.github.cpu.exception.AssembleException;
+import io.simengangstad.github.cpu.exception.CpuFault;
 import io.simengangstad.github.cpu.hardware.Monitor;
 
 import java.io.BufferedReader;
@@ -63,7 +64,15 @@ public class Main {
         }
 
         System.out.println();*/
-        cpu.execute(assembledCode);
+        try {
+
+            cpu.execute(assembledCode);
+        }
+        catch (CpuFault fault) {
+
+            System.err.println(fault.getMessage());
+        }
+
         cpu.dumpRegisters();
 
 
@@ -0,0 +1,723 @@
+package io.simengangstad.github.cpu;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Memory held off the heap, either in direct buffers or mapped from an image file, so that large
+ * memories don't add to the work of the garbage collector. Addresses are unsigned, up to a capasity
+ * of 0xffffffff words.
+ *
+ * An image is the words of the memory in little endian. When the memory is mapped from an image the
+ * operating system reads the pages as they're accessed, so that the memory is available right away
+ * no matter its size. A persistent mapping writes changes back to the image, see {@link #force()}.
+ *
+ * Usage:
+ *
+ *      MappedMemory memory = MappedMemory.map(Paths.get("ram.img"), 0x1000000);
+ *      CPU cpu = new CPU(CPU.Engine.JIT, memory);
+ *
+ *      cpu.execute(program);
+ *      memory.force();
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public class MappedMemory extends Memory {
+
+    /**
+     * The largest capasity in words.
+     */
+    public static final long MAXIMUM_CAPASITY = 0xffffffffL;
+
+    /**
+     * Buffers are limited to 2^31 bytes, so the memory is split into chunks of 2^26 words.
+     */
+    private static final int
+
+            CHUNK_SHIFT     = 26,
+            CHUNK_SIZE      = 1 << CHUNK_SHIFT,
+            CHUNK_MASK      = CHUNK_SIZE - 1;
+
+    /**
+     * Used to clear pages.
+     */
+    private static final int[] ZERO = new int[PAGE_SIZE];
+
+    /**
+     * Atomic access to the words of a chunk, indexed by byte.
+     */
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The capasity in words, unsigned.
+     */
+    private final int capasity;
+
+    /**
+     * The words of every chunk.
+     */
+    private final IntBuffer[] chunks;
+
+    /**
+     * The bytes of every chunk, used for atomic operations.
+     */
+    private final ByteBuffer[] buffers;
+
+    /**
+     * The mappings of every chunk if the memory is mapped from a file, otherwise null.
+     */
+    private final MappedByteBuffer[] mappings;
+
+    /**
+     * One bit per page, set if the page has been written to since the last reset.
+     */
+    private final long[] dirtyPages;
+
+    /**
+     * The pages which have been written to since the last reset, as page numbers.
+     */
+    private int[] dirty = new int[0x10];
+
+    private int amountOfDirtyPages = 0;
+
+    /**
+     * If the next reset clears every page, as the baseline was discarded.
+     */
+    private boolean clearAll = false;
+
+    /**
+     * The chunks of the baseline, or null to clear the memory on reset.
+     */
+    private IntBuffer[] baseline;
+
+    /**
+     * Initializes the memory off the heap with a capasity.
+     *
+     * @param words The capasity in words, up to {@link #MAXIMUM_CAPASITY}.
+     */
+    public MappedMemory(long words) {
+
+        this(words, null);
+    }
+
+    private MappedMemory(long words, MappedByteBuffer[] mappings) {
+
+        if (words < 0 || words > MAXIMUM_CAPASITY) {
+
+            throw new IllegalArgumentException("Invalid capasity: " + "'" + words + "'.");
+        }
+
+        this.capasity = (int) words;
+        this.mappings = mappings;
+
+        chunks = new IntBuffer[(int) ((words + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+        buffers = new ByteBuffer[chunks.length];
+
+        for (int i = 0; i < chunks.length; i++) {
+
+            ByteBuffer buffer = mappings == null ? ByteBuffer.allocateDirect(chunkSize(words, i) * 4) : mappings[i];
+
+            buffers[i] = buffer;
+            chunks[i] = buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+
+        dirtyPages = new long[(int) ((((words + PAGE_SIZE - 1) >>> PAGE_SHIFT) + 63) >>> 6)];
+    }
+
+    /**
+     * Maps an image to memory, where every change is written back to the image. The image is created
+     * if it doesn't exist, and grown to the capasity if it's smaller.
+     *
+     * @param file The image.
+     * @param words The capasity in words, up to {@link #MAXIMUM_CAPASITY}.
+     *
+     * @return The memory.
+     *
+     * @throws IOException If the image can't be mapped.
+     */
+    public static MappedMemory map(Path file, long words) throws IOException {
+
+        return map(file, words, FileChannel.MapMode.READ_WRITE, StandardOpenOption.CREATE);
+    }
+
+    /**
+     * Loads an image to memory by mapping it privately, so that the image is read as it's accessed
+     * and changes never reach it. The capasity is the size of the image.
+     *
+     * @param file The image.
+     *
+     * @return The memory.
+     *
+     * @throws IOException If the image can't be mapped.
+     */
+    public static MappedMemory load(Path file) throws IOException {
+
+        return map(file, Files.size(file) / 4, FileChannel.MapMode.PRIVATE);
+    }
+
+    private static MappedMemory map(Path file, long words, FileChannel.MapMode mode, StandardOpenOption... options) throws IOException {
+
+        if (words < 0 || words > MAXIMUM_CAPASITY) {
+
+            throw new IllegalArgumentException("Invalid capasity: " + "'" + words + "'.");
+        }
+
+        MappedByteBuffer[] mappings = new MappedByteBuffer[(int) ((words + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+
+        StandardOpenOption[] openOptions = Arrays.copyOf(options, options.length + 2);
+
+        openOptions[options.length] = StandardOpenOption.READ;
+        openOptions[options.length + 1] = StandardOpenOption.WRITE;
+
+        // The mappings stay valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file, openOptions)) {
+
+            for (int i = 0; i < mappings.length; i++) {
+
+                mappings[i] = channel.map(mode, ((long) i << CHUNK_SHIFT) * 4, chunkSize(words, i) * 4L);
+            }
+        }
+
+        return new MappedMemory(words, mappings);
+    }
+
+    /**
+     * @return The amount of words in a chunk.
+     */
+    private static int chunkSize(long words, int chunk) {
+
+        return (int) Math.min(CHUNK_SIZE, words - ((long) chunk << CHUNK_SHIFT));
+    }
+
+    @Override
+    public int capasity() {
+
+        return capasity;
+    }
+
+    @Override
+    public int get(int address) throws RuntimeException {
+
+        if (Integer.compareUnsigned(address, capasity) >= 0) {
+
+            throw invalidAddress(address);
+        }
+
+        return chunks[address >>> CHUNK_SHIFT].get(address & CHUNK_MASK);
+    }
+
+    @Override
+    public void set(int address, int value) throws RuntimeException {
+
+        if (Integer.compareUnsigned(address, capasity) >= 0) {
+
+            throw invalidAddress(address);
+        }
+
+        int page = address >>> PAGE_SHIFT;
+
+        if ((dirtyPages[page >>> 6] & (1L << page)) == 0) {
+
+            markDirty(page);
+        }
+
+        chunks[address >>> CHUNK_SHIFT].put(address & CHUNK_MASK, value);
+
+        written(address);
+    }
+
+    @Override
+    public int compareAndExchange(int address, int expected, int value) throws RuntimeException {
+
+        int previous = (int) WORDS.compareAndExchange(buffers[address >>> CHUNK_SHIFT], byteIndex(address), expected, value);
+
+        written(address);
+
+        return previous;
+    }
+
+    @Override
+    public int getAndAdd(int address, int delta) throws RuntimeException {
+
+        int previous = (int) WORDS.getAndAdd(buffers[address >>> CHUNK_SHIFT], byteIndex(address), delta);
+
+        written(address);
+
+        return previous;
+    }
+
+    @Override
+    public int getAndSet(int address, int value) throws RuntimeException {
+
+        int previous = (int) WORDS.getAndSet(buffers[address >>> CHUNK_SHIFT], byteIndex(address), value);
+
+        written(address);
+
+        return previous;
+    }
+
+    /**
+     * Checks an address and marks its page as written to ahead of an atomic operation.
+     *
+     * @return The index of the word in the bytes of its chunk.
+     */
+    private int byteIndex(int address) throws RuntimeException {
+
+        if (Integer.compareUnsigned(address, capasity) >= 0) {
+
+            throw invalidAddress(address);
+        }
+
+        int page = address >>> PAGE_SHIFT;
+
+        if ((dirtyPages[page >>> 6] & (1L << page)) == 0) {
+
+            markDirty(page);
+        }
+
+        return (address & CHUNK_MASK) << 2;
+    }
+
+    /**
+     * Marks a page as written to. Synchronized, as cores sharing the memory may mark pages at the
+     * same time.
+     */
+    private synchronized void markDirty(int page) {
+
+        if ((dirtyPages[page >>> 6] & (1L << page)) != 0) {
+
+            return;
+        }
+
+        dirtyPages[page >>> 6] |= 1L << page;
+
+        if (amountOfDirtyPages == dirty.length) {
+
+            dirty = Arrays.copyOf(dirty, dirty.length * 2);
+        }
+
+        dirty[amountOfDirtyPages++] = page;
+    }
+
+    @Override
+    public void copyInto(int sourcePosition, int[] destination, int destinationPosition, int length) {
+
+        if (length < 0 || Integer.toUnsignedLong(sourcePosition) + length > Integer.toUnsignedLong(capasity)) {
+
+            throw invalidAddress(sourcePosition + Math.max(length, 0));
+        }
+
+        while (length > 0) {
+
+            int offset = sourcePosition & CHUNK_MASK;
+            int amount = Math.min(CHUNK_SIZE - offset, length);
+
+            chunks[sourcePosition >>> CHUNK_SHIFT].get(offset, destination, destinationPosition, amount);
+
+            sourcePosition += amount;
+            destinationPosition += amount;
+            length -= amount;
+        }
+    }
+
+    @Override
+    public void copyFrom(int[] source, int sourcePosition, int destinationPosition, int length) throws RuntimeException {
+
+        if (length < 0 || Integer.toUnsignedLong(destinationPosition) + length > Integer.toUnsignedLong(capasity)) {
+
+            throw invalidAddress(destinationPosition + Math.max(length, 0));
+        }
+
+        int address = destinationPosition, words = length;
+
+        while (length > 0) {
+
+            int page = destinationPosition >>> PAGE_SHIFT;
+            int amount = Math.min(PAGE_SIZE - (destinationPosition & PAGE_MASK), length);
+
+            if ((dirtyPages[page >>> 6] & (1L << page)) == 0) {
+
+                markDirty(page);
+            }
+
+            chunks[destinationPosition >>> CHUNK_SHIFT].put(destinationPosition & CHUNK_MASK, source, sourcePosition, amount);
+
+            sourcePosition += amount;
+            destinationPosition += amount;
+            length -= amount;
+        }
+
+        written(address, words);
+    }
+
+    @Override
+    public void copy(int sourcePosition, int destinationPosition, int length) throws RuntimeException {
+
+        evaluateArea(sourcePosition, length);
+        evaluateArea(destinationPosition, length);
+
+        markDirty(destinationPosition, length);
+
+        int[] words = new int[PAGE_SIZE];
+        boolean forwards = Integer.compareUnsigned(destinationPosition, sourcePosition) <= 0;
+
+        // Through an array a page at a time, backwards if an overlapping source would be overwritten
+        for (int remaining = length; remaining > 0; ) {
+
+            int amount = Math.min(PAGE_SIZE, remaining);
+            int offset = forwards ? length - remaining : remaining - amount;
+            int source = sourcePosition + offset, destination = destinationPosition + offset;
+
+            // A piece is cut where it crosses chunks, from its end going forwards and its start going backwards
+            if (forwards) {
+
+                amount = Math.min(amount, Math.min(CHUNK_SIZE - (source & CHUNK_MASK), CHUNK_SIZE - (destination & CHUNK_MASK)));
+            }
+            else {
+
+                int fit = Math.min(((source + amount - 1) & CHUNK_MASK) + 1, ((destination + amount - 1) & CHUNK_MASK) + 1);
+
+                if (fit < amount) {
+
+                    source += amount - fit;
+                    destination += amount - fit;
+                    amount = fit;
+                }
+            }
+
+            chunks[source >>> CHUNK_SHIFT].get(source & CHUNK_MASK, words, 0, amount);
+            chunks[destination >>> CHUNK_SHIFT].put(destination & CHUNK_MASK, words, 0, amount);
+
+            remaining -= amount;
+        }
+
+        written(destinationPosition, length);
+    }
+
+    @Override
+    public void fill(int address, int length, int value) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        markDirty(address, length);
+
+        int[] words = ZERO;
+
+        if (value != 0) {
+
+            words = new int[PAGE_SIZE];
+
+            Arrays.fill(words, value);
+        }
+
+        for (int offset = 0; offset < length; ) {
+
+            int position = address + offset;
+            int amount = Math.min(Math.min(PAGE_SIZE, length - offset), CHUNK_SIZE - (position & CHUNK_MASK));
+
+            chunks[position >>> CHUNK_SHIFT].put(position & CHUNK_MASK, words, 0, amount);
+
+            offset += amount;
+        }
+
+        written(address, length);
+    }
+
+    @Override
+    public int mismatch(int first, int second, int length) throws RuntimeException {
+
+        evaluateArea(first, length);
+        evaluateArea(second, length);
+
+        for (int offset = 0; offset < length; ) {
+
+            int a = first + offset, b = second + offset;
+            int amount = Math.min(length - offset, Math.min(CHUNK_SIZE - (a & CHUNK_MASK), CHUNK_SIZE - (b & CHUNK_MASK)));
+            int index = chunks[a >>> CHUNK_SHIFT].slice(a & CHUNK_MASK, amount).mismatch(chunks[b >>> CHUNK_SHIFT].slice(b & CHUNK_MASK, amount));
+
+            if (index != -1) {
+
+                return offset + index;
+            }
+
+            offset += amount;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int indexOf(int address, int length, int value) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        for (int offset = 0; offset < length; ) {
+
+            int position = address + offset;
+            int start = position & CHUNK_MASK;
+            int amount = Math.min(length - offset, CHUNK_SIZE - start);
+            IntBuffer chunk = chunks[position >>> CHUNK_SHIFT];
+
+            for (int i = start; i < start + amount; i++) {
+
+                if (chunk.get(i) == value) {
+
+                    return offset + i - start;
+                }
+            }
+
+            offset += amount;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void combine(int operation, int destination, int source, int length) throws RuntimeException {
+
+        Vectors.evaluateOperation(operation);
+
+        evaluateArea(destination, length);
+        evaluateArea(source, length);
+
+        long distance = Integer.toUnsignedLong(destination) - Integer.toUnsignedLong(source);
+
+        // A piece is read before it's written, which differs from one word at a time if the source is just behind
+        if (distance > 0 && distance < length) {
+
+            super.combine(operation, destination, source, length);
+
+            return;
+        }
+
+        markDirty(destination, length);
+
+        int[] a = new int[PAGE_SIZE], b = new int[PAGE_SIZE];
+
+        for (int offset = 0; offset < length; ) {
+
+            int d = destination + offset, s = source + offset;
+            int amount = Math.min(Math.min(PAGE_SIZE, length - offset), Math.min(CHUNK_SIZE - (d & CHUNK_MASK), CHUNK_SIZE - (s & CHUNK_MASK)));
+
+            chunks[d >>> CHUNK_SHIFT].get(d & CHUNK_MASK, a, 0, amount);
+            chunks[s >>> CHUNK_SHIFT].get(s & CHUNK_MASK, b, 0, amount);
+
+            Vectors.combine(operation, a, 0, b, 0, amount);
+
+            chunks[d >>> CHUNK_SHIFT].put(d & CHUNK_MASK, a, 0, amount);
+
+            offset += amount;
+        }
+
+        written(destination, length);
+    }
+
+    @Override
+    public int sum(int address, int length) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        int[] words = new int[PAGE_SIZE];
+        int sum = 0;
+
+        for (int offset = 0; offset < length; ) {
+
+            int position = address + offset;
+            int amount = Math.min(Math.min(PAGE_SIZE, length - offset), CHUNK_SIZE - (position & CHUNK_MASK));
+
+            chunks[position >>> CHUNK_SHIFT].get(position & CHUNK_MASK, words, 0, amount);
+
+            sum += Vectors.sum(words, 0, amount);
+            offset += amount;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public int dot(int first, int second, int length) throws RuntimeException {
+
+        evaluateArea(first, length);
+        evaluateArea(second, length);
+
+        int[] a = new int[PAGE_SIZE], b = new int[PAGE_SIZE];
+        int sum = 0;
+
+        for (int offset = 0; offset < length; ) {
+
+            int f = first + offset, s = second + offset;
+            int amount = Math.min(Math.min(PAGE_SIZE, length - offset), Math.min(CHUNK_SIZE - (f & CHUNK_MASK), CHUNK_SIZE - (s & CHUNK_MASK)));
+
+            chunks[f >>> CHUNK_SHIFT].get(f & CHUNK_MASK, a, 0, amount);
+            chunks[s >>> CHUNK_SHIFT].get(s & CHUNK_MASK, b, 0, amount);
+
+            sum += Vectors.dot(a, 0, b, 0, amount);
+            offset += amount;
+        }
+
+        return sum;
+    }
+
+    /**
+     * Marks the pages of a valid area as written to.
+     */
+    private void markDirty(int address, int length) {
+
+        if (length == 0) {
+
+            return;
+        }
+
+        for (long page = Integer.toUnsignedLong(address) >>> PAGE_SHIFT; page <= (Integer.toUnsignedLong(address) + length - 1) >>> PAGE_SHIFT; page++) {
+
+            if ((dirtyPages[(int) (page >>> 6)] & (1L << page)) == 0) {
+
+                markDirty((int) page);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+
+        if (clearAll) {
+
+            for (long page = 0; page < (Integer.toUnsignedLong(capasity) + PAGE_SIZE - 1) >>> PAGE_SHIFT; page++) {
+
+                resetPage((int) page);
+            }
+
+            Arrays.fill(dirtyPages, 0);
+
+            clearAll = false;
+        }
+        else {
+
+            for (int i = 0; i < amountOfDirtyPages; i++) {
+
+                resetPage(dirty[i]);
+
+                dirtyPages[dirty[i] >>> 6] &= ~(1L << dirty[i]);
+            }
+        }
+
+        amountOfDirtyPages = 0;
+    }
+
+    /**
+     * Resets a page to the baseline or to zero.
+     */
+    private void resetPage(int page) {
+
+        int address = page << PAGE_SHIFT;
+        int offset = address & CHUNK_MASK;
+        int length = (int) Math.min(PAGE_SIZE, Integer.toUnsignedLong(capasity) - Integer.toUnsignedLong(address));
+        IntBuffer chunk = chunks[address >>> CHUNK_SHIFT];
+
+        if (baseline == null) {
+
+            chunk.put(offset, ZERO, 0, length);
+        }
+        else {
+
+            chunk.put(offset, baseline[address >>> CHUNK_SHIFT], offset, length);
+        }
+
+        written(address, length);
+    }
+
+    /**
+     * Captures the current contents of the memory as the baseline, which is held off the heap as well.
+     * Costs as much as the capasity.
+     */
+    @Override
+    public void captureBaseline() {
+
+        // New buffers, as forks may share the old ones
+        baseline = new IntBuffer[chunks.length];
+
+        for (int i = 0; i < chunks.length; i++) {
+
+            baseline[i] = ByteBuffer.allocateDirect(chunks[i].capacity() * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            baseline[i].put(0, chunks[i], 0, chunks[i].capacity());
+        }
+
+        Arrays.fill(dirtyPages, 0);
+
+        amountOfDirtyPages = 0;
+        clearAll = false;
+    }
+
+    @Override
+    public void discardBaseline() {
+
+        if (baseline == null) {
+
+            return;
+        }
+
+        baseline = null;
+        clearAll = true;
+    }
+
+    @Override
+    public int dirtyPages() {
+
+        return clearAll ? (int) ((Integer.toUnsignedLong(capasity) + PAGE_SIZE - 1) >>> PAGE_SHIFT) : amountOfDirtyPages;
+    }
+
+    /**
+     * Copies the memory off the heap, also if it's mapped from an image. Costs as much as the capasity.
+     */
+    @Override
+    public Memory fork() {
+
+        MappedMemory memory = new MappedMemory(Integer.toUnsignedLong(capasity));
+
+        for (int i = 0; i < chunks.length; i++) {
+
+            memory.chunks[i].put(0, chunks[i], 0, chunks[i].capacity());
+        }
+
+        System.arraycopy(dirtyPages, 0, memory.dirtyPages, 0, dirtyPages.length);
+
+        memory.dirty = dirty.clone();
+        memory.amountOfDirtyPages = amountOfDirtyPages;
+        memory.clearAll = clearAll;
+        memory.baseline = baseline;
+
+        memory.watchCode(this);
+
+        return memory;
+    }
+
+    /**
+     * Writes the changes to the image if the memory is mapped persistently from one.
+     */
+    public void force() {
+
+        if (mappings == null) {
+
+            return;
+        }
+
+        for (MappedByteBuffer mapping : mappings) {
+
+            if (!mapping.isReadOnly()) {
+
+                mapping.force();
+            }
+        }
+    }
+}
@@ -1,36 +1,73 @@
 package io.simengangstad.github.cpu;
 
-import java.util.Arrays;
-
 /**
- * Memory with arbitrary capasity.
+ * Memory addressed by unsigned 32 bit words.
+ *
+ * The memory keeps track of which pages have been written to since the last reset, so that a reset
+ * only clears those pages. A baseline image can be captured, in which case the written pages are
+ * restored to it instead of being cleared.
+ *
+ * {@link ArrayMemory} holds every word in an array, {@link PagedMemory} only holds the pages that
+ * have been written to and can address up to 0xffffffff words. Memory used to be the array memory
+ * itself; code which constructed it with new Memory(words) uses {@link #of(int)} instead.
+ *
+ * A memory can be shared by several cores, see {@link Multicore}. Reads and writes of different
+ * cores aren't ordered, except by the atomic operations, which are sequentially consistent and order
+ * the reads and writes around them.
+ *
+ * A memory can hold the code a CPU executes, see {@link CPU#load(int[], int)}. The pages holding
+ * code are watched, and every write to them increases the version of the code, so that CPUs find
+ * the pages written to since they decoded the code. Implementations call {@link #written(int)} for
+ * every write.
  *
  * @author simengangstad
  * @since 09.08.14
  */
-public class Memory {
+public abstract class Memory {
 
     /**
-     * The memory.
+     * The amount of words in a page.
      */
-    private final int[] ram;
+    public static final int PAGE_SIZE = 0x100;
+
+    static final int
+
+            PAGE_SHIFT  = 8,
+            PAGE_MASK   = PAGE_SIZE - 1;
 
     /**
-     * Initializes the memory with a capasity.
+     * The first page holding code.
      */
-    public Memory(int words) {
+    private int firstCodePage;
 
-        ram = new int[words];
-    }
+    /**
+     * The version of the code when every page from the first page holding code was last written to,
+     * or null if the memory holds no code.
+     */
+    private int[] codePages;
 
     /**
-     * @return The capasity in words of the memory.
+     * The version of the code, increased every time a page holding code is written to.
+     */
+    volatile int codeVersion;
+
+    /**
+     * Creates the default memory, which holds every word in an array.
+     *
+     * @param words The capasity in words.
+     *
+     * @return The memory.
      */
-    public int capasity() {
+    public static Memory of(int words) {
 
-        return ram.length;
+        return new ArrayMemory(words);
     }
 
+    /**
+     * @return The capasity in words of the memory, unsigned.
+     */
+    public abstract int capasity();
+
     /**
      * @param address The address to the value.
      *
@@ -38,36 +75,64 @@ public class Memory {
      *
      * @throws RuntimeException If the address is invalid.
      */
-    public int get(int address) throws RuntimeException {
+    public abstract int get(int address) throws RuntimeException;
+
+    /**
+     * Sets the value at the given address.
+     *
+     * @throws RuntimeException If the address is invalid.
+     */
+    public abstract void set(int address, int value) throws RuntimeException;
+
+    /**
+     * Sets the value at the given address to a new value if it holds the expected value, atomically.
+     *
+     * @return The value the address held.
+     *
+     * @throws RuntimeException If the address is invalid.
+     */
+    public synchronized int compareAndExchange(int address, int expected, int value) throws RuntimeException {
 
-        evaluateAddress(address);
+        int previous = get(address);
 
-        return ram[address];
+        if (previous == expected) {
+
+            set(address, value);
+        }
+
+        return previous;
     }
 
     /**
-     * Sets the value at the given address.
+     * Adds to the value at the given address atomically, wrapping around on overflow.
+     *
+     * @return The value the address held.
      *
      * @throws RuntimeException If the address is invalid.
      */
-    public void set(int address, int value) throws RuntimeException {
+    public synchronized int getAndAdd(int address, int delta) throws RuntimeException {
+
+        int previous = get(address);
 
-        evaluateAddress(address);
+        set(address, previous + delta);
 
-        ram[address] = value;
+        return previous;
     }
 
     /**
-     * Checks if the address given is valid.
+     * Sets the value at the given address atomically.
+     *
+     * @return The value the address held.
      *
      * @throws RuntimeException If the address is invalid.
      */
-    private void evaluateAddress(int address) throws RuntimeException {
+    public synchronized int getAndSet(int address, int value) throws RuntimeException {
 
-        if (address < 0 || address >= ram.length) {
+        int previous = get(address);
 
-            throw new RuntimeException("Invalid memory address: " + "'" + address + "'.");
-        }
+        set(address, value);
+
+        return previous;
     }
 
     /**
@@ -80,15 +145,395 @@ public class Memory {
      */
     public void copyInto(int sourcePosition, int[] destination, int destinationPosition, int length) {
 
-        System.arraycopy(ram, sourcePosition, destination, destinationPosition, length);
+        for (int i = 0; i < length; i++) {
+
+            destination[destinationPosition + i] = get(sourcePosition + i);
+        }
+    }
+
+    /**
+     * Copies an array into the memory.
+     *
+     * @param source The source array.
+     * @param sourcePosition The position in the source array where the copy shall begin.
+     * @param destinationPosition The position in memory where the copy shall be placed.
+     * @param length The amount of words that shall be copied.
+     *
+     * @throws RuntimeException If the area in memory is invalid.
+     */
+    public void copyFrom(int[] source, int sourcePosition, int destinationPosition, int length) throws RuntimeException {
+
+        for (int i = 0; i < length; i++) {
+
+            set(destinationPosition + i, source[sourcePosition + i]);
+        }
+    }
+
+    /**
+     * Copies an area of the memory to another. The areas may overlap, in which case the words are
+     * copied as if through a temporary array.
+     *
+     * @param sourcePosition The position in memory where the copy shall begin.
+     * @param destinationPosition The position in memory where the copy shall be placed.
+     * @param length The amount of words that shall be copied.
+     *
+     * @throws RuntimeException If either area is invalid, in which case nothing is copied.
+     */
+    public void copy(int sourcePosition, int destinationPosition, int length) throws RuntimeException {
+
+        evaluateArea(sourcePosition, length);
+        evaluateArea(destinationPosition, length);
+
+        if (Integer.compareUnsigned(destinationPosition, sourcePosition) <= 0) {
+
+            for (int i = 0; i < length; i++) {
+
+                set(destinationPosition + i, get(sourcePosition + i));
+            }
+        }
+        else {
+
+            for (int i = length - 1; i >= 0; i--) {
+
+                set(destinationPosition + i, get(sourcePosition + i));
+            }
+        }
+    }
+
+    /**
+     * Sets every word of an area to a value.
+     *
+     * @param address The position in memory where the area begins.
+     * @param length The amount of words in the area.
+     * @param value The value.
+     *
+     * @throws RuntimeException If the area is invalid, in which case nothing is set.
+     */
+    public void fill(int address, int length, int value) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        for (int i = 0; i < length; i++) {
+
+            set(address + i, value);
+        }
+    }
+
+    /**
+     * Compares two areas of the memory.
+     *
+     * @param first The position in memory where the first area begins.
+     * @param second The position in memory where the second area begins.
+     * @param length The amount of words in each area.
+     *
+     * @return The offset of the first word which differs, or -1 if the areas are equal.
+     *
+     * @throws RuntimeException If either area is invalid.
+     */
+    public int mismatch(int first, int second, int length) throws RuntimeException {
+
+        evaluateArea(first, length);
+        evaluateArea(second, length);
+
+        for (int i = 0; i < length; i++) {
+
+            if (get(first + i) != get(second + i)) {
+
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds a value in an area of the memory.
+     *
+     * @param address The position in memory where the area begins.
+     * @param length The amount of words in the area.
+     * @param value The value.
+     *
+     * @return The offset of the first word holding the value, or -1 if there is none.
+     *
+     * @throws RuntimeException If the area is invalid.
+     */
+    public int indexOf(int address, int length, int value) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        for (int i = 0; i < length; i++) {
+
+            if (get(address + i) == value) {
+
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Combines every word of an area with the word at the same offset of another area, see
+     * {@link Vectors}. The words are combined in ascending order, so that areas which overlap give
+     * the same result as combining them one word at a time.
+     *
+     * @param operation The operation, e.g. {@link Vectors#ADD}.
+     * @param destination The position in memory where the area written to begins.
+     * @param source The position in memory where the other area begins.
+     * @param length The amount of words in each area.
+     *
+     * @throws RuntimeException If either area or the operation is invalid, in which case nothing is
+     * written.
+     */
+    public void combine(int operation, int destination, int source, int length) throws RuntimeException {
+
+        Vectors.evaluateOperation(operation);
+
+        evaluateArea(destination, length);
+        evaluateArea(source, length);
+
+        for (int i = 0; i < length; i++) {
+
+            set(destination + i, Vectors.apply(operation, get(destination + i), get(source + i)));
+        }
+    }
+
+    /**
+     * @param address The position in memory where the area begins.
+     * @param length The amount of words in the area.
+     *
+     * @return The sum of the words of an area, wrapped around.
+     *
+     * @throws RuntimeException If the area is invalid.
+     */
+    public int sum(int address, int length) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        int sum = 0;
+
+        for (int i = 0; i < length; i++) {
+
+            sum += get(address + i);
+        }
+
+        return sum;
+    }
+
+    /**
+     * @param first The position in memory where the first area begins.
+     * @param second The position in memory where the second area begins.
+     * @param length The amount of words in each area.
+     *
+     * @return The sum of the products of the words at the same offset of two areas, wrapped around.
+     *
+     * @throws RuntimeException If either area is invalid.
+     */
+    public int dot(int first, int second, int length) throws RuntimeException {
+
+        evaluateArea(first, length);
+        evaluateArea(second, length);
+
+        int sum = 0;
+
+        for (int i = 0; i < length; i++) {
+
+            sum += get(first + i) * get(second + i);
+        }
+
+        return sum;
+    }
+
+    /**
+     * Checks that an area lies within the memory.
+     *
+     * @throws RuntimeException If the area is invalid.
+     */
+    final void evaluateArea(int address, int length) throws RuntimeException {
+
+        if (length < 0 || Integer.toUnsignedLong(address) + length > Integer.toUnsignedLong(capasity())) {
+
+            throw invalidAddress(address + Math.max(length, 0));
+        }
+    }
+
+    /**
+     * @return The first page from the given one which may hold other values than zero, or -1 if
+     * there is none. Lets memories skip the parts which have never been written to.
+     */
+    int nextPage(int page) {
+
+        return Integer.toUnsignedLong(page) < (Integer.toUnsignedLong(capasity()) + PAGE_SIZE - 1) >>> PAGE_SHIFT ? page : -1;
+    }
+
+    /**
+     * Resets the pages which have been written to since the last reset, either to the baseline or
+     * to zero. Costs as much as the amount of written pages, not the capasity.
+     */
+    public abstract void reset();
+
+    /**
+     * Captures the current contents of the memory as the baseline, which the memory is restored to
+     * on reset from now on.
+     */
+    public abstract void captureBaseline();
+
+    /**
+     * Discards the baseline, so that the memory is cleared to zero on reset.
+     */
+    public abstract void discardBaseline();
+
+    /**
+     * @return The amount of pages which have been written to since the last reset.
+     */
+    public abstract int dirtyPages();
+
+    /**
+     * Forks the memory. The fork has the same contents, baseline and written pages, and changes to
+     * either memory afterwards aren't seen by the other. Where the memory supports it, pages are
+     * shared until either writes to them.
+     *
+     * @return The fork.
+     */
+    public abstract Memory fork();
+
+    /**
+     * Watches the pages of an area holding code. Pages stay watched for the lifetime of the memory.
+     */
+    synchronized void watchCode(int address, int length) {
+
+        if (length <= 0) {
+
+            return;
+        }
+
+        int first = address >>> PAGE_SHIFT, last = (int) ((Integer.toUnsignedLong(address) + length - 1) >>> PAGE_SHIFT);
+
+        if (codePages != null) {
+
+            int previousLast = firstCodePage + codePages.length - 1;
+
+            first = Math.min(first, firstCodePage);
+            last = Math.max(last, previousLast);
+
+            int[] pages = new int[last - first + 1];
+
+            System.arraycopy(codePages, 0, pages, firstCodePage - first, codePages.length);
+
+            codePages = pages;
+        }
+        else {
+
+            codePages = new int[last - first + 1];
+        }
+
+        firstCodePage = first;
+    }
+
+    /**
+     * Watches the same pages as another memory, with the same versions, e.g. for forks.
+     */
+    final void watchCode(Memory memory) {
+
+        synchronized (memory) {
+
+            firstCodePage = memory.firstCodePage;
+            codePages = memory.codePages == null ? null : memory.codePages.clone();
+            codeVersion = memory.codeVersion;
+        }
+    }
+
+    /**
+     * Notes a write to an address, which increases the version of the code if the address holds code.
+     */
+    final void written(int address) {
+
+        int[] pages = codePages;
+
+        if (pages != null && Integer.compareUnsigned((address >>> PAGE_SHIFT) - firstCodePage, pages.length) < 0) {
+
+            modifyCode(address >>> PAGE_SHIFT, address >>> PAGE_SHIFT);
+        }
+    }
+
+    /**
+     * Notes a write to an area.
+     */
+    final void written(int address, int length) {
+
+        int[] pages = codePages;
+
+        if (pages == null || length <= 0) {
+
+            return;
+        }
+
+        int first = Math.max(address >>> PAGE_SHIFT, firstCodePage);
+        int last = (int) Math.min((Integer.toUnsignedLong(address) + length - 1) >>> PAGE_SHIFT, firstCodePage + pages.length - 1);
+
+        if (first <= last) {
+
+            modifyCode(first, last);
+        }
+    }
+
+    private synchronized void modifyCode(int first, int last) {
+
+        int version = codeVersion + 1;
+
+        for (int page = first; page <= last; page++) {
+
+            codePages[page - firstCodePage] = version;
+        }
+
+        codeVersion = version;
+    }
+
+    /**
+     * @return The version of the code when the page of an address was last written to, 0 if it
+     * hasn't been since it was watched.
+     */
+    final int codeVersion(int address) {
+
+        int[] pages = codePages;
+        int page = (address >>> PAGE_SHIFT) - firstCodePage;
+
+        return pages == null || Integer.compareUnsigned(page, pages.length) >= 0 ? 0 : pages[page];
+    }
+
+    /**
+     * Used by compiled code to find out if the code it was compiled from has been written to.
+     *
+     * @param first The first address of the code.
+     * @param last The last address of the code.
+     * @param version The version of the code it was compiled from.
+     *
+     * @return If any page of the code has been written to after the version.
+     */
+    public final boolean codeModified(int first, int last, int version) {
+
+        if (codeVersion == version) {
+
+            return false;
+        }
+
+        for (int page = first >>> PAGE_SHIFT; page <= last >>> PAGE_SHIFT; page++) {
+
+            if (codeVersion(page << PAGE_SHIFT) - version > 0) {
+
+                return true;
+            }
+        }
+
+        return false;
     }
 
     /**
-     * Resets the memory.
+     * @return The exception thrown for an invalid address.
      */
-    public void reset() {
+    static RuntimeException invalidAddress(int address) {
 
-        Arrays.fill(ram, 0);
+        return new RuntimeException("Invalid memory address: " + "'" + address + "'.");
     }
 
     /**
@@ -99,14 +544,14 @@ public class Memory {
      */
     public void dump(int index, int length) {
 
-        if (index < 0 || index + length >= ram.length) {
+        if (index < 0 || length < 0 || Integer.toUnsignedLong(index) + length >= Integer.toUnsignedLong(capasity())) {
 
             throw new RuntimeException("Index and length out of bounds for memory.");
         }
 
         for (int i = index; i < length; i++) {
 
-            System.out.println("0x" + Integer.toHexString(i) + ": 0x"  + Integer.toHexString(ram[i]));
+            System.out.println("0x" + Integer.toHexString(i) + ": 0x"  + Integer.toHexString(get(i)));
         }
     }
 
@@ -115,6 +560,6 @@ public class Memory {
      */
     public void dump() {
 
-        dump(0, ram.length - 1);
+        dump(0, (int) Math.min(Integer.toUnsignedLong(capasity()) - 1, Integer.MAX_VALUE));
     }
 }
@@ -0,0 +1,237 @@
+package io.simengangstad.github.cpu;
+
+import io.simengangstad.github.cpu.exception.CpuFault;
+
+/**
+ * Several cores executing a program over one shared memory, each on its own thread, so that a
+ * parallel program can use as many host cores as it has cores.
+ *
+ * Every core has its own registers, clock and stack. The stack of core n starts n stack sizes below
+ * the end of the memory. A program tells the cores apart by GET 0x2, which retrieves the identifier
+ * of the core, and synchronizes them through the atomic instructions (CAS, XADD and XCHG), see the
+ * specification for the memory model.
+ *
+ * Usage:
+ *
+ *      Multicore multicore = new Multicore(CPU.Engine.JIT, new ArrayMemory(0x100000), 4);
+ *
+ *      multicore.execute(program);
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Multicore {
+
+    /**
+     * The default amount of words of the stack of every core.
+     */
+    public static final int DEFAULT_STACK_SIZE = 0x1000;
+
+    /**
+     * The amount of instructions a core executes between checking if another core has faulted.
+     */
+    private static final long QUANTUM = 0x10000;
+
+    /**
+     * The nanoseconds a halted core sleeps at most before checking if another core has faulted.
+     */
+    private static final long HALT_INTERVAL = 1000000;
+
+    /**
+     * The cores.
+     */
+    private final CPU[] cores;
+
+    /**
+     * Set when a core faults, so that the others stop.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Initializes the cores with the default stack size.
+     *
+     * @param engine The engine executing the program on every core.
+     * @param memory The memory shared by the cores.
+     * @param cores The amount of cores.
+     */
+    public Multicore(CPU.Engine engine, Memory memory, int cores) {
+
+        this(engine, memory, cores, DEFAULT_STACK_SIZE);
+    }
+
+    /**
+     * Initializes the cores.
+     *
+     * @param engine The engine executing the program on every core.
+     * @param memory The memory shared by the cores.
+     * @param cores The amount of cores.
+     * @param stackSize The amount of words of the stack of every core.
+     */
+    public Multicore(CPU.Engine engine, Memory memory, int cores, int stackSize) {
+
+        if (cores <= 0) {
+
+            throw new IllegalArgumentException("Invalid amount of cores: " + "'" + cores + "'.");
+        }
+
+        if (stackSize <= 0 || (long) cores * stackSize > Integer.toUnsignedLong(memory.capasity())) {
+
+            throw new IllegalArgumentException("Invalid stack size: " + "'" + stackSize + "'.");
+        }
+
+        this.cores = new CPU[cores];
+
+        for (int core = 0; core < cores; core++) {
+
+            CPU cpu = new CPU(engine, memory);
+
+            cpu.core = core;
+            cpu.stackOffset = core * stackSize;
+
+            this.cores[core] = cpu;
+        }
+    }
+
+    /**
+     * @return The amount of cores.
+     */
+    public int cores() {
+
+        return cores.length;
+    }
+
+    /**
+     * @return A core, e.g. to inspect its registers after the program has finished.
+     */
+    public CPU core(int core) {
+
+        return cores[core];
+    }
+
+    /**
+     * Attaches hardware to every core. The cores call it one at a time, see {@link AttachableHardware}.
+     *
+     * @param location The location to attach the hardware.
+     * @param attachableHardware The hardware.
+     */
+    public void attachHardware(int location, AttachableHardware attachableHardware) {
+
+        for (CPU cpu : cores) {
+
+            cpu.attachHardware(location, attachableHardware);
+        }
+    }
+
+    /**
+     * Detaches hardware from every core.
+     *
+     * @param location The location of the hardware.
+     */
+    public void detachHardware(int location) {
+
+        for (CPU cpu : cores) {
+
+            cpu.detachHardware(location);
+        }
+    }
+
+    /**
+     * Executes a program on every core and waits until every core has finished. When a core faults
+     * the others are stopped.
+     *
+     * @throws CpuFault The fault of the first core which faulted, by identifier.
+     */
+    public void execute(int[] program) throws CpuFault {
+
+        if (program == null) {
+
+            return;
+        }
+
+        for (CPU cpu : cores) {
+
+            cpu.load(program);
+        }
+
+        stopped = false;
+
+        Thread[] threads = new Thread[cores.length];
+
+        for (int core = 0; core < cores.length; core++) {
+
+            CPU cpu = cores[core];
+
+            threads[core] = new Thread(() -> run(cpu), "cpu-core-" + core);
+            threads[core].setDaemon(true);
+            threads[core].start();
+        }
+
+        boolean interrupted = false;
+
+        for (Thread thread : threads) {
+
+            while (true) {
+
+                try {
+
+                    thread.join();
+
+                    break;
+                }
+                catch (InterruptedException exception) {
+
+                    // The cores stop within a quantum
+                    interrupted = true;
+                    stopped = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+
+            Thread.currentThread().interrupt();
+        }
+
+        for (CPU cpu : cores) {
+
+            if (cpu.getFault() != null) {
+
+                throw cpu.getFault();
+            }
+        }
+    }
+
+    /**
+     * Runs the loaded program on a core until it finishes, faults or another core faults.
+     */
+    private void run(CPU cpu) {
+
+        while (!stopped) {
+
+            switch (cpu.run(QUANTUM)) {
+
+                case FINISHED:
+
+                    return;
+
+                case FAULTED:
+
+                    stopped = true;
+
+                    return;
+
+                case WAITING:
+
+                    Thread.onSpinWait();
+
+                    break;
+
+                case HALTED:
+
+                    cpu.interrupts.await(HALT_INTERVAL);
+
+                    break;
+            }
+        }
+    }
+}
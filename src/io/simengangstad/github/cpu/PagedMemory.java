@@ -0,0 +1,669 @@
+package io.simengangstad.github.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Memory which only holds the pages that have been written to, so that a guest can be given a large
+ * address space while the heap grows with what it touches. Addresses are unsigned, up to a capasity
+ * of 0xffffffff words.
+ *
+ * Pages are found through a directory of tables, each covering {@link #TABLE_SIZE} pages. Pages and
+ * tables which haven't been written to are shared, zeroed ones, and a page is copied the first time
+ * it's written to after a reset. The baseline and forks share their pages with the memory the same
+ * way, so forking costs as much as the amount of tables in use, not the pages.
+ *
+ * Pages are copied one at a time when cores share the memory. A page is published with release
+ * semantics once it's copied, and cores writing to it see it with acquire semantics, so that no
+ * core writes to a shared page.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public class PagedMemory extends Memory {
+
+    /**
+     * The largest capasity in words.
+     */
+    public static final long MAXIMUM_CAPASITY = 0xffffffffL;
+
+    /**
+     * The amount of pages in a table of the directory.
+     */
+    public static final int TABLE_SIZE = 0x1000;
+
+    private static final int
+
+            TABLE_BITS      = 12,
+            TABLE_SHIFT     = PAGE_SHIFT + TABLE_BITS,
+            TABLE_MASK      = TABLE_SIZE - 1;
+
+    /**
+     * The page read wherever nothing has been written.
+     */
+    private static final int[] ZERO = new int[PAGE_SIZE];
+
+    /**
+     * The table read wherever nothing has been written.
+     */
+    private static final int[][] EMPTY = new int[TABLE_SIZE][];
+
+    /**
+     * Atomic access to the words of a page, to the bits of the owned pages and to the bits of a table.
+     */
+    private static final VarHandle
+
+            WORDS   = MethodHandles.arrayElementVarHandle(int[].class),
+            BITS    = MethodHandles.arrayElementVarHandle(long[].class),
+            TABLES  = MethodHandles.arrayElementVarHandle(long[][].class);
+
+    static {
+
+        Arrays.fill(EMPTY, ZERO);
+    }
+
+    /**
+     * The capasity in words, unsigned.
+     */
+    private final int capasity;
+
+    /**
+     * The tables of pages, where the word at an address is:
+     *
+     *      directory[address >>> 20][(address >>> 8) & 0xfff][address & 0xff]
+     */
+    private final int[][][] directory;
+
+    /**
+     * One bit per page of every table, set if the page has been copied for this memory and isn't
+     * shared. Null for tables which are {@link #EMPTY}.
+     */
+    private final long[][] owned;
+
+    /**
+     * One bit per page of every table, set if the page has been written to since the last reset.
+     * Null for tables which are {@link #EMPTY}.
+     */
+    private final long[][] written;
+
+    /**
+     * The pages of the baseline by table, or null to clear the memory on reset.
+     */
+    private int[][][] baseline;
+
+    /**
+     * The pages which have been written to since the last reset, as page numbers.
+     */
+    private int[] dirty = new int[0x10];
+
+    private int amountOfDirtyPages = 0;
+
+    /**
+     * Initializes the memory with a capasity.
+     *
+     * @param words The capasity in words, up to {@link #MAXIMUM_CAPASITY}.
+     */
+    public PagedMemory(long words) {
+
+        if (words < 0 || words > MAXIMUM_CAPASITY) {
+
+            throw new IllegalArgumentException("Invalid capasity: " + "'" + words + "'.");
+        }
+
+        capasity = (int) words;
+
+        int tables = (int) ((words + (1L << TABLE_SHIFT) - 1) >>> TABLE_SHIFT);
+
+        directory = new int[tables][][];
+        owned = new long[tables][];
+        written = new long[tables][];
+
+        Arrays.fill(directory, EMPTY);
+    }
+
+    private PagedMemory(PagedMemory memory) {
+
+        capasity = memory.capasity;
+        directory = memory.directory.clone();
+        owned = new long[directory.length][];
+        written = new long[directory.length][];
+        baseline = memory.baseline;
+        dirty = memory.dirty.clone();
+        amountOfDirtyPages = memory.amountOfDirtyPages;
+
+        watchCode(memory);
+
+        for (int table = 0; table < directory.length; table++) {
+
+            if (memory.owned[table] != null) {
+
+                directory[table] = memory.directory[table].clone();
+                owned[table] = new long[TABLE_SIZE >>> 6];
+                written[table] = memory.written[table].clone();
+
+                // The pages are shared with the fork from now on, and copied when written to
+                Arrays.fill(memory.owned[table], 0);
+            }
+        }
+    }
+
+    @Override
+    public int capasity() {
+
+        return capasity;
+    }
+
+    @Override
+    public int get(int address) throws RuntimeException {
+
+        if (Integer.compareUnsigned(address, capasity) >= 0) {
+
+            throw invalidAddress(address);
+        }
+
+        return directory[address >>> TABLE_SHIFT][(address >>> PAGE_SHIFT) & TABLE_MASK][address & PAGE_MASK];
+    }
+
+    @Override
+    public void set(int address, int value) throws RuntimeException {
+
+        if (Integer.compareUnsigned(address, capasity) >= 0) {
+
+            throw invalidAddress(address);
+        }
+
+        owned(address)[address & PAGE_MASK] = value;
+
+        written(address);
+    }
+
+    @Override
+    public int compareAndExchange(int address, int expected, int value) throws RuntimeException {
+
+        if (Integer.compareUnsigned(address, capasity) >= 0) {
+
+            throw invalidAddress(address);
+        }
+
+        int previous = (int) WORDS.compareAndExchange(owned(address), address & PAGE_MASK, expected, value);
+
+        written(address);
+
+        return previous;
+    }
+
+    @Override
+    public int getAndAdd(int address, int delta) throws RuntimeException {
+
+        if (Integer.compareUnsigned(address, capasity) >= 0) {
+
+            throw invalidAddress(address);
+        }
+
+        int previous = (int) WORDS.getAndAdd(owned(address), address & PAGE_MASK, delta);
+
+        written(address);
+
+        return previous;
+    }
+
+    @Override
+    public int getAndSet(int address, int value) throws RuntimeException {
+
+        if (Integer.compareUnsigned(address, capasity) >= 0) {
+
+            throw invalidAddress(address);
+        }
+
+        int previous = (int) WORDS.getAndSet(owned(address), address & PAGE_MASK, value);
+
+        written(address);
+
+        return previous;
+    }
+
+    /**
+     * @return The page of a valid address, copied first if it's shared or zeroed.
+     */
+    private int[] owned(int address) {
+
+        int table = address >>> TABLE_SHIFT, page = (address >>> PAGE_SHIFT) & TABLE_MASK;
+        long[] pages = (long[]) TABLES.getAcquire(owned, table);
+
+        if (pages == null || ((long) BITS.getAcquire(pages, page >>> 6) & (1L << page)) == 0) {
+
+            own(table, page);
+        }
+
+        return directory[table][page];
+    }
+
+    /**
+     * Copies a page, which is shared or zeroed, so that it can be written to. Synchronized, as cores
+     * sharing the memory may write to the same page at the same time.
+     */
+    private synchronized void own(int table, int page) {
+
+        if (owned[table] == null) {
+
+            directory[table] = EMPTY.clone();
+            written[table] = new long[TABLE_SIZE >>> 6];
+
+            TABLES.setRelease(owned, table, new long[TABLE_SIZE >>> 6]);
+        }
+        else if ((owned[table][page >>> 6] & (1L << page)) != 0) {
+
+            return;
+        }
+
+        directory[table][page] = directory[table][page].clone();
+
+        BITS.setRelease(owned[table], page >>> 6, owned[table][page >>> 6] | (1L << page));
+
+        if ((written[table][page >>> 6] & (1L << page)) != 0) {
+
+            return;
+        }
+
+        written[table][page >>> 6] |= 1L << page;
+
+        if (amountOfDirtyPages == dirty.length) {
+
+            dirty = Arrays.copyOf(dirty, dirty.length * 2);
+        }
+
+        dirty[amountOfDirtyPages++] = (table << TABLE_BITS) | page;
+    }
+
+    @Override
+    public void copyInto(int sourcePosition, int[] destination, int destinationPosition, int length) {
+
+        if (length < 0 || Integer.toUnsignedLong(sourcePosition) + length > Integer.toUnsignedLong(capasity)) {
+
+            throw invalidAddress(sourcePosition + Math.max(length, 0));
+        }
+
+        while (length > 0) {
+
+            int offset = sourcePosition & PAGE_MASK;
+            int amount = Math.min(PAGE_SIZE - offset, length);
+
+            System.arraycopy(directory[sourcePosition >>> TABLE_SHIFT][(sourcePosition >>> PAGE_SHIFT) & TABLE_MASK], offset, destination, destinationPosition, amount);
+
+            sourcePosition += amount;
+            destinationPosition += amount;
+            length -= amount;
+        }
+    }
+
+    @Override
+    public void copyFrom(int[] source, int sourcePosition, int destinationPosition, int length) throws RuntimeException {
+
+        if (length < 0 || Integer.toUnsignedLong(destinationPosition) + length > Integer.toUnsignedLong(capasity)) {
+
+            throw invalidAddress(destinationPosition + Math.max(length, 0));
+        }
+
+        int address = destinationPosition, words = length;
+
+        while (length > 0) {
+
+            int offset = destinationPosition & PAGE_MASK;
+            int amount = Math.min(PAGE_SIZE - offset, length);
+
+            System.arraycopy(source, sourcePosition, owned(destinationPosition), offset, amount);
+
+            sourcePosition += amount;
+            destinationPosition += amount;
+            length -= amount;
+        }
+
+        written(address, words);
+    }
+
+    @Override
+    public void copy(int sourcePosition, int destinationPosition, int length) throws RuntimeException {
+
+        evaluateArea(sourcePosition, length);
+        evaluateArea(destinationPosition, length);
+
+        int address = destinationPosition, words = length;
+
+        if (Integer.compareUnsigned(destinationPosition, sourcePosition) <= 0) {
+
+            while (length > 0) {
+
+                int amount = Math.min(Math.min(PAGE_SIZE - (sourcePosition & PAGE_MASK), PAGE_SIZE - (destinationPosition & PAGE_MASK)), length);
+
+                // The destination is owned first, as the source may be on the same page
+                int[] destination = owned(destinationPosition);
+
+                System.arraycopy(page(sourcePosition), sourcePosition & PAGE_MASK, destination, destinationPosition & PAGE_MASK, amount);
+
+                sourcePosition += amount;
+                destinationPosition += amount;
+                length -= amount;
+            }
+        }
+        else {
+
+            // Backwards, so that an overlapping source is read before it's overwritten
+            while (length > 0) {
+
+                int sourceEnd = sourcePosition + length - 1, destinationEnd = destinationPosition + length - 1;
+                int amount = Math.min(Math.min((sourceEnd & PAGE_MASK) + 1, (destinationEnd & PAGE_MASK) + 1), length);
+
+                int[] destination = owned(destinationEnd);
+
+                System.arraycopy(page(sourceEnd), (sourceEnd & PAGE_MASK) - amount + 1, destination, (destinationEnd & PAGE_MASK) - amount + 1, amount);
+
+                length -= amount;
+            }
+        }
+
+        written(address, words);
+    }
+
+    @Override
+    public void fill(int address, int length, int value) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        int from = address, words = length;
+
+        while (length > 0) {
+
+            int offset = address & PAGE_MASK;
+            int amount = Math.min(PAGE_SIZE - offset, length);
+
+            // Zeroed pages stay shared when cleared
+            if (value != 0 || page(address) != ZERO) {
+
+                Arrays.fill(owned(address), offset, offset + amount, value);
+            }
+
+            address += amount;
+            length -= amount;
+        }
+
+        written(from, words);
+    }
+
+    @Override
+    public int mismatch(int first, int second, int length) throws RuntimeException {
+
+        evaluateArea(first, length);
+        evaluateArea(second, length);
+
+        for (int offset = 0; offset < length; ) {
+
+            int amount = Math.min(Math.min(PAGE_SIZE - (first & PAGE_MASK), PAGE_SIZE - (second & PAGE_MASK)), length - offset);
+            int[] a = page(first), b = page(second);
+
+            if (a != b || (first & PAGE_MASK) != (second & PAGE_MASK)) {
+
+                int index = Arrays.mismatch(a, first & PAGE_MASK, (first & PAGE_MASK) + amount, b, second & PAGE_MASK, (second & PAGE_MASK) + amount);
+
+                if (index != -1) {
+
+                    return offset + index;
+                }
+            }
+
+            first += amount;
+            second += amount;
+            offset += amount;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int indexOf(int address, int length, int value) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        for (int offset = 0; offset < length; ) {
+
+            int start = address & PAGE_MASK;
+            int amount = Math.min(PAGE_SIZE - start, length - offset);
+            int[] words = page(address);
+
+            if (words != ZERO || value == 0) {
+
+                for (int i = start; i < start + amount; i++) {
+
+                    if (words[i] == value) {
+
+                        return offset + i - start;
+                    }
+                }
+            }
+
+            address += amount;
+            offset += amount;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void combine(int operation, int destination, int source, int length) throws RuntimeException {
+
+        Vectors.evaluateOperation(operation);
+
+        evaluateArea(destination, length);
+        evaluateArea(source, length);
+
+        int address = destination, words = length;
+
+        while (length > 0) {
+
+            int amount = Math.min(Math.min(PAGE_SIZE - (source & PAGE_MASK), PAGE_SIZE - (destination & PAGE_MASK)), length);
+
+            // The destination is owned first, so that the source is read from the page written to
+            int[] page = owned(destination);
+
+            Vectors.combine(operation, page, destination & PAGE_MASK, page(source), source & PAGE_MASK, amount);
+
+            source += amount;
+            destination += amount;
+            length -= amount;
+        }
+
+        written(address, words);
+    }
+
+    @Override
+    public int sum(int address, int length) throws RuntimeException {
+
+        evaluateArea(address, length);
+
+        int sum = 0;
+
+        while (length > 0) {
+
+            int amount = Math.min(PAGE_SIZE - (address & PAGE_MASK), length);
+            int[] page = page(address);
+
+            if (page != ZERO) {
+
+                sum += Vectors.sum(page, address & PAGE_MASK, amount);
+            }
+
+            address += amount;
+            length -= amount;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public int dot(int first, int second, int length) throws RuntimeException {
+
+        evaluateArea(first, length);
+        evaluateArea(second, length);
+
+        int sum = 0;
+
+        while (length > 0) {
+
+            int amount = Math.min(Math.min(PAGE_SIZE - (first & PAGE_MASK), PAGE_SIZE - (second & PAGE_MASK)), length);
+            int[] a = page(first), b = page(second);
+
+            if (a != ZERO && b != ZERO) {
+
+                sum += Vectors.dot(a, first & PAGE_MASK, b, second & PAGE_MASK, amount);
+            }
+
+            first += amount;
+            second += amount;
+            length -= amount;
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return The page of a valid address, which may be shared or zeroed.
+     */
+    private int[] page(int address) {
+
+        return directory[address >>> TABLE_SHIFT][(address >>> PAGE_SHIFT) & TABLE_MASK];
+    }
+
+    @Override
+    int nextPage(int page) {
+
+        for (int table = page >>> TABLE_BITS; table < directory.length; table++, page = table << TABLE_BITS) {
+
+            if (directory[table] == EMPTY) {
+
+                continue;
+            }
+
+            for (; page >>> TABLE_BITS == table; page++) {
+
+                if (directory[table][page & TABLE_MASK] != ZERO) {
+
+                    return page;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void reset() {
+
+        for (int i = 0; i < amountOfDirtyPages; i++) {
+
+            int table = dirty[i] >>> TABLE_BITS, page = dirty[i] & TABLE_MASK;
+
+            directory[table][page] = baseline == null || baseline[table] == null ? ZERO : baseline[table][page];
+            owned[table][page >>> 6] &= ~(1L << page);
+            written[table][page >>> 6] &= ~(1L << page);
+            written((table << TABLE_SHIFT) | (page << PAGE_SHIFT), PAGE_SIZE);
+        }
+
+        amountOfDirtyPages = 0;
+    }
+
+    @Override
+    public void captureBaseline() {
+
+        baseline = new int[directory.length][][];
+
+        for (int table = 0; table < directory.length; table++) {
+
+            if (owned[table] != null) {
+
+                baseline[table] = directory[table].clone();
+
+                // The pages are shared with the baseline from now on, and copied when written to
+                Arrays.fill(owned[table], 0);
+                Arrays.fill(written[table], 0);
+            }
+        }
+
+        amountOfDirtyPages = 0;
+    }
+
+    @Override
+    public void discardBaseline() {
+
+        if (baseline == null) {
+
+            return;
+        }
+
+        // The pages still shared with the baseline have to be cleared by the next reset
+        for (int table = 0; table < directory.length; table++) {
+
+            if (baseline[table] == null) {
+
+                continue;
+            }
+
+            for (int page = 0; page < TABLE_SIZE; page++) {
+
+                if (baseline[table][page] != ZERO && (owned[table][page >>> 6] & (1L << page)) == 0) {
+
+                    own(table, page);
+                }
+            }
+        }
+
+        baseline = null;
+    }
+
+    /**
+     * Writes the words which differ from a base to another memory, for the pages written to since
+     * this memory was forked from the base. Used by {@link Lockstep} to publish the writes of a core.
+     *
+     * @param base The memory this memory was forked from, or a fork taken at the same time.
+     * @param target The memory the words are written to.
+     */
+    void publish(PagedMemory base, Memory target) {
+
+        for (int table = 0; table < directory.length; table++) {
+
+            if (owned[table] == null) {
+
+                continue;
+            }
+
+            for (int i = 0; i < owned[table].length; i++) {
+
+                for (long pages = owned[table][i]; pages != 0; pages &= pages - 1) {
+
+                    int page = (i << 6) + Long.numberOfTrailingZeros(pages);
+                    int address = (table << TABLE_SHIFT) | (page << PAGE_SHIFT);
+                    int[] words = directory[table][page], before = base.directory[table][page];
+
+                    for (int word = 0; word < PAGE_SIZE; word++) {
+
+                        if (words[word] != before[word]) {
+
+                            target.set(address + word, words[word]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int dirtyPages() {
+
+        return amountOfDirtyPages;
+    }
+
+    @Override
+    public Memory fork() {
+
+        return new PagedMemory(this);
+    }
+}
@@ -0,0 +1,96 @@
+package io.simengangstad.github.cpu;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts how often pairs of instructions are executed right after each other, so that the pairs a
+ * program spends its time in can be fused to superinstructions.
+ *
+ * Usage:
+ *
+ *      Profile profile = new Profile();
+ *
+ *      cpu.setProfile(profile);
+ *      cpu.execute(program);
+ *
+ *      cpu.setProfile(null);
+ *      cpu.setSuperinstructions(profile.discover(8));
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Profile {
+
+    /**
+     * The amount of executions of every pair, indexed by {@link Superinstructions#index(int, int)}.
+     */
+    private final long[] counts = new long[Superinstructions.INSTRUCTIONS * Superinstructions.INSTRUCTIONS];
+
+    /**
+     * Records that an instruction was executed right after another.
+     */
+    void record(int first, int second) {
+
+        int index = Superinstructions.index(first, second);
+
+        if (index >= 0) {
+
+            counts[index]++;
+        }
+    }
+
+    /**
+     * @return The amount of times the pair of instructions was executed.
+     */
+    public long count(int first, int second) {
+
+        int index = Superinstructions.index(first, second);
+
+        return index < 0 ? 0 : counts[index];
+    }
+
+    /**
+     * Discovers the superinstructions of the profiled programs.
+     *
+     * @param amount The amount of the most executed pairs to fuse in addition to the predefined ones.
+     *
+     * @return The predefined superinstructions and the most executed pairs.
+     */
+    public Superinstructions discover(int amount) {
+
+        Superinstructions superinstructions = Superinstructions.predefined();
+
+        List<Integer> executed = new ArrayList<>();
+
+        for (int i = 0; i < counts.length; i++) {
+
+            if (counts[i] > 0) {
+
+                executed.add(i);
+            }
+        }
+
+        executed.sort((a, b) -> Long.compare(counts[b], counts[a]));
+
+        for (int i = 0; i < Math.min(amount, executed.size()); i++) {
+
+            int index = executed.get(i);
+
+            superinstructions.add(index / Superinstructions.INSTRUCTIONS, index % Superinstructions.INSTRUCTIONS);
+        }
+
+        return superinstructions;
+    }
+
+    /**
+     * Clears the counts.
+     */
+    public void reset() {
+
+        for (int i = 0; i < counts.length; i++) {
+
+            counts[i] = 0;
+        }
+    }
+}
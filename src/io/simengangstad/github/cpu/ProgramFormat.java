@@ -0,0 +1,215 @@
+package io.simengangstad.github.cpu;
+
+/**
+ * The formats of assembled programs.
+ *
+ * Version 1 stores every instruction as its length, its instruction identifier and three words per
+ * argument: the value, whether it's retrieved from memory and whether it's a register.
+ *
+ * Version 2 starts with {@link #MAGIC} and stores every instruction as a header word, followed by
+ * mode extension words if the instruction has more than six arguments, followed by one word per
+ * argument holding the value (the immediate, the register index, the address or the offset from SP).
+ * The header holds:
+ *
+ *      bits 0-7    instruction identifier
+ *      bits 8-13   amount of arguments
+ *      bits 14-31  addressing modes of the first six arguments, three bits each
+ *
+ * Every extension word holds the modes of the next ten arguments, three bits each from bit 0.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class ProgramFormat {
+
+    /**
+     * The first word of a version 2 program, "CPU2". A version 1 program starts with the length of
+     * its first instruction, which is far smaller.
+     */
+    public static final int MAGIC = 0x43505532;
+
+    /**
+     * Addressing modes of version 2.
+     */
+    public static final int
+
+            IMMEDIATE       = 0x0,  // value
+            REGISTER        = 0x1,  // registers[value]
+            MEMORY          = 0x2,  // *value
+            INDIRECT        = 0x3,  // *registers[value]
+            STACK           = 0x4;  // *(SP + value), where the value is a signed offset
+
+    /**
+     * The maximum amount of arguments of an instruction in version 2.
+     */
+    public static final int MAXIMUM_AMOUNT_OF_ARGUMENTS = 0x3f;
+
+    static final int
+
+            MODE_BITS           = 3,
+            MODE_MASK           = 0x7,
+            COUNT_SHIFT         = 8,
+            COUNT_MASK          = 0x3f,
+            MODE_SHIFT          = 14,
+            MODES_IN_HEADER     = 6,
+            MODES_PER_EXTENSION = 10;
+
+    private ProgramFormat() {
+
+    }
+
+    /**
+     * @return The version of the format of an assembled program.
+     */
+    public static int version(int[] program) {
+
+        return program.length > 0 && program[0] == MAGIC ? 2 : 1;
+    }
+
+    /**
+     * Encodes an instruction in version 2.
+     *
+     * @param opcode The instruction identifier.
+     * @param modes The addressing mode of every argument.
+     * @param values The value of every argument.
+     *
+     * @return The words of the instruction.
+     *
+     * @throws RuntimeException If the instruction can't be encoded.
+     */
+    public static int[] encode(int opcode, int[] modes, int[] values) throws RuntimeException {
+
+        int amountOfArguments = values.length;
+
+        if (opcode < 0 || opcode > 0xff) {
+
+            throw new RuntimeException("Invalid instruction identifier: " + "'" + opcode + "'.");
+        }
+
+        if (amountOfArguments > MAXIMUM_AMOUNT_OF_ARGUMENTS) {
+
+            throw new RuntimeException("Too many arguments: " + "'" + amountOfArguments + "'.");
+        }
+
+        int extensions = extensions(amountOfArguments);
+        int[] instruction = new int[1 + extensions + amountOfArguments];
+
+        instruction[0] = opcode | (amountOfArguments << COUNT_SHIFT);
+
+        for (int i = 0; i < amountOfArguments; i++) {
+
+            if (modes[i] < 0 || modes[i] > MODE_MASK) {
+
+                throw new RuntimeException("Invalid addressing mode: " + "'" + modes[i] + "'.");
+            }
+
+            if (i < MODES_IN_HEADER) {
+
+                instruction[0] |= modes[i] << (MODE_SHIFT + MODE_BITS * i);
+            }
+            else {
+
+                instruction[1 + (i - MODES_IN_HEADER) / MODES_PER_EXTENSION] |= modes[i] << (MODE_BITS * ((i - MODES_IN_HEADER) % MODES_PER_EXTENSION));
+            }
+
+            instruction[1 + extensions + i] = values[i];
+        }
+
+        return instruction;
+    }
+
+    /**
+     * @return The instruction identifier in a version 2 header.
+     */
+    static int opcode(int header) {
+
+        return header & 0xff;
+    }
+
+    /**
+     * @return The amount of arguments in a version 2 header.
+     */
+    static int amountOfArguments(int header) {
+
+        return (header >>> COUNT_SHIFT) & COUNT_MASK;
+    }
+
+    /**
+     * @return The amount of mode extension words of an instruction with the given amount of arguments.
+     */
+    static int extensions(int amountOfArguments) {
+
+        return amountOfArguments <= MODES_IN_HEADER ? 0 : (amountOfArguments - MODES_IN_HEADER + MODES_PER_EXTENSION - 1) / MODES_PER_EXTENSION;
+    }
+
+    /**
+     * @return The addressing mode of an argument of the version 2 instruction starting at the given word.
+     */
+    static int mode(int[] program, int word, int argument) {
+
+        if (argument < MODES_IN_HEADER) {
+
+            return (program[word] >>> (MODE_SHIFT + MODE_BITS * argument)) & MODE_MASK;
+        }
+
+        argument -= MODES_IN_HEADER;
+
+        return (program[word + 1 + argument / MODES_PER_EXTENSION] >>> (MODE_BITS * (argument % MODES_PER_EXTENSION))) & MODE_MASK;
+    }
+
+    /**
+     * Converts a program to version 2.
+     *
+     * @param program The program in version 1 or 2.
+     *
+     * @return The program in version 2, which is the program itself if it already is.
+     *
+     * @throws RuntimeException If the program is malformed or can't be encoded.
+     */
+    public static int[] convert(int[] program) throws RuntimeException {
+
+        if (version(program) == 2) {
+
+            return program;
+        }
+
+        int size = 1;
+
+        for (int c = 0; c < program.length; c += program[c]) {
+
+            if (program[c] < 2 || (program[c] - 2) % 3 != 0 || c + program[c] > program.length) {
+
+                throw new RuntimeException("Malformed instruction at word " + c + ".");
+            }
+
+            int amountOfArguments = (program[c] - 2) / 3;
+
+            size += 1 + extensions(amountOfArguments) + amountOfArguments;
+        }
+
+        int[] converted = new int[size];
+        int word = 0;
+
+        converted[word++] = MAGIC;
+
+        for (int c = 0; c < program.length; c += program[c]) {
+
+            int amountOfArguments = (program[c] - 2) / 3;
+            int[] modes = new int[amountOfArguments], values = new int[amountOfArguments];
+
+            for (int i = 0; i < amountOfArguments; i++) {
+
+                values[i] = program[c + 2 + 3 * i];
+                modes[i] = (program[c + 3 + 3 * i] == 1 ? MEMORY : IMMEDIATE) | (program[c + 4 + 3 * i] == 1 ? REGISTER : IMMEDIATE);
+            }
+
+            int[] instruction = encode(program[c + 1], modes, values);
+
+            System.arraycopy(instruction, 0, converted, word, instruction.length);
+
+            word += instruction.length;
+        }
+
+        return converted;
+    }
+}
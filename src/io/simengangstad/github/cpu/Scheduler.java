@@ -0,0 +1,249 @@
+package io.simengangstad.github.cpu;
+
+import io.simengangstad.github.cpu.exception.CpuFault;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes many CPUs side by side on a fixed pool of threads. Every CPU runs for a quantum of
+ * instructions at a time and then goes to the back of the queue, so that a program that never
+ * finishes can't starve the others. A CPU waiting for hardware is checked again after a short
+ * interval rather than taking up a thread, and a halted CPU is queued again once an interrupt is
+ * raised, see {@link CPU.Status#HALTED}.
+ *
+ * Every program can be given a budget of instructions, after which it's stopped.
+ *
+ * Usage:
+ *
+ *      Scheduler scheduler = new Scheduler(4);
+ *
+ *      CompletableFuture<CPU.Status> status = scheduler.submit(new CPU(), program, 1000000);
+ *
+ *      status.join();
+ *      scheduler.shutdown();
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Scheduler {
+
+    /**
+     * The default amount of instructions a CPU executes before the next one gets its turn.
+     */
+    public static final long DEFAULT_QUANTUM = 0x10000;
+
+    /**
+     * The microseconds before a CPU waiting for hardware is checked again.
+     */
+    private static final long WAIT_INTERVAL = 100;
+
+    /**
+     * The threads executing the CPUs.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The amount of instructions a CPU executes before the next one gets its turn.
+     */
+    private final long quantum;
+
+    /**
+     * Initializes the scheduler with the default quantum.
+     *
+     * @param threads The amount of threads executing CPUs.
+     */
+    public Scheduler(int threads) {
+
+        this(threads, DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Initializes the scheduler.
+     *
+     * @param threads The amount of threads executing CPUs.
+     * @param quantum The amount of instructions a CPU executes before the next one gets its turn.
+     */
+    public Scheduler(int threads, long quantum) {
+
+        if (threads <= 0) {
+
+            throw new IllegalArgumentException("Invalid amount of threads: " + "'" + threads + "'.");
+        }
+
+        if (quantum <= 0) {
+
+            throw new IllegalArgumentException("Invalid quantum: " + "'" + quantum + "'.");
+        }
+
+        this.quantum = quantum;
+
+        executor = Executors.newScheduledThreadPool(threads, runnable -> {
+
+            Thread thread = new Thread(runnable, "cpu-scheduler");
+
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Executes a program on a CPU without a budget.
+     *
+     * @see #submit(CPU, int[], long)
+     */
+    public CompletableFuture<CPU.Status> submit(CPU cpu, int[] program) {
+
+        return submit(cpu, program, Long.MAX_VALUE);
+    }
+
+    /**
+     * Executes a program on a CPU. The CPU must not be used elsewhere until the program has stopped.
+     * Cancelling the returned future stops the program after its current quantum.
+     *
+     * @param cpu The CPU.
+     * @param program The program.
+     * @param budget The maximum amount of instructions the program executes.
+     *
+     * @return Completes with {@link CPU.Status#FINISHED}, {@link CPU.Status#FAULTED} (the fault is
+     * kept in {@link CPU#getFault()}), or {@link CPU.Status#BUDGET_EXHAUSTED} if the program used up
+     * its budget.
+     */
+    public CompletableFuture<CPU.Status> submit(CPU cpu, int[] program, long budget) {
+
+        if (budget < 0) {
+
+            throw new IllegalArgumentException("Invalid budget: " + "'" + budget + "'.");
+        }
+
+        Task task = new Task(cpu, budget);
+
+        try {
+
+            cpu.load(program);
+        }
+        catch (CpuFault fault) {
+
+            task.status.complete(CPU.Status.FAULTED);
+
+            return task.status;
+        }
+
+        executor.execute(task);
+
+        return task.status;
+    }
+
+    /**
+     * Stops the threads. Programs which haven't stopped are left where they are.
+     */
+    public void shutdown() {
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * A program executing on a CPU, which runs for one quantum every time it's executed.
+     */
+    private final class Task implements Runnable {
+
+        private final CPU cpu;
+
+        /**
+         * The amount of instructions the program may still execute.
+         */
+        private long budget;
+
+        private final CompletableFuture<CPU.Status> status = new CompletableFuture<>();
+
+        private Task(CPU cpu, long budget) {
+
+            this.cpu = cpu;
+            this.budget = budget;
+        }
+
+        /**
+         * Queues the task again, from the thread raising an interrupt for the halted CPU.
+         */
+        private void resume() {
+
+            try {
+
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException exception) {
+
+                status.completeExceptionally(exception);
+            }
+        }
+
+        @Override
+        public void run() {
+
+            if (status.isDone()) {
+
+                return;
+            }
+
+            CPU.Status result;
+
+            try {
+
+                long executed = cpu.getClock().instructions();
+
+                result = cpu.run(Math.min(quantum, budget));
+
+                budget -= Math.min(budget, cpu.getClock().instructions() - executed);
+            }
+            catch (RuntimeException exception) {
+
+                status.completeExceptionally(exception);
+
+                return;
+            }
+
+            try {
+
+                switch (result) {
+
+                    case BUDGET_EXHAUSTED:
+
+                        if (budget == 0) {
+
+                            status.complete(result);
+                        }
+                        else {
+
+                            executor.execute(this);
+                        }
+
+                        break;
+
+                    case WAITING:
+
+                        executor.schedule(this, WAIT_INTERVAL, TimeUnit.MICROSECONDS);
+
+                        break;
+
+                    case HALTED:
+
+                        cpu.interrupts.whenRaised(this::resume);
+
+                        break;
+
+                    default:
+
+                        status.complete(result);
+                }
+            }
+            catch (RejectedExecutionException exception) {
+
+                status.completeExceptionally(exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package io.simengangstad.github.cpu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Saves the state of a CPU executing a program to a file and restores it, also in another process,
+ * so that long running programs can be continued after a restart.
+ *
+ * The snapshot holds the program, the registers, the state of the current instruction, the clock,
+ * the pages of the memory which aren't zero and the state of the hardware, see
+ * {@link AttachableHardware#save(java.io.DataOutput)}. Every value is a little endian word:
+ *
+ *      magic, version
+ *      amount of words of the program, the program in version 2
+ *      registers, pass cycle, setting program counter
+ *      if the program is executed from memory, its address (from version 2)
+ *      interrupt mask, vector table, pending lines, if an interrupt is in service (from version 3)
+ *      if the CPU is halted (from version 4)
+ *      instructions, cycles and milliseconds of the clock as two words each
+ *      capasity of the memory, amount of pages, page number and words of every page
+ *      amount of hardware, location, amount of bytes and the bytes padded to a word of every hardware
+ *
+ * Usage:
+ *
+ *      cpu.load(program);
+ *      cpu.run(1000000);
+ *
+ *      Snapshot.save(cpu, Paths.get("cpu.snapshot"));
+ *
+ *      CPU restored = new CPU();
+ *
+ *      Snapshot.restore(restored, Paths.get("cpu.snapshot"));
+ *      restored.run(Long.MAX_VALUE);
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Snapshot {
+
+    /**
+     * The first word of a snapshot, "CPUS".
+     */
+    public static final int MAGIC = 0x43505553;
+
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 4;
+
+    private Snapshot() {
+
+    }
+
+    /**
+     * Saves the state of a CPU with a loaded program.
+     *
+     * @param cpu The CPU.
+     * @param file The file the snapshot is written to, which is replaced if it exists.
+     *
+     * @throws IOException If the snapshot can't be written.
+     */
+    public static void save(CPU cpu, Path file) throws IOException {
+
+        if (cpu.program == null) {
+
+            throw new IllegalStateException("No program loaded.");
+        }
+
+        int[] program = cpu.program.words;
+        Memory memory = cpu.memory;
+
+        // The pages which aren't zero, gathered first so that the snapshot is written at once
+        int[] pages = new int[0x10];
+        int[] words = new int[0x10 * Memory.PAGE_SIZE];
+        int amountOfPages = 0, amountOfWords = 0;
+        int[] page = new int[Memory.PAGE_SIZE];
+
+        for (int number = memory.nextPage(0); number != -1; number = memory.nextPage(number + 1)) {
+
+            int address = number << Memory.PAGE_SHIFT;
+            int length = (int) Math.min(Memory.PAGE_SIZE, Integer.toUnsignedLong(memory.capasity()) - Integer.toUnsignedLong(address));
+
+            memory.copyInto(address, page, 0, length);
+
+            if (isZero(page, length)) {
+
+                continue;
+            }
+
+            if (amountOfPages == pages.length) {
+
+                pages = Arrays.copyOf(pages, pages.length * 2);
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+
+            pages[amountOfPages++] = number;
+
+            System.arraycopy(page, 0, words, amountOfWords, length);
+
+            amountOfWords += length;
+
+            if (length < Memory.PAGE_SIZE) {
+
+                break;
+            }
+        }
+
+        ByteArrayOutputStream hardware = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(hardware);
+
+        for (Map.Entry<Integer, AttachableHardware> entry : cpu.attachableHardware.entrySet()) {
+
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+
+            entry.getValue().save(new DataOutputStream(state));
+
+            output.writeInt(entry.getKey());
+            output.writeInt(state.size());
+            output.write(state.toByteArray());
+            output.write(new byte[(4 - state.size() % 4) % 4]);
+        }
+
+        output.flush();
+
+        int size = 2 + 1 + program.length + cpu.registers.length + 2 + 2 + 4 + 1 + 6 + 2 + amountOfPages + amountOfWords + 1 + hardware.size() / 4;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer ints = buffer.asIntBuffer();
+        Clock clock = cpu.clock;
+
+        ints.put(MAGIC).put(VERSION);
+        ints.put(program.length).put(program);
+        ints.put(cpu.registers).put(cpu.passCycle).put(cpu.settingProgramCounter ? 1 : 0);
+        ints.put(cpu.codeInMemory ? 1 : 0).put(cpu.codeAddress);
+
+        InterruptController interrupts = cpu.interrupts;
+
+        ints.put(interrupts.mask).put(interrupts.vectorTable).put(interrupts.pending()).put(interrupts.inService ? 1 : 0);
+        ints.put(cpu.halted ? 1 : 0);
+
+        for (long value : new long[] {clock.instructions(), clock.cycles(), clock.elapsed()}) {
+
+            ints.put((int) value).put((int) (value >>> 32));
+        }
+
+        ints.put(memory.capasity()).put(amountOfPages);
+
+        for (int i = 0, word = 0; i < amountOfPages; i++) {
+
+            int length = Math.min(Memory.PAGE_SIZE, amountOfWords - word);
+
+            ints.put(pages[i]).put(words, word, length);
+
+            word += length;
+        }
+
+        ints.put(cpu.attachableHardware.size());
+
+        buffer.position(ints.position() * 4);
+        buffer.put(hardware.toByteArray());
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            while (buffer.hasRemaining()) {
+
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Restores the state of a CPU, which continues where the snapshot was saved when run. The CPU
+     * must have a memory of the same capasity, and hardware at the locations of the hardware in the
+     * snapshot. The memory is cleared before the pages of the snapshot are written to it, see
+     * {@link Memory#discardBaseline()}.
+     *
+     * @param cpu The CPU.
+     * @param file The snapshot.
+     *
+     * @throws IOException If the snapshot can't be read or doesn't fit the CPU.
+     */
+    public static void restore(CPU cpu, Path file) throws IOException {
+
+        ByteBuffer buffer;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            if (channel.size() > Integer.MAX_VALUE) {
+
+                throw new IOException("Snapshot too large.");
+            }
+
+            buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+            while (buffer.hasRemaining() && channel.read(buffer) != -1);
+
+            buffer.flip();
+        }
+
+        try {
+
+            IntBuffer ints = buffer.asIntBuffer();
+
+            int version;
+
+            if (ints.get() != MAGIC || (version = ints.get()) < 1 || version > VERSION) {
+
+                throw new IOException("Not a snapshot of version " + VERSION + " or earlier.");
+            }
+
+            int[] program = new int[ints.get()];
+
+            ints.get(program);
+
+            cpu.load(program);
+
+            ints.get(cpu.registers);
+
+            cpu.passCycle = ints.get();
+            cpu.settingProgramCounter = ints.get() != 0;
+
+            boolean codeInMemory = version >= 2 && ints.get() != 0;
+            int codeAddress = version >= 2 ? ints.get() : 0;
+
+            if (version >= 3) {
+
+                cpu.interrupts.restore(ints.get(), ints.get(), ints.get(), ints.get() != 0);
+            }
+
+            cpu.halted = version >= 4 && ints.get() != 0;
+
+            long[] clock = new long[3];
+
+            for (int i = 0; i < clock.length; i++) {
+
+                clock[i] = Integer.toUnsignedLong(ints.get()) | ((long) ints.get() << 32);
+            }
+
+            cpu.clock.restore(clock[0], clock[1], clock[2]);
+
+            Memory memory = cpu.memory;
+
+            if (ints.get() != memory.capasity()) {
+
+                throw new IOException("The capasity of the memory doesn't match the snapshot.");
+            }
+
+            memory.discardBaseline();
+            memory.reset();
+
+            int amountOfPages = ints.get();
+            int[] page = new int[Memory.PAGE_SIZE];
+
+            for (int i = 0; i < amountOfPages; i++) {
+
+                int address = ints.get() << Memory.PAGE_SHIFT;
+                int length = (int) Math.min(Memory.PAGE_SIZE, Integer.toUnsignedLong(memory.capasity()) - Integer.toUnsignedLong(address));
+
+                ints.get(page, 0, length);
+
+                memory.copyFrom(page, 0, address, length);
+            }
+
+            if (codeInMemory) {
+
+                cpu.loadCode(codeAddress, program.length);
+            }
+
+            int amountOfHardware = ints.get();
+
+            buffer.position(ints.position() * 4);
+
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()));
+
+            for (int i = 0; i < amountOfHardware; i++) {
+
+                int location = input.readInt();
+                byte[] state = new byte[input.readInt()];
+
+                input.readFully(state);
+                input.skipBytes((4 - state.length % 4) % 4);
+
+                AttachableHardware attachableHardware = cpu.attachableHardware.get(location);
+
+                if (attachableHardware == null) {
+
+                    throw new IOException("No hardware at location " + location + " to restore.");
+                }
+
+                attachableHardware.restore(new DataInputStream(new ByteArrayInputStream(state)));
+            }
+        }
+        catch (RuntimeException exception) {
+
+            throw new IOException("Malformed snapshot.", exception);
+        }
+    }
+
+    private static boolean isZero(int[] words, int length) {
+
+        for (int i = 0; i < length; i++) {
+
+            if (words[i] != 0) {
+
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+package io.simengangstad.github.cpu;
+
+import java.util.BitSet;
+
+/**
+ * The pairs of instructions the threaded engine fuses to a single handler, a superinstruction, when
+ * they follow each other in a program. A fused pair costs one trip through the execution loop instead
+ * of two, and a fused conditional skips the next instruction without passing a cycle.
+ *
+ * The second instruction of a pair keeps its own handler, so jumping to it works as before, and PC
+ * is set to the second instruction before it executes, so faults are reported at the instruction
+ * that caused them.
+ *
+ * Pairs are identified by their instruction identifiers, e.g. (IFE, SET) or (ADD, SET). Pairs which
+ * can't be fused, such as a SET PC followed by anything, are executed as separate instructions.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Superinstructions {
+
+    /**
+     * The amount of instruction identifiers a pair can be made of.
+     */
+    static final int INSTRUCTIONS = 0x100;
+
+    private final BitSet pairs = new BitSet(INSTRUCTIONS * INSTRUCTIONS);
+
+    /**
+     * @return The predefined superinstructions: compare and branch (IFx followed by SET PC) and
+     * increment and jump (ADD or SUB followed by SET PC).
+     */
+    public static Superinstructions predefined() {
+
+        Superinstructions superinstructions = new Superinstructions();
+
+        for (int condition : new int[] {CPU.IFE, CPU.IFN, CPU.IFG, CPU.IFL}) {
+
+            superinstructions.add(condition, CPU.SET);
+        }
+
+        superinstructions.add(CPU.ADD, CPU.SET);
+        superinstructions.add(CPU.SUB, CPU.SET);
+
+        return superinstructions;
+    }
+
+    /**
+     * Adds a pair of instructions to fuse.
+     *
+     * @param first The instruction identifier of the first instruction.
+     * @param second The instruction identifier of the instruction following it.
+     *
+     * @throws IllegalArgumentException If either isn't an instruction identifier.
+     */
+    public void add(int first, int second) throws IllegalArgumentException {
+
+        int index = index(first, second);
+
+        if (index < 0) {
+
+            throw new IllegalArgumentException("Invalid instruction pair: " + "'" + first + ", " + second + "'.");
+        }
+
+        pairs.set(index);
+    }
+
+    /**
+     * Adds every pair of another set of superinstructions.
+     */
+    public void addAll(Superinstructions superinstructions) {
+
+        pairs.or(superinstructions.pairs);
+    }
+
+    /**
+     * @return If the pair of instructions is fused.
+     */
+    public boolean contains(int first, int second) {
+
+        int index = index(first, second);
+
+        return index >= 0 && pairs.get(index);
+    }
+
+    /**
+     * @return The amount of pairs.
+     */
+    public int size() {
+
+        return pairs.cardinality();
+    }
+
+    /**
+     * @return The index of a pair of instruction identifiers, or -1 if either is out of range.
+     */
+    static int index(int first, int second) {
+
+        if (first < 0 || first >= INSTRUCTIONS || second < 0 || second >= INSTRUCTIONS) {
+
+            return -1;
+        }
+
+        return first * INSTRUCTIONS + second;
+    }
+}
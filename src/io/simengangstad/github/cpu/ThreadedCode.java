@@ -0,0 +1,1349 @@
+package io.simengangstad.github.cpu;
+
+/**
+ * Compiles a decoded program to threaded code: one specialized handler object per instruction.
+ * The kinds of the arguments, where the result is written and which operation is performed are
+ * settled when the handler is created, so executing an instruction is a matter of calling the
+ * handler at PC.
+ *
+ * Instructions that talk to hardware or retrieve information about the CPU are rare and are
+ * handed back to the interpreter, so that both engines behave the same.
+ *
+ * Pairs of instructions listed in the superinstructions are fused: the handler of the first
+ * instruction executes both, while the second instruction keeps its own handler for jumps to it.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+final class ThreadedCode {
+
+    private ThreadedCode() {
+
+    }
+
+    /**
+     * Compiles every instruction in the program to a handler.
+     *
+     * @param superinstructions The pairs of instructions to fuse, or null to fuse none.
+     */
+    static Handler[] compile(DecodedProgram program, Superinstructions superinstructions) {
+
+        Handler[] handlers = new Handler[program.length];
+
+        for (int i = 0; i < program.length; i++) {
+
+            handlers[i] = compile(program, i);
+        }
+
+        if (superinstructions == null) {
+
+            return handlers;
+        }
+
+        Handler[] fused = handlers.clone();
+
+        for (int i = 0; i + 1 < program.length; i++) {
+
+            if (fuses(program, superinstructions, i)) {
+
+                fused[i] = fuse(handlers[i], handlers[i + 1], i, program.opcodes[i + 1]);
+            }
+        }
+
+        return fused;
+    }
+
+    /**
+     * Compiles instructions again after their words have been changed, where the program has the
+     * same instructions as before otherwise. The instruction before the first is compiled again as
+     * well, as it may be fused with it.
+     *
+     * @param handlers The handlers of the program before the change, which are left as they are.
+     * @param first The first changed instruction.
+     * @param last The last changed instruction.
+     *
+     * @return The handlers of the changed program.
+     */
+    static Handler[] recompile(Handler[] handlers, DecodedProgram program, Superinstructions superinstructions, int first, int last) {
+
+        Handler[] recompiled = handlers.clone();
+
+        for (int i = Math.max(0, first - 1); i <= last; i++) {
+
+            Handler handler = compile(program, i);
+
+            if (superinstructions != null && i + 1 < program.length && fuses(program, superinstructions, i)) {
+
+                handler = fuse(handler, compile(program, i + 1), i, program.opcodes[i + 1]);
+            }
+
+            recompiled[i] = handler;
+        }
+
+        return recompiled;
+    }
+
+    /**
+     * @return If an instruction is fused with the next one.
+     */
+    private static boolean fuses(DecodedProgram program, Superinstructions superinstructions, int index) {
+
+        // Instructions addressing hardware or other cores are dispatched on their own, as the CPU may have to wait before them
+        return superinstructions.contains(program.opcodes[index], program.opcodes[index + 1]) && !CPU.synchronizes(program.opcodes[index + 1]);
+    }
+
+    /**
+     * Fuses the handlers of two instructions following each other.
+     *
+     * @param index The first instruction.
+     * @param opcode The instruction identifier of the second instruction, counted by the clock
+     *               when it's executed.
+     *
+     * @return The fused handler, or the handler of the first instruction if it might jump.
+     */
+    static Handler fuse(Handler first, Handler second, int index, int opcode) {
+
+        if (first instanceof Conditional) {
+
+            Conditional conditional = (Conditional) first;
+
+            if (second instanceof Jump && ((Jump) second).target instanceof Immediate) {
+
+                return new CompareAndBranch(conditional, ((Immediate) ((Jump) second).target).value, index, opcode);
+            }
+
+            return new Guarded(conditional, second, index, opcode);
+        }
+
+        if (!first.fallsThrough()) {
+
+            return first;
+        }
+
+        if (first instanceof ArithmeticRegisterImmediate && second instanceof Jump && ((Jump) second).target instanceof Immediate) {
+
+            return new OperateAndJump((ArithmeticRegisterImmediate) first, ((Immediate) ((Jump) second).target).value, index, opcode);
+        }
+
+        return new Fused(first, second, index, opcode);
+    }
+
+    /**
+     * Compiles a single instruction to a handler.
+     */
+    static Handler compile(DecodedProgram program, int index) {
+
+        int opcode = program.opcodes[index];
+        int amountOfArguments = program.operandCounts[index];
+        int offset = program.operandOffsets[index];
+
+        for (int i = 0; i < amountOfArguments; i++) {
+
+            if (program.operandKinds[offset + i] == DecodedProgram.INVALID) {
+
+                return new Interpreted(index);
+            }
+        }
+
+        Operation operation = Operation.of(opcode);
+        Condition condition = Condition.of(opcode);
+
+        if (opcode == CPU.SET && amountOfArguments == 2) {
+
+            Destination destination = destination(program, offset);
+            Operand source = operand(program, offset + 1);
+
+            if (destination == null || source == null) {
+
+                return new Interpreted(index);
+            }
+
+            if (destination instanceof RegisterDestination) {
+
+                int register = ((RegisterDestination) destination).register;
+
+                return register == CPU.PC ? new Jump(source) : new SetRegister(register, source);
+            }
+
+            return new Set(destination, source);
+        }
+
+        if (operation != null && amountOfArguments == 2) {
+
+            Destination destination = destination(program, offset);
+            Operand source = operand(program, offset + 1);
+
+            if (destination == null || source == null) {
+
+                return new Interpreted(index);
+            }
+
+            if (destination instanceof RegisterDestination && ((RegisterDestination) destination).register != CPU.PC) {
+
+                int register = ((RegisterDestination) destination).register;
+
+                if (source instanceof Immediate) {
+
+                    return new ArithmeticRegisterImmediate(operation, register, ((Immediate) source).value);
+                }
+
+                if (source instanceof Register) {
+
+                    return new ArithmeticRegisterRegister(operation, register, ((Register) source).register);
+                }
+            }
+
+            return new Arithmetic(operation, destination, source);
+        }
+
+        if (opcode == CPU.NOT && amountOfArguments == 1) {
+
+            Destination destination = destination(program, offset);
+
+            return destination == null ? new Interpreted(index) : new Not(destination);
+        }
+
+        if (condition != null && amountOfArguments == 2) {
+
+            Destination first = destination(program, offset);
+            Operand second = operand(program, offset + 1);
+
+            if (first == null || second == null) {
+
+                return new Interpreted(index);
+            }
+
+            return new Conditional(condition, first, second);
+        }
+
+        if (opcode == CPU.FCMP && amountOfArguments == 2) {
+
+            Destination first = destination(program, offset);
+            Operand second = operand(program, offset + 1);
+
+            return first == null || second == null ? new Interpreted(index) : new CompareFloats(first, second);
+        }
+
+        if (opcode == CPU.JSR && amountOfArguments == 1) {
+
+            Operand target = operand(program, offset);
+
+            return target == null ? new Interpreted(index) : new JumpToSubroutine(target);
+        }
+
+        if (opcode == CPU.RET && amountOfArguments == 0) {
+
+            return new Frame(opcode, new Immediate(0));
+        }
+
+        if (CPU.isFrame(opcode) && amountOfArguments == 1) {
+
+            Operand words = operand(program, offset);
+
+            return words == null ? new Interpreted(index) : new Frame(opcode, words);
+        }
+
+        if ((opcode == CPU.CAS && amountOfArguments == 3) || ((opcode == CPU.XADD || opcode == CPU.XCHG) && amountOfArguments == 2)) {
+
+            Destination destination = destination(program, offset);
+            Operand b = operand(program, offset + 1);
+            Operand c = opcode == CPU.CAS ? operand(program, offset + 2) : new Immediate(0);
+
+            if (destination == null || b == null || c == null) {
+
+                return new Interpreted(index);
+            }
+
+            return new Exchange(opcode, destination, b, c);
+        }
+
+        if ((CPU.isBlock(opcode) || CPU.isVector(opcode)) && amountOfArguments == 3) {
+
+            Operand a = operand(program, offset);
+            Operand b = operand(program, offset + 1);
+            Operand c = operand(program, offset + 2);
+
+            if (a == null || b == null || c == null) {
+
+                return new Interpreted(index);
+            }
+
+            return new Block(opcode, a, b, c);
+        }
+
+        if ((opcode == CPU.VSUM && amountOfArguments == 3) || (opcode == CPU.VDOT && amountOfArguments == 4)) {
+
+            Destination destination = destination(program, offset);
+            Operand b = operand(program, offset + 1);
+            Operand c = operand(program, offset + 2);
+            Operand d = opcode == CPU.VDOT ? operand(program, offset + 3) : new Immediate(0);
+
+            if (destination == null || b == null || c == null || d == null) {
+
+                return new Interpreted(index);
+            }
+
+            return new Reduction(opcode, destination, b, c, d);
+        }
+
+        return new Interpreted(index);
+    }
+
+    /**
+     * @return The argument at the given index as a destination, or null if it can't be one.
+     */
+    private static Destination destination(DecodedProgram program, int argument) {
+
+        int value = program.operandValues[argument];
+
+        switch (program.operandKinds[argument]) {
+
+            case DecodedProgram.REGISTER:   return new RegisterDestination(value);
+            case DecodedProgram.MEMORY:     return new MemoryDestination(value);
+            case DecodedProgram.INDIRECT:   return new IndirectDestination(value);
+            case DecodedProgram.STACK:      return new StackDestination(value);
+            case DecodedProgram.PUSH:       return new PushDestination();
+            case DecodedProgram.PEEK:       return new PeekDestination();
+            default:                        return null;
+        }
+    }
+
+    /**
+     * @return The argument at the given index as a source, or null if it can't be one.
+     */
+    private static Operand operand(DecodedProgram program, int argument) {
+
+        int value = program.operandValues[argument];
+
+        switch (program.operandKinds[argument]) {
+
+            case DecodedProgram.IMMEDIATE:  return new Immediate(value);
+            case DecodedProgram.REGISTER:   return new Register(value);
+            case DecodedProgram.MEMORY:     return new MemoryOperand(value);
+            case DecodedProgram.INDIRECT:   return new Indirect(value);
+            case DecodedProgram.STACK:      return new Stack(value);
+            case DecodedProgram.POP:        return new Pop();
+            case DecodedProgram.PEEK:       return new Peek();
+            default:                        return null;
+        }
+    }
+
+    /**
+     * A compiled instruction.
+     */
+    static abstract class Handler {
+
+        abstract void execute(CPU cpu);
+
+        /**
+         * @return If the instruction always continues with the next instruction, i.e. it never sets
+         * PC nor skips the next instruction.
+         */
+        boolean fallsThrough() {
+
+            return false;
+        }
+    }
+
+    /**
+     * A value an instruction reads.
+     */
+    static abstract class Operand {
+
+        abstract int read(CPU cpu);
+    }
+
+    /**
+     * A location an instruction writes to. Locating it performs the side effects of the argument
+     * (such as PUSH decreasing SP), and the returned location is passed to load and store.
+     */
+    static abstract class Destination {
+
+        abstract int locate(CPU cpu);
+
+        abstract int load(CPU cpu, int location);
+
+        abstract void store(CPU cpu, int location, int value);
+
+        int read(CPU cpu) {
+
+            return load(cpu, locate(cpu));
+        }
+    }
+
+    static final class Immediate extends Operand {
+
+        final int value;
+
+        Immediate(int value) {
+
+            this.value = value;
+        }
+
+        @Override
+        int read(CPU cpu) {
+
+            return value;
+        }
+    }
+
+    static final class Register extends Operand {
+
+        final int register;
+
+        Register(int register) {
+
+            this.register = register;
+        }
+
+        @Override
+        int read(CPU cpu) {
+
+            return cpu.registers[register];
+        }
+    }
+
+    static final class MemoryOperand extends Operand {
+
+        final int address;
+
+        MemoryOperand(int address) {
+
+            this.address = address;
+        }
+
+        @Override
+        int read(CPU cpu) {
+
+            return cpu.memory.get(address);
+        }
+    }
+
+    static final class Indirect extends Operand {
+
+        final int register;
+
+        Indirect(int register) {
+
+            this.register = register;
+        }
+
+        @Override
+        int read(CPU cpu) {
+
+            return cpu.memory.get(cpu.registers[register]);
+        }
+    }
+
+    static final class Stack extends Operand {
+
+        final int offset;
+
+        Stack(int offset) {
+
+            this.offset = offset;
+        }
+
+        @Override
+        int read(CPU cpu) {
+
+            return cpu.memory.get(cpu.registers[CPU.SP] + offset);
+        }
+    }
+
+    static final class Pop extends Operand {
+
+        @Override
+        int read(CPU cpu) {
+
+            int[] registers = cpu.registers;
+
+            if (Integer.compareUnsigned(registers[CPU.SP] + 1, cpu.memory.capasity()) >= 0) {
+
+                cpu.fault("Stack underflow.");
+            }
+
+            int value = cpu.memory.get(registers[CPU.SP]);
+
+            cpu.memory.set(registers[CPU.SP], 0);
+
+            registers[CPU.SP]++;
+
+            return value;
+        }
+    }
+
+    static final class Peek extends Operand {
+
+        @Override
+        int read(CPU cpu) {
+
+            return cpu.memory.get(cpu.registers[CPU.SP]);
+        }
+    }
+
+    static final class RegisterDestination extends Destination {
+
+        final int register;
+
+        RegisterDestination(int register) {
+
+            this.register = register;
+        }
+
+        @Override
+        int locate(CPU cpu) {
+
+            return register;
+        }
+
+        @Override
+        int load(CPU cpu, int location) {
+
+            return cpu.registers[register];
+        }
+
+        @Override
+        void store(CPU cpu, int location, int value) {
+
+            cpu.setValue(register, false, value);
+        }
+    }
+
+    static final class MemoryDestination extends Destination {
+
+        final int address;
+
+        MemoryDestination(int address) {
+
+            this.address = address;
+        }
+
+        @Override
+        int locate(CPU cpu) {
+
+            return address;
+        }
+
+        @Override
+        int load(CPU cpu, int location) {
+
+            return cpu.memory.get(location);
+        }
+
+        @Override
+        void store(CPU cpu, int location, int value) {
+
+            cpu.memory.set(location, value);
+        }
+    }
+
+    static final class IndirectDestination extends Destination {
+
+        final int register;
+
+        IndirectDestination(int register) {
+
+            this.register = register;
+        }
+
+        @Override
+        int locate(CPU cpu) {
+
+            return cpu.registers[register];
+        }
+
+        @Override
+        int load(CPU cpu, int location) {
+
+            return cpu.memory.get(location);
+        }
+
+        @Override
+        void store(CPU cpu, int location, int value) {
+
+            cpu.memory.set(location, value);
+        }
+    }
+
+    static final class StackDestination extends Destination {
+
+        final int offset;
+
+        StackDestination(int offset) {
+
+            this.offset = offset;
+        }
+
+        @Override
+        int locate(CPU cpu) {
+
+            return cpu.registers[CPU.SP] + offset;
+        }
+
+        @Override
+        int load(CPU cpu, int location) {
+
+            return cpu.memory.get(location);
+        }
+
+        @Override
+        void store(CPU cpu, int location, int value) {
+
+            cpu.memory.set(location, value);
+        }
+    }
+
+    static final class PushDestination extends Destination {
+
+        @Override
+        int locate(CPU cpu) {
+
+            int[] registers = cpu.registers;
+
+            if (Integer.compareUnsigned(registers[CPU.SP] - 1, cpu.memory.capasity()) >= 0) {
+
+                cpu.fault("Stack overflow.");
+            }
+
+            return --registers[CPU.SP];
+        }
+
+        @Override
+        int load(CPU cpu, int location) {
+
+            return cpu.memory.get(location);
+        }
+
+        @Override
+        void store(CPU cpu, int location, int value) {
+
+            cpu.memory.set(location, value);
+        }
+    }
+
+    static final class PeekDestination extends Destination {
+
+        @Override
+        int locate(CPU cpu) {
+
+            return cpu.registers[CPU.SP];
+        }
+
+        @Override
+        int load(CPU cpu, int location) {
+
+            return cpu.memory.get(location);
+        }
+
+        @Override
+        void store(CPU cpu, int location, int value) {
+
+            cpu.memory.set(location, value);
+        }
+    }
+
+    /**
+     * Arithmetic and bitwise operations on two values.
+     */
+    enum Operation {
+
+        ADD {
+            @Override
+            int apply(CPU cpu, int a, int b) {
+
+                long result = (((long) a) & 0xffffffffl) + (((long) b) & 0xffffffffl);
+
+                if (result > 0xffffffffl) {
+
+                    cpu.fault("Overflow.");
+                }
+
+                return (int) result;
+            }
+        },
+
+        SUB {
+            @Override
+            int apply(CPU cpu, int a, int b) {
+
+                long result = (((long) a) & 0xffffffffl) - (((long) b) & 0xffffffffl);
+
+                if (result < 0x0l) {
+
+                    cpu.fault("Underflow.");
+                }
+
+                return (int) result;
+            }
+        },
+
+        MUL {
+            @Override
+            int apply(CPU cpu, int a, int b) {
+
+                long result = (((long) a) & 0xffffffffl) * (((long) b) & 0xffffffffl);
+
+                if (result > 0xffffffffl) {
+
+                    cpu.fault("Overflow.");
+                }
+
+                return (int) result;
+            }
+        },
+
+        DIV {
+            @Override
+            int apply(CPU cpu, int a, int b) {
+
+                if (b == 0) {
+
+                    cpu.fault("Can't divide by zero.");
+
+                    return a;
+                }
+
+                return a / b;
+            }
+        },
+
+        MOD {
+            @Override
+            int apply(CPU cpu, int a, int b) {
+
+                if (b == 0) {
+
+                    cpu.fault("Can't divide by zero.");
+
+                    return a;
+                }
+
+                return a % b;
+            }
+        },
+
+        ADDW    { @Override int apply(CPU cpu, int a, int b) { return cpu.wide(CPU.ADDW, a, b); } },
+        SUBW    { @Override int apply(CPU cpu, int a, int b) { return cpu.wide(CPU.SUBW, a, b); } },
+        MULW    { @Override int apply(CPU cpu, int a, int b) { return cpu.wide(CPU.MULW, a, b); } },
+        MULH    { @Override int apply(CPU cpu, int a, int b) { return cpu.wide(CPU.MULH, a, b); } },
+        ADX     { @Override int apply(CPU cpu, int a, int b) { return cpu.wide(CPU.ADX, a, b); } },
+        SBX     { @Override int apply(CPU cpu, int a, int b) { return cpu.wide(CPU.SBX, a, b); } },
+
+        FADD    { @Override int apply(CPU cpu, int a, int b) { return Floats.add(a, b); } },
+        FSUB    { @Override int apply(CPU cpu, int a, int b) { return Floats.subtract(a, b); } },
+        FMUL    { @Override int apply(CPU cpu, int a, int b) { return Floats.multiply(a, b); } },
+        FDIV    { @Override int apply(CPU cpu, int a, int b) { return Floats.divide(a, b); } },
+        FSQRT   { @Override int apply(CPU cpu, int a, int b) { return Floats.squareRoot(b); } },
+        ITOF    { @Override int apply(CPU cpu, int a, int b) { return Floats.fromInteger(b); } },
+        FTOI    { @Override int apply(CPU cpu, int a, int b) { return Floats.toInteger(b); } },
+
+        AND     { @Override int apply(CPU cpu, int a, int b) { return a & b; } },
+        OR      { @Override int apply(CPU cpu, int a, int b) { return a | b; } },
+        XOR     { @Override int apply(CPU cpu, int a, int b) { return a ^ b; } },
+        SHR     { @Override int apply(CPU cpu, int a, int b) { return a >> b; } },
+        SHL     { @Override int apply(CPU cpu, int a, int b) { return a << b; } },
+        USHR    { @Override int apply(CPU cpu, int a, int b) { return a >>> b; } };
+
+        abstract int apply(CPU cpu, int a, int b);
+
+        /**
+         * @return The operation of the instruction, or null if it isn't an operation.
+         */
+        static Operation of(int opcode) {
+
+            switch (opcode) {
+
+                case CPU.ADD:   return ADD;
+                case CPU.SUB:   return SUB;
+                case CPU.MUL:   return MUL;
+                case CPU.DIV:   return DIV;
+                case CPU.MOD:   return MOD;
+                case CPU.ADDW:  return ADDW;
+                case CPU.SUBW:  return SUBW;
+                case CPU.MULW:  return MULW;
+                case CPU.MULH:  return MULH;
+                case CPU.ADX:   return ADX;
+                case CPU.SBX:   return SBX;
+                case CPU.FADD:  return FADD;
+                case CPU.FSUB:  return FSUB;
+                case CPU.FMUL:  return FMUL;
+                case CPU.FDIV:  return FDIV;
+                case CPU.FSQRT: return FSQRT;
+                case CPU.ITOF:  return ITOF;
+                case CPU.FTOI:  return FTOI;
+                case CPU.AND:   return AND;
+                case CPU.OR:    return OR;
+                case CPU.XOR:   return XOR;
+                case CPU.SHR:   return SHR;
+                case CPU.SHL:   return SHL;
+                case CPU.USHR:  return USHR;
+                default:        return null;
+            }
+        }
+    }
+
+    /**
+     * Conditions of the if instructions. The next instruction is executed when the condition holds.
+     */
+    enum Condition {
+
+        IFE     { @Override boolean test(int a, int b) { return a == b; } },
+        IFN     { @Override boolean test(int a, int b) { return a != b; } },
+        IFG     { @Override boolean test(int a, int b) { return a > b; } },
+        IFL     { @Override boolean test(int a, int b) { return a < b; } };
+
+        abstract boolean test(int a, int b);
+
+        /**
+         * @return The condition of the instruction, or null if it isn't a conditional instruction.
+         */
+        static Condition of(int opcode) {
+
+            switch (opcode) {
+
+                case CPU.IFE:   return IFE;
+                case CPU.IFN:   return IFN;
+                case CPU.IFG:   return IFG;
+                case CPU.IFL:   return IFL;
+                default:        return null;
+            }
+        }
+    }
+
+    /**
+     * SET into a register other than PC.
+     */
+    static final class SetRegister extends Handler {
+
+        final int register;
+        final Operand source;
+
+        SetRegister(int register, Operand source) {
+
+            this.register = register;
+            this.source = source;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            cpu.registers[register] = source.read(cpu);
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return true;
+        }
+    }
+
+    /**
+     * SET PC.
+     */
+    static final class Jump extends Handler {
+
+        final Operand target;
+
+        Jump(Operand target) {
+
+            this.target = target;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            cpu.setValue(CPU.PC, false, target.read(cpu));
+        }
+    }
+
+    /**
+     * SET into any other destination.
+     */
+    static final class Set extends Handler {
+
+        final Destination destination;
+        final Operand source;
+
+        Set(Destination destination, Operand source) {
+
+            this.destination = destination;
+            this.source = source;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int location = destination.locate(cpu);
+
+            destination.store(cpu, location, source.read(cpu));
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return true;
+        }
+    }
+
+    /**
+     * An operation on a register (other than PC) and an immediate value, e.g. ADD A 1.
+     */
+    static final class ArithmeticRegisterImmediate extends Handler {
+
+        final Operation operation;
+        final int register, value;
+
+        ArithmeticRegisterImmediate(Operation operation, int register, int value) {
+
+            this.operation = operation;
+            this.register = register;
+            this.value = value;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int[] registers = cpu.registers;
+
+            registers[register] = operation.apply(cpu, registers[register], value);
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return true;
+        }
+    }
+
+    /**
+     * An operation on two registers, where the destination isn't PC, e.g. SUB J I.
+     */
+    static final class ArithmeticRegisterRegister extends Handler {
+
+        final Operation operation;
+        final int register, source;
+
+        ArithmeticRegisterRegister(Operation operation, int register, int source) {
+
+            this.operation = operation;
+            this.register = register;
+            this.source = source;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int[] registers = cpu.registers;
+
+            registers[register] = operation.apply(cpu, registers[register], registers[source]);
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return true;
+        }
+    }
+
+    /**
+     * An operation on any destination and source.
+     */
+    static final class Arithmetic extends Handler {
+
+        final Operation operation;
+        final Destination destination;
+        final Operand source;
+
+        Arithmetic(Operation operation, Destination destination, Operand source) {
+
+            this.operation = operation;
+            this.destination = destination;
+            this.source = source;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int location = destination.locate(cpu);
+            int a = destination.load(cpu, location);
+            int b = source.read(cpu);
+
+            destination.store(cpu, location, operation.apply(cpu, a, b));
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return !(destination instanceof RegisterDestination && ((RegisterDestination) destination).register == CPU.PC);
+        }
+    }
+
+    static final class Not extends Handler {
+
+        final Destination destination;
+
+        Not(Destination destination) {
+
+            this.destination = destination;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int location = destination.locate(cpu);
+
+            destination.store(cpu, location, ~destination.load(cpu, location));
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return !(destination instanceof RegisterDestination && ((RegisterDestination) destination).register == CPU.PC);
+        }
+    }
+
+    static final class Conditional extends Handler {
+
+        final Condition condition;
+        final Destination first;
+        final Operand second;
+
+        Conditional(Condition condition, Destination first, Operand second) {
+
+            this.condition = condition;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            if (!holds(cpu)) {
+
+                cpu.passCycle += 2;
+            }
+        }
+
+        /**
+         * Reads the arguments and tests the condition.
+         */
+        boolean holds(CPU cpu) {
+
+            int a = first.read(cpu);
+            int b = second.read(cpu);
+
+            return condition.test(a, b);
+        }
+    }
+
+    static final class CompareFloats extends Handler {
+
+        final Destination first;
+        final Operand second;
+
+        CompareFloats(Destination first, Operand second) {
+
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int a = first.read(cpu);
+            int b = second.read(cpu);
+
+            cpu.registers[CPU.EX] = Floats.compare(a, b);
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return true;
+        }
+    }
+
+    static final class JumpToSubroutine extends Handler {
+
+        final Operand target;
+
+        JumpToSubroutine(Operand target) {
+
+            this.target = target;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int value = target.read(cpu);
+            int[] registers = cpu.registers;
+
+            registers[CPU.SP]--;
+
+            cpu.memory.set(registers[CPU.SP], registers[CPU.PC] + 1);
+
+            cpu.setValue(CPU.PC, false, value);
+        }
+    }
+
+    /**
+     * RET, ENTER or LEAVE.
+     */
+    static final class Frame extends Handler {
+
+        final int opcode;
+        final Operand words;
+
+        Frame(int opcode, Operand words) {
+
+            this.opcode = opcode;
+            this.words = words;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            cpu.frame(opcode, words.read(cpu));
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return opcode != CPU.RET;
+        }
+    }
+
+    /**
+     * CAS, XADD or XCHG.
+     */
+    static final class Exchange extends Handler {
+
+        final int opcode;
+        final Destination destination;
+        final Operand b, c;
+
+        Exchange(int opcode, Destination destination, Operand b, Operand c) {
+
+            this.opcode = opcode;
+            this.destination = destination;
+            this.b = b;
+            this.c = c;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int location = destination.locate(cpu);
+            int previous = destination.load(cpu, location);
+
+            cpu.exchange(opcode, location, !(destination instanceof RegisterDestination), previous, b.read(cpu), c.read(cpu));
+        }
+    }
+
+    /**
+     * BCPY, BFIL, BCMP, BSCN or an element-wise vector instruction.
+     */
+    static final class Block extends Handler {
+
+        final int opcode;
+        final Operand a, b, c;
+
+        Block(int opcode, Operand a, Operand b, Operand c) {
+
+            this.opcode = opcode;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            cpu.block(opcode, a.read(cpu), b.read(cpu), c.read(cpu));
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return true;
+        }
+    }
+
+    /**
+     * VSUM or VDOT.
+     */
+    static final class Reduction extends Handler {
+
+        final int opcode;
+        final Destination destination;
+        final Operand b, c, d;
+
+        Reduction(int opcode, Destination destination, Operand b, Operand c, Operand d) {
+
+            this.opcode = opcode;
+            this.destination = destination;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int location = destination.locate(cpu);
+            int b = this.b.read(cpu), c = this.c.read(cpu), d = this.d.read(cpu);
+
+            destination.store(cpu, location, opcode == CPU.VSUM ? cpu.memory.sum(b, c) : cpu.memory.dot(b, c, d));
+        }
+
+        @Override
+        boolean fallsThrough() {
+
+            return !(destination instanceof RegisterDestination && ((RegisterDestination) destination).register == CPU.PC);
+        }
+    }
+
+    /**
+     * An IFx followed by SET PC to a fixed instruction.
+     */
+    static final class CompareAndBranch extends Handler {
+
+        final Conditional conditional;
+        final int target, index, opcode;
+
+        CompareAndBranch(Conditional conditional, int target, int index, int opcode) {
+
+            this.conditional = conditional;
+            this.target = target;
+            this.index = index;
+            this.opcode = opcode;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            boolean holds = conditional.holds(cpu);
+
+            // When the condition fails PC is left at the SET, which the CPU then steps past
+            cpu.registers[CPU.PC] = index + 1;
+
+            if (holds) {
+
+                cpu.clock.tick(opcode);
+                cpu.setValue(CPU.PC, false, target);
+            }
+        }
+    }
+
+    /**
+     * An operation on a register and an immediate value followed by SET PC to a fixed instruction,
+     * e.g. ADD A 1 and SET PC loop.
+     */
+    static final class OperateAndJump extends Handler {
+
+        final Operation operation;
+        final int register, value, target, index, opcode;
+
+        OperateAndJump(ArithmeticRegisterImmediate first, int target, int index, int opcode) {
+
+            this.operation = first.operation;
+            this.register = first.register;
+            this.value = first.value;
+            this.target = target;
+            this.index = index;
+            this.opcode = opcode;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            int[] registers = cpu.registers;
+
+            registers[register] = operation.apply(cpu, registers[register], value);
+            registers[CPU.PC] = index + 1;
+
+            cpu.clock.tick(opcode);
+            cpu.setValue(CPU.PC, false, target);
+        }
+    }
+
+    /**
+     * An IFx followed by any instruction.
+     */
+    static final class Guarded extends Handler {
+
+        final Conditional conditional;
+        final Handler next;
+        final int index, opcode;
+
+        Guarded(Conditional conditional, Handler next, int index, int opcode) {
+
+            this.conditional = conditional;
+            this.next = next;
+            this.index = index;
+            this.opcode = opcode;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            boolean holds = conditional.holds(cpu);
+
+            cpu.registers[CPU.PC] = index + 1;
+
+            if (holds) {
+
+                cpu.clock.tick(opcode);
+                next.execute(cpu);
+            }
+        }
+    }
+
+    /**
+     * An instruction which falls through followed by any instruction.
+     */
+    static final class Fused extends Handler {
+
+        final Handler first, second;
+        final int index, opcode;
+
+        Fused(Handler first, Handler second, int index, int opcode) {
+
+            this.first = first;
+            this.second = second;
+            this.index = index;
+            this.opcode = opcode;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            first.execute(cpu);
+
+            cpu.registers[CPU.PC] = index + 1;
+
+            cpu.clock.tick(opcode);
+            second.execute(cpu);
+        }
+    }
+
+    /**
+     * Hands the instruction back to the interpreter.
+     */
+    static final class Interpreted extends Handler {
+
+        final int index;
+
+        Interpreted(int index) {
+
+            this.index = index;
+        }
+
+        @Override
+        void execute(CPU cpu) {
+
+            cpu.executeInstruction(index);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package io.simengangstad.github.cpu;
+
+/**
+ * The element-wise operations and reductions of the vector instructions, over arrays of words.
+ *
+ * Every kernel is a plain counted loop over the arrays, one loop per operation, so that the
+ * operation isn't dispatched per word. Memories hand the kernels their backing arrays a page or a
+ * chunk at a time, see {@link Memory#combine(int, int, int, int)}. Arithmetic wraps around on
+ * overflow, and MIN and MAX compare the words as signed, as IFG and IFL do.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class Vectors {
+
+    /**
+     * Element-wise operations, in the order of the instructions from VADD.
+     */
+    public static final int
+
+            ADD             = 0x0,
+            SUB             = 0x1,
+            MUL             = 0x2,
+            AND             = 0x3,
+            OR              = 0x4,
+            XOR             = 0x5,
+            MIN             = 0x6,
+            MAX             = 0x7;
+
+    private Vectors() {
+
+    }
+
+    /**
+     * @return The result of an element-wise operation on two words.
+     *
+     * @throws IllegalArgumentException If the operation is unknown.
+     */
+    static int apply(int operation, int a, int b) throws IllegalArgumentException {
+
+        switch (operation) {
+
+            case ADD:   return a + b;
+            case SUB:   return a - b;
+            case MUL:   return a * b;
+            case AND:   return a & b;
+            case OR:    return a | b;
+            case XOR:   return a ^ b;
+            case MIN:   return Math.min(a, b);
+            case MAX:   return Math.max(a, b);
+            default:    throw invalidOperation(operation);
+        }
+    }
+
+    /**
+     * Combines words of a destination with words of a source, in ascending order, so that the arrays
+     * may be the same.
+     *
+     * @throws IllegalArgumentException If the operation is unknown.
+     */
+    static void combine(int operation, int[] destination, int destinationPosition, int[] source, int sourcePosition, int length) throws IllegalArgumentException {
+
+        int d = destinationPosition, s = sourcePosition;
+
+        switch (operation) {
+
+            case ADD:
+
+                for (int i = 0; i < length; i++) {
+
+                    destination[d + i] += source[s + i];
+                }
+
+                break;
+
+            case SUB:
+
+                for (int i = 0; i < length; i++) {
+
+                    destination[d + i] -= source[s + i];
+                }
+
+                break;
+
+            case MUL:
+
+                for (int i = 0; i < length; i++) {
+
+                    destination[d + i] *= source[s + i];
+                }
+
+                break;
+
+            case AND:
+
+                for (int i = 0; i < length; i++) {
+
+                    destination[d + i] &= source[s + i];
+                }
+
+                break;
+
+            case OR:
+
+                for (int i = 0; i < length; i++) {
+
+                    destination[d + i] |= source[s + i];
+                }
+
+                break;
+
+            case XOR:
+
+                for (int i = 0; i < length; i++) {
+
+                    destination[d + i] ^= source[s + i];
+                }
+
+                break;
+
+            case MIN:
+
+                for (int i = 0; i < length; i++) {
+
+                    destination[d + i] = Math.min(destination[d + i], source[s + i]);
+                }
+
+                break;
+
+            case MAX:
+
+                for (int i = 0; i < length; i++) {
+
+                    destination[d + i] = Math.max(destination[d + i], source[s + i]);
+                }
+
+                break;
+
+            default:
+
+                throw invalidOperation(operation);
+        }
+    }
+
+    /**
+     * @return The sum of words, wrapped around.
+     */
+    static int sum(int[] words, int position, int length) {
+
+        int sum = 0;
+
+        for (int i = position; i < position + length; i++) {
+
+            sum += words[i];
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return The sum of the products of two arrays of words, wrapped around.
+     */
+    static int dot(int[] first, int firstPosition, int[] second, int secondPosition, int length) {
+
+        int sum = 0;
+
+        for (int i = 0; i < length; i++) {
+
+            sum += first[firstPosition + i] * second[secondPosition + i];
+        }
+
+        return sum;
+    }
+
+    /**
+     * Checks an operation before any word is combined.
+     *
+     * @throws IllegalArgumentException If the operation is unknown.
+     */
+    static void evaluateOperation(int operation) throws IllegalArgumentException {
+
+        if (operation < ADD || operation > MAX) {
+
+            throw invalidOperation(operation);
+        }
+    }
+
+    private static IllegalArgumentException invalidOperation(int operation) {
+
+        return new IllegalArgumentException("Invalid operation: " + "'" + operation + "'.");
+    }
+}
@@ -0,0 +1,292 @@
+package io.simengangstad.github.cpu.compiler;
+
+import io.simengangstad.github.cpu.AttachableHardware;
+import io.simengangstad.github.cpu.CPU;
+import io.simengangstad.github.cpu.Clock;
+import io.simengangstad.github.cpu.DecodedProgram;
+import io.simengangstad.github.cpu.Memory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static io.simengangstad.github.cpu.compiler.ClassFile.*;
+
+/**
+ * Compiles an assembled program to a class implementing {@link CompiledProgram}, and packages it
+ * as a jar which can be loaded without the interpreter ever seeing the program.
+ *
+ * The program is split into chunks of consecutive instructions, one method per chunk, to stay within
+ * the size limit of JVM methods. The run method calls the chunk of the current instruction until the
+ * program finishes.
+ *
+ * Usage:
+ *
+ *      int[] program = new Assembler().assemble(code, false);
+ *      AheadOfTimeCompiler.compile(program, "programs.DrawLoop", Paths.get("draw_loop.jar"));
+ *
+ *      try (CompiledProgram compiled = AheadOfTimeCompiler.load(Paths.get("draw_loop.jar"))) {
+ *
+ *          compiled.run(new ArrayMemory(0x10000), hardware);
+ *      }
+ *
+ * The classes of the CPU have to be on the class path when the jar is loaded.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class AheadOfTimeCompiler {
+
+    /**
+     * The manifest attribute naming the compiled program class.
+     */
+    public static final String PROGRAM_ATTRIBUTE = "Compiled-Program";
+
+    /**
+     * The amount of instructions per chunk to start with, as a power of two.
+     */
+    private static final int CHUNK_SHIFT = 8;
+
+    private AheadOfTimeCompiler() {
+
+    }
+
+    /**
+     * Compiles a program to a class file.
+     *
+     * @param program The decoded program.
+     * @param className The binary name of the class, e.g. "programs.DrawLoop".
+     * @param clock The clock providing the cost of every instruction.
+     *
+     * @return The class file.
+     *
+     * @throws IllegalStateException If the program can't be compiled.
+     */
+    public static byte[] compile(DecodedProgram program, String className, Clock clock) throws IllegalStateException {
+
+        IllegalStateException failure = null;
+
+        // Halve the chunks until every method fits
+        for (int chunkShift = CHUNK_SHIFT; chunkShift >= 0; chunkShift--) {
+
+            try {
+
+                return compile(program, className.replace('.', '/'), clock, chunkShift);
+            }
+            catch (IllegalStateException exception) {
+
+                failure = exception;
+            }
+        }
+
+        throw failure;
+    }
+
+    /**
+     * Compiles an assembled program to a jar, where every instruction costs one cycle.
+     *
+     * @param program The assembled program.
+     * @param className The binary name of the class, e.g. "programs.DrawLoop".
+     * @param jar The path of the jar.
+     *
+     * @throws IOException If the jar couldn't be written.
+     */
+    public static void compile(int[] program, String className, Path jar) throws IOException {
+
+        compile(program, className, jar, Clock.wallClock());
+    }
+
+    /**
+     * Compiles an assembled program to a jar.
+     *
+     * @param program The assembled program.
+     * @param className The binary name of the class, e.g. "programs.DrawLoop".
+     * @param jar The path of the jar.
+     * @param clock The clock providing the cost of every instruction.
+     *
+     * @throws IOException If the jar couldn't be written.
+     */
+    public static void compile(int[] program, String className, Path jar, Clock clock) throws IOException {
+
+        byte[] classFile = compile(new DecodedProgram(program), className, clock);
+
+        Manifest manifest = new Manifest();
+
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(new Attributes.Name(PROGRAM_ATTRIBUTE), className);
+
+        try (OutputStream outputStream = Files.newOutputStream(jar); JarOutputStream jarOutputStream = new JarOutputStream(outputStream, manifest)) {
+
+            jarOutputStream.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+            jarOutputStream.write(classFile);
+            jarOutputStream.closeEntry();
+        }
+    }
+
+    /**
+     * Loads a program compiled to a jar.
+     *
+     * @param jar The path of the jar.
+     *
+     * @return The program, which keeps the jar open until it's closed.
+     *
+     * @throws IOException If the jar couldn't be read or doesn't contain a compiled program.
+     */
+    public static CompiledProgram load(Path jar) throws IOException {
+
+        String className;
+
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+
+            Manifest manifest = jarFile.getManifest();
+
+            className = manifest == null ? null : manifest.getMainAttributes().getValue(PROGRAM_ATTRIBUTE);
+        }
+
+        if (className == null) {
+
+            throw new IOException("No compiled program in " + jar + ".");
+        }
+
+        URLClassLoader classLoader = new URLClassLoader(new URL[] {jar.toUri().toURL()}, AheadOfTimeCompiler.class.getClassLoader());
+
+        CompiledProgram program;
+
+        try {
+
+            program = (CompiledProgram) classLoader.loadClass(className).getConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException exception) {
+
+            classLoader.close();
+
+            throw new IOException("Couldn't load the compiled program " + className + ".", exception);
+        }
+
+        return new LoadedProgram(program, classLoader);
+    }
+
+    /**
+     * A program loaded from a jar, which closes the class loader reading the jar when closed.
+     */
+    private static final class LoadedProgram implements CompiledProgram {
+
+        private final CompiledProgram program;
+        private final URLClassLoader classLoader;
+
+        LoadedProgram(CompiledProgram program, URLClassLoader classLoader) {
+
+            this.program = program;
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public int[] run(Memory memory, Map<Integer, AttachableHardware> hardware, Clock clock) {
+
+            return program.run(memory, hardware, clock);
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            classLoader.close();
+        }
+    }
+
+    private static byte[] compile(DecodedProgram program, String internalName, Clock clock, int chunkShift) {
+
+        ClassFile classFile = new ClassFile(internalName, RegionCompiler.OBJECT, "io/simengangstad/github/cpu/compiler/CompiledProgram");
+
+        classFile.defaultConstructor(RegionCompiler.OBJECT);
+
+        int chunks = (program.length + (1 << chunkShift) - 1) >> chunkShift;
+
+        for (int chunk = 0; chunk < chunks; chunk++) {
+
+            RegionCompiler.compileChunk(classFile, program, clock, "chunk" + chunk, chunk << chunkShift, Math.min(((chunk + 1) << chunkShift), program.length) - 1);
+        }
+
+        // Locals: this, memory, hardware, clock, registers, runtime, pc
+        ClassFile.Method run = classFile.method(ACC_PUBLIC, "run", "(L" + RegionCompiler.MEMORY + ";Ljava/util/Map;L" + RegionCompiler.CLOCK + ";)[I", 7);
+
+        run.push(13).op(NEWARRAY).op(T_INT).local(ASTORE, 4);
+        run.local(ALOAD, 4).push(CPU.SP).local(ALOAD, 1).invoke(INVOKEVIRTUAL, RegionCompiler.MEMORY, "capasity", "()I").push(1).op(ISUB).op(IASTORE);
+        run.type(NEW, RegionCompiler.RUNTIME).op(DUP).local(ALOAD, 1).local(ALOAD, 2).local(ALOAD, 3);
+
+        String opcodes = opcodes(program);
+
+        if (opcodes == null) {
+
+            run.op(ACONST_NULL);
+        }
+        else {
+
+            run.pushString(opcodes);
+        }
+
+        run.invoke(INVOKESPECIAL, RegionCompiler.RUNTIME, "<init>", "(L" + RegionCompiler.MEMORY + ";Ljava/util/Map;L" + RegionCompiler.CLOCK + ";Ljava/lang/String;)V").local(ASTORE, 5);
+        run.push(0).local(ISTORE, 6);
+
+        Label loop = new Label(), end = new Label();
+        Label[] table = new Label[chunks];
+
+        run.place(loop);
+        run.local(ILOAD, 6).push(program.length).branch(IF_ICMPGE, end);
+
+        if (chunks > 0) {
+
+            for (int chunk = 0; chunk < chunks; chunk++) {
+
+                table[chunk] = new Label();
+            }
+
+            run.local(ILOAD, 6).push(chunkShift).op(ISHR).tableSwitch(0, end, table);
+
+            for (int chunk = 0; chunk < chunks; chunk++) {
+
+                run.place(table[chunk]);
+                run.local(ALOAD, 0).local(ALOAD, 4).local(ALOAD, 1).local(ALOAD, 5).local(ILOAD, 6);
+                run.invoke(INVOKESPECIAL, internalName, "chunk" + chunk, RegionCompiler.CHUNK_DESCRIPTOR).local(ISTORE, 6);
+                run.branch(GOTO, loop);
+            }
+        }
+
+        run.place(end);
+        run.local(ALOAD, 4).push(CPU.PC).local(ILOAD, 6).op(IASTORE);
+        run.local(ALOAD, 4).op(ARETURN);
+
+        return classFile.toByteArray();
+    }
+
+    /**
+     * @return The instruction identifier of every instruction as a character, or null if they don't
+     * fit in a string constant.
+     */
+    private static String opcodes(DecodedProgram program) {
+
+        StringBuilder opcodes = new StringBuilder(program.length);
+
+        // Modified UTF-8 takes two bytes for 0 and for characters from 0x80
+        int size = 0;
+
+        for (int instruction = 0; instruction < program.length; instruction++) {
+
+            char opcode = (char) program.opcode(instruction);
+
+            opcodes.append(opcode);
+
+            size += opcode == 0 || opcode >= 0x80 ? 2 : 1;
+        }
+
+        return size > 0xffff ? null : opcodes.toString();
+    }
+}
@@ -0,0 +1,750 @@
+package io.simengangstad.github.cpu.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A minimal writer of JVM class files, just enough to emit the classes the compilers generate.
+ *
+ * Classes are written as version 49 (Java 5) class files, which are verified by type inference, so
+ * no stack map frames have to be computed.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class ClassFile {
+
+    /**
+     * Access flags.
+     */
+    public static final int
+
+            ACC_PUBLIC      = 0x0001,
+            ACC_PRIVATE     = 0x0002,
+            ACC_STATIC      = 0x0008,
+            ACC_FINAL       = 0x0010,
+            ACC_SUPER       = 0x0020;
+
+    /**
+     * The opcodes that are used.
+     */
+    public static final int
+
+            NOP             = 0x00,
+            ACONST_NULL     = 0x01,
+            ICONST_0        = 0x03,
+            BIPUSH          = 0x10,
+            SIPUSH          = 0x11,
+            LDC_W           = 0x13,
+            LDC2_W          = 0x14,
+            ILOAD           = 0x15,
+            LLOAD           = 0x16,
+            ALOAD           = 0x19,
+            IALOAD          = 0x2e,
+            ISTORE          = 0x36,
+            LSTORE          = 0x37,
+            ASTORE          = 0x3a,
+            IASTORE         = 0x4f,
+            POP             = 0x57,
+            DUP             = 0x59,
+            DUP_X1          = 0x5a,
+            SWAP            = 0x5f,
+            IADD            = 0x60,
+            LADD            = 0x61,
+            LSUB            = 0x65,
+            ISUB            = 0x64,
+            IMUL            = 0x68,
+            LMUL            = 0x69,
+            IDIV            = 0x6c,
+            IREM            = 0x70,
+            LNEG            = 0x75,
+            ISHL            = 0x78,
+            ISHR            = 0x7a,
+            LSHR            = 0x7b,
+            IUSHR           = 0x7c,
+            LUSHR           = 0x7d,
+            IAND            = 0x7e,
+            LAND            = 0x7f,
+            IOR             = 0x80,
+            IXOR            = 0x82,
+            IINC            = 0x84,
+            I2L             = 0x85,
+            L2I             = 0x88,
+            LCMP            = 0x94,
+            IFEQ            = 0x99,
+            IFNE            = 0x9a,
+            IFLT            = 0x9b,
+            IFGE            = 0x9c,
+            IFGT            = 0x9d,
+            IFLE            = 0x9e,
+            IF_ICMPEQ       = 0x9f,
+            IF_ICMPNE       = 0xa0,
+            IF_ICMPLT       = 0xa1,
+            IF_ICMPGE       = 0xa2,
+            IF_ICMPGT       = 0xa3,
+            IF_ICMPLE       = 0xa4,
+            GOTO            = 0xa7,
+            TABLESWITCH     = 0xaa,
+            IRETURN         = 0xac,
+            ARETURN         = 0xb0,
+            RETURN          = 0xb1,
+            GETFIELD        = 0xb4,
+            PUTFIELD        = 0xb5,
+            INVOKEVIRTUAL   = 0xb6,
+            INVOKESPECIAL   = 0xb7,
+            INVOKESTATIC    = 0xb8,
+            INVOKEINTERFACE = 0xb9,
+            NEW             = 0xbb,
+            NEWARRAY        = 0xbc,
+            ATHROW          = 0xbf,
+            CHECKCAST       = 0xc0;
+
+    /**
+     * The array type of NEWARRAY for int arrays.
+     */
+    public static final int T_INT = 10;
+
+    /**
+     * A position in the code of a method which can be branched to.
+     */
+    public static final class Label {
+
+        private int position = -1;
+
+        private final ArrayList<int[]> fixups = new ArrayList<>();
+
+        /**
+         * @return If the label has been placed.
+         */
+        public boolean isPlaced() {
+
+            return position != -1;
+        }
+    }
+
+    /**
+     * The code of a method.
+     */
+    public final class Method {
+
+        private final int access, name, descriptor, maxLocals;
+
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+        private final ArrayList<Object[]> exceptionLabels = new ArrayList<>();
+
+        private final ArrayList<Label> labels = new ArrayList<>();
+
+        private Method(int access, String name, String descriptor, int maxLocals) {
+
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.maxLocals = maxLocals;
+        }
+
+        /**
+         * @return The amount of bytes of code written so far.
+         */
+        public int size() {
+
+            return code.size();
+        }
+
+        public Method op(int opcode) {
+
+            code.write(opcode);
+
+            return this;
+        }
+
+        /**
+         * Pushes an integer constant with the shortest instruction available.
+         */
+        public Method push(int value) {
+
+            if (value >= -1 && value <= 5) {
+
+                code.write(ICONST_0 + value);
+            }
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+
+                code.write(BIPUSH);
+                code.write(value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+
+                code.write(SIPUSH);
+                writeShort(value);
+            }
+            else {
+
+                code.write(LDC_W);
+                writeShort(integer(value));
+            }
+
+            return this;
+        }
+
+        /**
+         * Pushes a long constant.
+         */
+        public Method pushLong(long value) {
+
+            code.write(LDC2_W);
+            writeShort(longConstant(value));
+
+            return this;
+        }
+
+        /**
+         * Pushes a string constant.
+         */
+        public Method pushString(String value) {
+
+            code.write(LDC_W);
+            writeShort(string(value));
+
+            return this;
+        }
+
+        public Method local(int opcode, int index) {
+
+            code.write(opcode);
+            code.write(index);
+
+            return this;
+        }
+
+        /**
+         * Adds a constant to an int local.
+         */
+        public Method increment(int index, int value) {
+
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+
+                code.write(IINC);
+                code.write(index);
+                code.write(value);
+
+                return this;
+            }
+
+            return local(ILOAD, index).push(value).op(IADD).local(ISTORE, index);
+        }
+
+        public Method type(int opcode, String className) {
+
+            code.write(opcode);
+            writeShort(classReference(className));
+
+            return this;
+        }
+
+        public Method field(int opcode, String owner, String name, String descriptor) {
+
+            code.write(opcode);
+            writeShort(fieldReference(owner, name, descriptor));
+
+            return this;
+        }
+
+        public Method invoke(int opcode, String owner, String name, String descriptor) {
+
+            code.write(opcode);
+
+            if (opcode == INVOKEINTERFACE) {
+
+                writeShort(interfaceMethodReference(owner, name, descriptor));
+                code.write(argumentSlots(descriptor) + 1);
+                code.write(0);
+            }
+            else {
+
+                writeShort(methodReference(owner, name, descriptor));
+            }
+
+            return this;
+        }
+
+        /**
+         * Writes a branch instruction to a label.
+         */
+        public Method branch(int opcode, Label label) {
+
+            int position = code.size();
+
+            code.write(opcode);
+
+            reference(label, position);
+
+            return this;
+        }
+
+        /**
+         * Writes a table switch over the keys low to low + labels.length - 1.
+         */
+        public Method tableSwitch(int low, Label defaultLabel, Label[] labels) {
+
+            int position = code.size();
+
+            code.write(TABLESWITCH);
+
+            while (code.size() % 4 != 0) {
+
+                code.write(0);
+            }
+
+            referenceWide(defaultLabel, position);
+            writeInt(low);
+            writeInt(low + labels.length - 1);
+
+            for (Label label : labels) {
+
+                referenceWide(label, position);
+            }
+
+            return this;
+        }
+
+        /**
+         * Places a label at the current position.
+         */
+        public Method place(Label label) {
+
+            label.position = code.size();
+
+            return this;
+        }
+
+        /**
+         * Catches the given exception type thrown between the two labels.
+         */
+        public Method handler(Label start, Label end, Label handler, String exceptionClass) {
+
+            exceptionLabels.add(new Object[] {start, end, handler, exceptionClass == null ? 0 : classReference(exceptionClass)});
+
+            return this;
+        }
+
+        private void reference(Label label, int instructionPosition) {
+
+            label.fixups.add(new int[] {code.size(), instructionPosition, 2});
+
+            writeShort(0);
+
+            labels.add(label);
+        }
+
+        private void referenceWide(Label label, int instructionPosition) {
+
+            label.fixups.add(new int[] {code.size(), instructionPosition, 4});
+
+            writeInt(0);
+
+            labels.add(label);
+        }
+
+        private void writeShort(int value) {
+
+            code.write(value >>> 8);
+            code.write(value);
+        }
+
+        private void writeInt(int value) {
+
+            writeShort(value >>> 16);
+            writeShort(value);
+        }
+
+        /**
+         * @return The finished code with the branch offsets resolved.
+         *
+         * @throws IllegalStateException If a label isn't placed or a branch is too long.
+         */
+        private byte[] resolve() throws IllegalStateException {
+
+            byte[] bytes = code.toByteArray();
+
+            for (Label label : labels) {
+
+                if (!label.isPlaced()) {
+
+                    throw new IllegalStateException("Branch to a label which isn't placed.");
+                }
+
+                for (int[] fixup : label.fixups) {
+
+                    int offset = label.position - fixup[1];
+
+                    if (fixup[2] == 2) {
+
+                        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+
+                            throw new IllegalStateException("Branch offset too large.");
+                        }
+
+                        bytes[fixup[0]] = (byte) (offset >>> 8);
+                        bytes[fixup[0] + 1] = (byte) offset;
+                    }
+                    else {
+
+                        bytes[fixup[0]] = (byte) (offset >>> 24);
+                        bytes[fixup[0] + 1] = (byte) (offset >>> 16);
+                        bytes[fixup[0] + 2] = (byte) (offset >>> 8);
+                        bytes[fixup[0] + 3] = (byte) offset;
+                    }
+                }
+
+                label.fixups.clear();
+            }
+
+            labels.clear();
+
+            return bytes;
+        }
+    }
+
+    private final String name;
+
+    private final int thisClass, superClass;
+
+    private final int[] interfaces;
+
+    private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+
+    private final DataOutputStream constants = new DataOutputStream(constantPool);
+
+    private final HashMap<String, Integer> constantIndices = new HashMap<>();
+
+    private int constantCount = 1;
+
+    private final ArrayList<Method> methods = new ArrayList<>();
+
+    private final ArrayList<int[]> fields = new ArrayList<>();
+
+    /**
+     * Starts a public final class.
+     *
+     * @param name The internal name of the class, e.g. "io/simengangstad/github/cpu/compiler/Region".
+     * @param superName The internal name of the super class.
+     * @param interfaceNames The internal names of the interfaces the class implements.
+     */
+    public ClassFile(String name, String superName, String... interfaceNames) {
+
+        this.name = name;
+
+        thisClass = classReference(name);
+        superClass = classReference(superName);
+
+        interfaces = new int[interfaceNames.length];
+
+        for (int i = 0; i < interfaceNames.length; i++) {
+
+            interfaces[i] = classReference(interfaceNames[i]);
+        }
+    }
+
+    /**
+     * @return The internal name of the class.
+     */
+    public String name() {
+
+        return name;
+    }
+
+    /**
+     * Adds a method to the class.
+     *
+     * @param maxLocals The amount of local variable slots the method uses, including the arguments.
+     */
+    public Method method(int access, String name, String descriptor, int maxLocals) {
+
+        Method method = new Method(access, name, descriptor, maxLocals);
+
+        methods.add(method);
+
+        return method;
+    }
+
+    /**
+     * Adds a field to the class.
+     */
+    public void field(int access, String name, String descriptor) {
+
+        fields.add(new int[] {access, utf8(name), utf8(descriptor)});
+    }
+
+    /**
+     * Adds a public constructor which calls the constructor of the super class without arguments.
+     */
+    public void defaultConstructor(String superName) {
+
+        method(ACC_PUBLIC, "<init>", "()V", 1)
+                .local(ALOAD, 0)
+                .invoke(INVOKESPECIAL, superName, "<init>", "()V")
+                .op(RETURN);
+    }
+
+    /**
+     * @return The class file.
+     *
+     * @throws IllegalStateException If a method couldn't be resolved.
+     */
+    public byte[] toByteArray() throws IllegalStateException {
+
+        try {
+
+            int code = utf8("Code");
+
+            ArrayList<byte[]> resolvedMethods = new ArrayList<>();
+
+            for (Method method : methods) {
+
+                byte[] bytes = method.resolve();
+
+                if (bytes.length >= 0x10000) {
+
+                    throw new IllegalStateException("Method too large.");
+                }
+
+                ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+                DataOutputStream output = new DataOutputStream(methodBytes);
+
+                output.writeShort(method.access);
+                output.writeShort(method.name);
+                output.writeShort(method.descriptor);
+                output.writeShort(1);
+                output.writeShort(code);
+                output.writeInt(12 + bytes.length + 8 * method.exceptionLabels.size());
+                output.writeShort(64);
+                output.writeShort(method.maxLocals);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+                output.writeShort(method.exceptionLabels.size());
+
+                for (Object[] entry : method.exceptionLabels) {
+
+                    output.writeShort(((Label) entry[0]).position);
+                    output.writeShort(((Label) entry[1]).position);
+                    output.writeShort(((Label) entry[2]).position);
+                    output.writeShort((Integer) entry[3]);
+                }
+
+                output.writeShort(0);
+
+                resolvedMethods.add(methodBytes.toByteArray());
+            }
+
+            ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(classBytes);
+
+            output.writeInt(0xcafebabe);
+            output.writeShort(0);
+            output.writeShort(49);
+            output.writeShort(constantCount);
+            output.write(constantPool.toByteArray());
+            output.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            output.writeShort(thisClass);
+            output.writeShort(superClass);
+            output.writeShort(interfaces.length);
+
+            for (int anInterface : interfaces) {
+
+                output.writeShort(anInterface);
+            }
+
+            output.writeShort(fields.size());
+
+            for (int[] field : fields) {
+
+                output.writeShort(field[0]);
+                output.writeShort(field[1]);
+                output.writeShort(field[2]);
+                output.writeShort(0);
+            }
+
+            output.writeShort(resolvedMethods.size());
+
+            for (byte[] method : resolvedMethods) {
+
+                output.write(method);
+            }
+
+            output.writeShort(0);
+
+            return classBytes.toByteArray();
+        }
+        catch (IOException exception) {
+
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private int utf8(String value) {
+
+        return constant("U" + value, 1, () -> {
+
+            constants.writeByte(1);
+            constants.writeUTF(value);
+        });
+    }
+
+    private int classReference(String className) {
+
+        int utf8 = utf8(className);
+
+        return constant("C" + className, 1, () -> {
+
+            constants.writeByte(7);
+            constants.writeShort(utf8);
+        });
+    }
+
+    private int string(String value) {
+
+        int utf8 = utf8(value);
+
+        return constant("S" + value, 1, () -> {
+
+            constants.writeByte(8);
+            constants.writeShort(utf8);
+        });
+    }
+
+    private int integer(int value) {
+
+        return constant("I" + value, 1, () -> {
+
+            constants.writeByte(3);
+            constants.writeInt(value);
+        });
+    }
+
+    private int longConstant(long value) {
+
+        return constant("J" + value, 2, () -> {
+
+            constants.writeByte(5);
+            constants.writeLong(value);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+
+        int nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+
+        return constant("N" + name + ":" + descriptor, 1, () -> {
+
+            constants.writeByte(12);
+            constants.writeShort(nameIndex);
+            constants.writeShort(descriptorIndex);
+        });
+    }
+
+    private int fieldReference(String owner, String name, String descriptor) {
+
+        return memberReference(9, owner, name, descriptor);
+    }
+
+    private int methodReference(String owner, String name, String descriptor) {
+
+        return memberReference(10, owner, name, descriptor);
+    }
+
+    private int interfaceMethodReference(String owner, String name, String descriptor) {
+
+        return memberReference(11, owner, name, descriptor);
+    }
+
+    private int memberReference(int tag, String owner, String name, String descriptor) {
+
+        int ownerIndex = classReference(owner), nameAndTypeIndex = nameAndType(name, descriptor);
+
+        return constant(tag + owner + "." + name + ":" + descriptor, 1, () -> {
+
+            constants.writeByte(tag);
+            constants.writeShort(ownerIndex);
+            constants.writeShort(nameAndTypeIndex);
+        });
+    }
+
+    /**
+     * The writing of a constant pool entry.
+     */
+    private interface ConstantWriter {
+
+        void write() throws IOException;
+    }
+
+    /**
+     * @return The index of the constant, which is written to the pool if it isn't there already.
+     */
+    private int constant(String key, int slots, ConstantWriter writer) {
+
+        Integer index = constantIndices.get(key);
+
+        if (index != null) {
+
+            return index;
+        }
+
+        try {
+
+            writer.write();
+        }
+        catch (IOException exception) {
+
+            throw new IllegalStateException(exception);
+        }
+
+        index = constantCount;
+
+        constantCount += slots;
+
+        constantIndices.put(key, index);
+
+        return index;
+    }
+
+    /**
+     * @return The amount of local variable slots the arguments of a method descriptor take.
+     */
+    private static int argumentSlots(String descriptor) {
+
+        int slots = 0;
+
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+
+            char c = descriptor.charAt(i);
+
+            if (c == 'L') {
+
+                i = descriptor.indexOf(';', i);
+            }
+            else if (c == '[') {
+
+                while (descriptor.charAt(i) == '[') {
+
+                    i++;
+                }
+
+                if (descriptor.charAt(i) == 'L') {
+
+                    i = descriptor.indexOf(';', i);
+                }
+
+                slots++;
+
+                continue;
+            }
+
+            slots += (c == 'J' || c == 'D') ? 2 : 1;
+        }
+
+        return slots;
+    }
+}
@@ -0,0 +1,56 @@
+package io.simengangstad.github.cpu.compiler;
+
+import io.simengangstad.github.cpu.AttachableHardware;
+import io.simengangstad.github.cpu.Clock;
+import io.simengangstad.github.cpu.Memory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A whole program compiled ahead of time to JVM bytecode.
+ *
+ * A program loaded from a jar holds the jar open until it's closed, see
+ * {@link AheadOfTimeCompiler#load(java.nio.file.Path)}.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public interface CompiledProgram extends Closeable {
+
+    /**
+     * Runs the program from its first instruction until it finishes, with a wall clock.
+     *
+     * @param memory The memory of the program.
+     * @param hardware The hardware the program can access, by location.
+     *
+     * @return The registers when the program finished (A, B, C, X, Y, Z, I, J, PC, SP, PUSH|POP, PEEK, EX).
+     */
+    default int[] run(Memory memory, Map<Integer, AttachableHardware> hardware) {
+
+        return run(memory, hardware, Clock.wallClock());
+    }
+
+    /**
+     * Runs the program from its first instruction until it finishes.
+     *
+     * @param memory The memory of the program.
+     * @param hardware The hardware the program can access, by location.
+     * @param clock The clock keeping the time of the program. The cost of the instructions are the
+     *              ones of the clock the program was compiled with.
+     *
+     * @return The registers when the program finished (A, B, C, X, Y, Z, I, J, PC, SP, PUSH|POP, PEEK, EX).
+     */
+    int[] run(Memory memory, Map<Integer, AttachableHardware> hardware, Clock clock);
+
+    /**
+     * Releases what the program was loaded with. Does nothing by default.
+     *
+     * @throws IOException If it couldn't be released.
+     */
+    @Override
+    default void close() throws IOException {
+
+    }
+}
@@ -0,0 +1,25 @@
+package io.simengangstad.github.cpu.compiler;
+
+import io.simengangstad.github.cpu.Clock;
+import io.simengangstad.github.cpu.Memory;
+
+/**
+ * A region of a program compiled to JVM bytecode.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public interface CompiledRegion {
+
+    /**
+     * Executes the region from its entry until it leaves the region, reaches an instruction it
+     * doesn't handle or would fault. The registers are up to date when it returns.
+     *
+     * @param registers The registers of the CPU.
+     * @param memory The memory of the CPU.
+     * @param clock The clock of the CPU, which the executed instructions are reported to.
+     *
+     * @return The instruction the interpreter shall continue at.
+     */
+    int execute(int[] registers, Memory memory, Clock clock);
+}
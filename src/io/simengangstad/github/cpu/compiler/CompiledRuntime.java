@@ -0,0 +1,185 @@
+package io.simengangstad.github.cpu.compiler;
+
+import io.simengangstad.github.cpu.AttachableHardware;
+import io.simengangstad.github.cpu.Clock;
+import io.simengangstad.github.cpu.Memory;
+import io.simengangstad.github.cpu.exception.CpuFault;
+
+import java.util.Map;
+
+/**
+ * The parts of the CPU that programs compiled ahead of time call into: the hardware, the time since
+ * boot and faults.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class CompiledRuntime {
+
+    /**
+     * The hardware by location.
+     */
+    private final Map<Integer, AttachableHardware> hardware;
+
+    /**
+     * The clock keeping the time since the program started.
+     */
+    private final Clock clock;
+
+    /**
+     * The instruction identifier of every instruction as a character, or null if they aren't known.
+     */
+    private final String opcodes;
+
+    /**
+     * Used to reduce memory footprint when passing arguments to hardware.
+     */
+    private int[] arguments = new int[2];
+
+    /**
+     * Initializes the runtime, attaches the hardware to the memory and resets the clock.
+     *
+     * @param opcodes The instruction identifier of every instruction as a character, or null if
+     *                they aren't known. Used to tell which instruction faulted.
+     */
+    public CompiledRuntime(Memory memory, Map<Integer, AttachableHardware> hardware, Clock clock, String opcodes) {
+
+        this.hardware = hardware;
+        this.clock = clock;
+        this.opcodes = opcodes;
+
+        for (AttachableHardware attachableHardware : hardware.values()) {
+
+            attachableHardware.setMemory(memory);
+        }
+
+        clock.reset();
+    }
+
+    /**
+     * @return The clock the compiled code reports the executed instructions to.
+     */
+    public Clock clock() {
+
+        return clock;
+    }
+
+    /**
+     * @return An array which can hold the given amount of arguments to hardware.
+     */
+    public int[] arguments(int size) {
+
+        if (arguments.length < size) {
+
+            arguments = new int[size];
+        }
+
+        return arguments;
+    }
+
+    /**
+     * Dispatches arguments to hardware (HDP).
+     */
+    public void dispatch(int instruction, int location, int[] arguments, int size) {
+
+        AttachableHardware attachableHardware = hardware.get(location);
+
+        if (attachableHardware == null) {
+
+            throw fault(instruction, "Invalid hardware location.");
+        }
+
+        await(attachableHardware);
+
+        // Hardware may be attached to several cores
+        synchronized (attachableHardware) {
+
+            attachableHardware.process(arguments, size);
+        }
+    }
+
+    /**
+     * Retrieves a value from hardware (HRT).
+     */
+    public int retrieve(int instruction, int location, int[] arguments, int size) {
+
+        AttachableHardware attachableHardware = hardware.get(location);
+
+        if (attachableHardware == null) {
+
+            throw fault(instruction, "Invalid hardware location.");
+        }
+
+        await(attachableHardware);
+
+        synchronized (attachableHardware) {
+
+            return attachableHardware.retrieve(arguments, size);
+        }
+    }
+
+    /**
+     * Waits until the hardware is ready, as programs compiled ahead of time run to completion.
+     */
+    private static void await(AttachableHardware attachableHardware) {
+
+        while (!attachableHardware.isReady()) {
+
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return The milliseconds since the program started, reset after 0xffffffff milliseconds.
+     */
+    public int time() {
+
+        return clock.time();
+    }
+
+    /**
+     * Creates a fault at an instruction.
+     *
+     * @return The exception the compiled code throws.
+     */
+    public RuntimeException fault(int instruction, String msg) {
+
+        return new CpuFault(instruction, opcode(instruction), msg, null, null);
+    }
+
+    /**
+     * Creates the fault leaving the compiled code from an exception thrown while executing an
+     * instruction, which is either a fault or an exception from the memory or the hardware.
+     *
+     * @param registers The registers when the instruction faulted.
+     *
+     * @return The exception the compiled code throws.
+     */
+    public RuntimeException fault(int instruction, RuntimeException exception, int[] registers) {
+
+        if (exception instanceof CpuFault) {
+
+            return ((CpuFault) exception).withRegisters(registers);
+        }
+
+        return new CpuFault(instruction, opcode(instruction), exception.getMessage(), registers, exception);
+    }
+
+    /**
+     * Creates the fault of a jump outside of the program.
+     *
+     * @return The exception the compiled code throws.
+     */
+    public RuntimeException invalidProgramCounter(int instruction, int value) {
+
+        return fault(instruction, "Invalid program counter: " + "'" + value + "'.");
+    }
+
+    /**
+     * @return The instruction identifier of an instruction, or -1 if it isn't known.
+     */
+    private int opcode(int instruction) {
+
+        return opcodes == null || instruction < 0 || instruction >= opcodes.length() ? -1 : opcodes.charAt(instruction);
+    }
+}
@@ -0,0 +1,273 @@
+package io.simengangstad.github.cpu.compiler;
+
+import io.simengangstad.github.cpu.Clock;
+import io.simengangstad.github.cpu.DecodedProgram;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts how many times every instruction is jumped to, and compiles the region starting at an
+ * instruction to a hidden class once it has been jumped to often enough. HotSpot then compiles
+ * the hidden class like any other code, so hot guest loops end up as native code.
+ *
+ * When the program is executed from memory, the compiled regions check if their code has been
+ * written to, and the regions compiled from written pages are dropped once the CPU has decoded the
+ * code again, see {@link #invalidate(DecodedProgram, int, int, int)}.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class JustInTimeCompiler {
+
+    /**
+     * The default amount of jumps to an instruction before the region starting there is compiled.
+     */
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    /**
+     * The maximum amount of instructions in a region.
+     */
+    private static final int MAXIMUM_REGION_INSTRUCTIONS = 256;
+
+    /**
+     * The amount of regions which failed to compile or load, see {@link #failures()}.
+     */
+    private static final AtomicInteger FAILURES = new AtomicInteger();
+
+    private final DecodedProgram program;
+
+    private final int threshold;
+
+    private final Clock clock;
+
+    /**
+     * If regions may contain atomic instructions.
+     */
+    private final boolean atomics;
+
+    /**
+     * The amount of jumps to every instruction.
+     */
+    private final int[] counters;
+
+    /**
+     * The compiled regions by the instruction they start at.
+     */
+    private final CompiledRegion[] regions;
+
+    /**
+     * The address of the program in memory, or -1 if it isn't executed from memory.
+     */
+    private int code = -1;
+
+    /**
+     * The version of the code in memory the program was decoded from.
+     */
+    private int version;
+
+    /**
+     * The first and the last word of the program every compiled region was compiled from, when the
+     * program is executed from memory.
+     */
+    private int[] firstWords, lastWords;
+
+    /**
+     * Initializes the compiler for a program.
+     *
+     * @param program The program.
+     * @param threshold The amount of jumps to an instruction before the region starting there is compiled.
+     * @param clock The clock providing the cost of every instruction.
+     */
+    public JustInTimeCompiler(DecodedProgram program, int threshold, Clock clock) {
+
+        this(program, threshold, clock, true);
+    }
+
+    /**
+     * Initializes the compiler for a program.
+     *
+     * @param program The program.
+     * @param threshold The amount of jumps to an instruction before the region starting there is compiled.
+     * @param clock The clock providing the cost of every instruction.
+     * @param atomics If regions may contain atomic instructions, otherwise they're left to the
+     *                interpreter, e.g. when the CPU has to stop before them.
+     */
+    public JustInTimeCompiler(DecodedProgram program, int threshold, Clock clock, boolean atomics) {
+
+        this.program = program;
+        this.threshold = threshold;
+        this.clock = clock;
+        this.atomics = atomics;
+
+        counters = new int[program.length + 1];
+        regions = new CompiledRegion[program.length + 1];
+    }
+
+    /**
+     * Forks the compiler for a forked CPU. The fork starts with the same counts and shares the
+     * compiled regions, which don't hold any state.
+     *
+     * @param clock The clock of the forked CPU.
+     *
+     * @return The fork.
+     */
+    public JustInTimeCompiler fork(Clock clock) {
+
+        JustInTimeCompiler compiler = new JustInTimeCompiler(program, threshold, clock, atomics);
+
+        System.arraycopy(counters, 0, compiler.counters, 0, counters.length);
+        System.arraycopy(regions, 0, compiler.regions, 0, regions.length);
+
+        if (code != -1) {
+
+            compiler.watch(code, version);
+
+            System.arraycopy(firstWords, 0, compiler.firstWords, 0, firstWords.length);
+            System.arraycopy(lastWords, 0, compiler.lastWords, 0, lastWords.length);
+        }
+
+        return compiler;
+    }
+
+    /**
+     * Compiles regions which check if their code has been written to, as the program is executed
+     * from memory.
+     *
+     * @param code The address of the program in memory.
+     * @param version The version of the code in memory the program was decoded from.
+     */
+    public void watch(int code, int version) {
+
+        this.code = code;
+        this.version = version;
+
+        if (firstWords == null) {
+
+            firstWords = new int[regions.length];
+            lastWords = new int[regions.length];
+        }
+    }
+
+    /**
+     * Creates a compiler for the program executed from memory after some of its words have been
+     * written to, where the program has the same instructions as before otherwise. The new compiler
+     * keeps the counts and the regions which weren't compiled from the written words.
+     *
+     * @param program The program decoded again.
+     * @param first The first word written to.
+     * @param last The last word written to.
+     * @param version The version of the code in memory the program was decoded from.
+     *
+     * @return The compiler for the program.
+     */
+    public JustInTimeCompiler invalidate(DecodedProgram program, int first, int last, int version) {
+
+        JustInTimeCompiler compiler = new JustInTimeCompiler(program, threshold, clock, atomics);
+
+        compiler.watch(code, version);
+
+        System.arraycopy(counters, 0, compiler.counters, 0, counters.length);
+
+        for (int entry = 0; entry < regions.length; entry++) {
+
+            if (regions[entry] == null) {
+
+                continue;
+            }
+
+            if (lastWords[entry] < first || firstWords[entry] > last) {
+
+                compiler.regions[entry] = regions[entry];
+                compiler.firstWords[entry] = firstWords[entry];
+                compiler.lastWords[entry] = lastWords[entry];
+            }
+            else {
+
+                // Compiled again once it's hot again
+                compiler.counters[entry] = 0;
+            }
+        }
+
+        return compiler;
+    }
+
+    /**
+     * Counts a jump to an instruction.
+     *
+     * @param target The instruction jumped to.
+     *
+     * @return The compiled region starting at the instruction, or null if there is none (yet).
+     */
+    public CompiledRegion enter(int target) {
+
+        CompiledRegion region = regions[target];
+
+        if (region == null && ++counters[target] == threshold) {
+
+            region = regions[target] = compile(target);
+        }
+
+        return region;
+    }
+
+    /**
+     * @return The amount of regions which failed to compile or load, by every compiler since the
+     * start of the JVM. Such a region is left to the interpreter, but the failure is a bug in the
+     * compiler, so this is 0 unless something is wrong.
+     */
+    public static int failures() {
+
+        return FAILURES.get();
+    }
+
+    /**
+     * @return The compiled region starting at an instruction, or null if it couldn't be compiled.
+     */
+    private CompiledRegion compile(int entry) {
+
+        int[] span = new int[2];
+        byte[] classFile;
+
+        try {
+
+            classFile = RegionCompiler.compile(program, entry, "io/simengangstad/github/cpu/compiler/Region" + entry, MAXIMUM_REGION_INSTRUCTIONS, clock, atomics, code, version, span);
+        }
+        catch (IllegalStateException exception) {
+
+            // The region doesn't fit in a method, leave it to the interpreter
+            return null;
+        }
+        catch (RuntimeException exception) {
+
+            FAILURES.incrementAndGet();
+
+            return null;
+        }
+
+        if (classFile == null) {
+
+            return null;
+        }
+
+        if (code != -1) {
+
+            firstWords[entry] = span[0];
+            lastWords[entry] = span[1];
+        }
+
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+
+            return lookup.lookupClass().asSubclass(CompiledRegion.class).getDeclaredConstructor().newInstance();
+        }
+        catch (LinkageError | ReflectiveOperationException | RuntimeException exception) {
+
+            // E.g. a VerifyError or ClassFormatError for bytecode the compiler shouldn't have emitted
+            FAILURES.incrementAndGet();
+
+            return null;
+        }
+    }
+}
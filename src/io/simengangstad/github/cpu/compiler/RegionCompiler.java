@@ -0,0 +1,1592 @@
+package io.simengangstad.github.cpu.compiler;
+
+import io.simengangstad.github.cpu.CPU;
+import io.simengangstad.github.cpu.Clock;
+import io.simengangstad.github.cpu.DecodedProgram;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import static io.simengangstad.github.cpu.compiler.ClassFile.*;
+
+/**
+ * Translates a region of a decoded program to JVM bytecode.
+ *
+ * For the JIT the region is every instruction reachable from its entry through fall-through,
+ * conditional skips and jumps to labels, as long as the instructions are ones the compiler handles.
+ * The region is left for the interpreter when it reaches an instruction it doesn't handle (HDP, HRT,
+ * GET, computed jumps, PUSH, POP and PEEK arguments), and right before an instruction that would
+ * fault, so that the interpreter executes that instruction and reports the fault. RET jumps to the
+ * instruction after a JSR of the region if it returns there, and leaves the region otherwise.
+ *
+ * Programs compiled ahead of time are split into chunks of consecutive instructions which are
+ * compiled completely: every instruction is handled, computed jumps go through a table switch and
+ * faults are thrown as {@link io.simengangstad.github.cpu.exception.CpuFault}s created by the
+ * {@link CompiledRuntime}.
+ *
+ * In both cases the registers the region uses live in JVM locals while it executes, and jumps
+ * within the region become JVM branches. The executed instructions and their cycles are counted in
+ * locals as well, and reported to the {@link Clock} when leaving the region, before reading the time
+ * and at loop headers once a batch of cycles has been executed. A JIT region also leaves at such a
+ * loop header when the CPU has used up the instructions it was given, see {@link Clock#expired()}.
+ *
+ * A JIT region compiled from code in memory checks if its code has been written to at every jump
+ * within the region, and leaves for the CPU to decode the code again if it has.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public final class RegionCompiler {
+
+    /**
+     * The internal names of the types the compiled code refers to.
+     */
+    static final String
+
+            MEMORY              = "io/simengangstad/github/cpu/Memory",
+            REGION              = "io/simengangstad/github/cpu/compiler/CompiledRegion",
+            CLOCK               = "io/simengangstad/github/cpu/Clock",
+            RUNTIME             = "io/simengangstad/github/cpu/compiler/CompiledRuntime",
+            FLOATS              = "io/simengangstad/github/cpu/Floats",
+            OBJECT              = "java/lang/Object",
+            RUNTIME_EXCEPTION   = "java/lang/RuntimeException";
+
+    /**
+     * The descriptor of the methods of chunks compiled ahead of time.
+     */
+    static final String CHUNK_DESCRIPTOR = "([IL" + MEMORY + ";L" + RUNTIME + ";I)I";
+
+    /**
+     * The descriptor of the methods of regions compiled by the JIT.
+     */
+    static final String REGION_DESCRIPTOR = "([IL" + MEMORY + ";L" + CLOCK + ";)I";
+
+    /**
+     * The local variable slots of the compiled methods.
+     */
+    private static final int
+
+            REGISTERS_LOCAL     = 1,
+            MEMORY_LOCAL        = 2,
+            RUNTIME_LOCAL       = 3,    // The clock for the JIT
+            PC_LOCAL            = 4,
+            FIRST_REGISTER      = 5,
+            A_LOCAL             = 18,
+            B_LOCAL             = 19,
+            RESULT_LOCAL        = 20,
+            ADDRESS_LOCAL       = 21,
+            LONG_LOCAL          = 22,
+            ARRAY_LOCAL         = 24,
+            EXCEPTION_LOCAL     = 25,
+            CLOCK_LOCAL         = 26,
+            INSTRUCTIONS_LOCAL  = 27,
+            CYCLES_LOCAL        = 28,
+            LOCALS              = 29;
+
+    /**
+     * The amount of registers.
+     */
+    private static final int REGISTERS = 13;
+
+    private final DecodedProgram program;
+
+    /**
+     * The clock providing the cost of every instruction.
+     */
+    private final Clock clock;
+
+    /**
+     * If every instruction is compiled, rather than left to the interpreter.
+     */
+    private final boolean complete;
+
+    /**
+     * If the JIT handles atomic instructions.
+     */
+    private final boolean atomics;
+
+    /**
+     * The address of the program in memory, or -1 if it isn't executed from memory.
+     */
+    private int code = -1;
+
+    /**
+     * The version of the code in memory the program was decoded from.
+     */
+    private int version;
+
+    private final TreeSet<Integer> region = new TreeSet<>();
+
+    private final HashMap<Integer, Label> labels = new HashMap<>();
+
+    private final HashMap<Integer, Label> exits = new HashMap<>();
+
+    /**
+     * The instructions after the JSRs of the region which are in the region, where RET may return to.
+     */
+    private final TreeSet<Integer> returns = new TreeSet<>();
+
+    private final Label dispatch = new Label();
+
+    private final Label spill = new Label();
+
+    private ClassFile.Method method;
+
+    private RegionCompiler(DecodedProgram program, Clock clock, boolean complete, boolean atomics) {
+
+        this.program = program;
+        this.clock = clock;
+        this.complete = complete;
+        this.atomics = atomics;
+    }
+
+    /**
+     * Compiles the region starting at an instruction to a class implementing {@link CompiledRegion}.
+     *
+     * @param program The program.
+     * @param entry The first instruction of the region.
+     * @param className The internal name of the class.
+     * @param maximumInstructions The maximum amount of instructions in the region.
+     * @param clock The clock providing the cost of every instruction.
+     * @param atomics If the region may contain atomic instructions.
+     *
+     * @return The class file, or null if the instruction at the entry isn't handled by the compiler.
+     */
+    public static byte[] compile(DecodedProgram program, int entry, String className, int maximumInstructions, Clock clock, boolean atomics) {
+
+        return compile(program, entry, className, maximumInstructions, clock, atomics, -1, 0, null);
+    }
+
+    /**
+     * Compiles the region starting at an instruction of a program which may be executed from memory.
+     *
+     * @param code The address of the program in memory, or -1 if it isn't executed from memory.
+     * @param version The version of the code in memory the program was decoded from, see
+     *                {@link io.simengangstad.github.cpu.Memory#codeModified(int, int, int)}.
+     * @param span Receives the first and the last word of the program the region was compiled from,
+     *             or null.
+     *
+     * @see #compile(DecodedProgram, int, String, int, Clock, boolean)
+     */
+    public static byte[] compile(DecodedProgram program, int entry, String className, int maximumInstructions, Clock clock, boolean atomics, int code, int version, int[] span) {
+
+        RegionCompiler compiler = new RegionCompiler(program, clock, false, atomics);
+
+        compiler.code = code;
+        compiler.version = version;
+
+        if (!compiler.discover(entry, maximumInstructions)) {
+
+            return null;
+        }
+
+        if (span != null) {
+
+            span[0] = program.position(compiler.region.first());
+            span[1] = program.position(compiler.region.last() + 1) - 1;
+        }
+
+        ClassFile classFile = new ClassFile(className, OBJECT, REGION);
+
+        classFile.defaultConstructor(OBJECT);
+
+        compiler.method = classFile.method(ACC_PUBLIC, "execute", REGION_DESCRIPTOR, LOCALS);
+
+        compiler.emit(entry);
+
+        return classFile.toByteArray();
+    }
+
+    /**
+     * Compiles the instructions first to last completely to a method of a class. The method takes the
+     * registers, the memory, the runtime and the instruction to start at, and returns the instruction
+     * after the chunk which shall be executed next.
+     */
+    static void compileChunk(ClassFile classFile, DecodedProgram program, Clock clock, String methodName, int first, int last) {
+
+        RegionCompiler compiler = new RegionCompiler(program, clock, true, true);
+
+        for (int instruction = first; instruction <= last; instruction++) {
+
+            compiler.region.add(instruction);
+        }
+
+        compiler.method = classFile.method(ACC_PRIVATE, methodName, CHUNK_DESCRIPTOR, LOCALS);
+
+        compiler.emit(-1);
+    }
+
+    /**
+     * Finds the instructions of the region.
+     *
+     * @return If the entry is handled by the compiler.
+     */
+    private boolean discover(int entry, int maximumInstructions) {
+
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+        queue.add(entry);
+
+        while (!queue.isEmpty() && region.size() < maximumInstructions) {
+
+            int instruction = queue.poll();
+
+            if (region.contains(instruction) || !handles(instruction)) {
+
+                continue;
+            }
+
+            region.add(instruction);
+
+            if (isStaticJump(instruction)) {
+
+                queue.add(staticTarget(instruction));
+
+                if (program.opcode(instruction) == CPU.JSR) {
+
+                    // Where the subroutine returns to
+                    queue.add(instruction + 1);
+                }
+            }
+            else if (program.opcode(instruction) != CPU.RET) {
+
+                queue.add(instruction + 1);
+
+                if (isConditional(program.opcode(instruction))) {
+
+                    queue.add(instruction + 2);
+                }
+            }
+        }
+
+        return region.contains(entry);
+    }
+
+    /**
+     * @return If the JIT handles the instruction.
+     */
+    private boolean handles(int instruction) {
+
+        if (instruction < 0 || instruction >= program.length || !isWellFormed(instruction)) {
+
+            return false;
+        }
+
+        int opcode = program.opcode(instruction);
+        int amountOfArguments = program.operandCount(instruction);
+
+        for (int i = 0; i < amountOfArguments; i++) {
+
+            int kind = program.operandKind(instruction, i);
+
+            if (kind != DecodedProgram.IMMEDIATE && kind != DecodedProgram.REGISTER && kind != DecodedProgram.MEMORY && kind != DecodedProgram.INDIRECT && kind != DecodedProgram.STACK) {
+
+                return false;
+            }
+        }
+
+        switch (opcode) {
+
+            case CPU.SET:
+
+                return !writesProgramCounter(instruction) || isStaticJump(instruction);
+
+            case CPU.ADD: case CPU.SUB: case CPU.MUL: case CPU.DIV: case CPU.MOD:
+            case CPU.ADDW: case CPU.SUBW: case CPU.MULW: case CPU.MULH: case CPU.ADX: case CPU.SBX:
+            case CPU.AND: case CPU.OR: case CPU.XOR: case CPU.NOT: case CPU.SHR: case CPU.SHL: case CPU.USHR:
+            case CPU.FADD: case CPU.FSUB: case CPU.FMUL: case CPU.FDIV: case CPU.FSQRT: case CPU.ITOF: case CPU.FTOI:
+
+                return !writesProgramCounter(instruction);
+
+            case CPU.FCMP:
+
+                return true;
+
+            case CPU.CAS: case CPU.XADD: case CPU.XCHG:
+
+                return atomics && !writesProgramCounter(instruction);
+
+            case CPU.IFE: case CPU.IFN: case CPU.IFG: case CPU.IFL:
+
+                return instruction + 1 < program.length;
+
+            case CPU.BCPY: case CPU.BFIL: case CPU.BCMP: case CPU.BSCN:
+            case CPU.VADD: case CPU.VSUB: case CPU.VMUL: case CPU.VAND: case CPU.VOR: case CPU.VXOR: case CPU.VMIN: case CPU.VMAX:
+
+                return true;
+
+            case CPU.VSUM: case CPU.VDOT:
+
+                return !writesProgramCounter(instruction);
+
+            case CPU.JSR:
+
+                return isStaticJump(instruction);
+
+            case CPU.RET: case CPU.ENTER: case CPU.LEAVE:
+
+                return true;
+
+            default:
+
+                return false;
+        }
+    }
+
+    /**
+     * @return If the instruction is known and has an amount and kinds of arguments it can be executed with.
+     */
+    private boolean isWellFormed(int instruction) {
+
+        int amountOfArguments = program.operandCount(instruction);
+
+        for (int i = 0; i < amountOfArguments; i++) {
+
+            int kind = program.operandKind(instruction, i);
+            int value = program.operandValue(instruction, i);
+
+            if (kind == DecodedProgram.INVALID || ((kind == DecodedProgram.REGISTER || kind == DecodedProgram.INDIRECT) && (value < 0 || value >= REGISTERS))) {
+
+                return false;
+            }
+        }
+
+        switch (program.opcode(instruction)) {
+
+            case CPU.SET: case CPU.GET:
+            case CPU.ADD: case CPU.SUB: case CPU.MUL: case CPU.DIV: case CPU.MOD:
+            case CPU.ADDW: case CPU.SUBW: case CPU.MULW: case CPU.MULH: case CPU.ADX: case CPU.SBX:
+            case CPU.AND: case CPU.OR: case CPU.XOR: case CPU.SHR: case CPU.SHL: case CPU.USHR:
+            case CPU.IFE: case CPU.IFN: case CPU.IFG: case CPU.IFL:
+            case CPU.XADD: case CPU.XCHG:
+            case CPU.FADD: case CPU.FSUB: case CPU.FMUL: case CPU.FDIV: case CPU.FSQRT: case CPU.FCMP: case CPU.ITOF: case CPU.FTOI:
+
+                return amountOfArguments == 2;
+
+            case CPU.CAS:
+            case CPU.BCPY: case CPU.BFIL: case CPU.BCMP: case CPU.BSCN:
+            case CPU.VADD: case CPU.VSUB: case CPU.VMUL: case CPU.VAND: case CPU.VOR: case CPU.VXOR: case CPU.VMIN: case CPU.VMAX:
+            case CPU.VSUM:
+
+                return amountOfArguments == 3;
+
+            case CPU.VDOT:
+
+                return amountOfArguments == 4;
+
+            case CPU.NOT: case CPU.JSR:
+            case CPU.ENTER: case CPU.LEAVE:
+
+                return amountOfArguments == 1;
+
+            case CPU.RET:
+
+                return amountOfArguments <= 1;
+
+            case CPU.HDP: case CPU.HRT:
+
+                return amountOfArguments >= 1;
+
+            default:
+
+                return false;
+        }
+    }
+
+    private boolean writesProgramCounter(int instruction) {
+
+        return program.operandCount(instruction) > 0 && program.operandKind(instruction, 0) == DecodedProgram.REGISTER && program.operandValue(instruction, 0) == CPU.PC;
+    }
+
+    /**
+     * @return If the instruction is SET PC or JSR with a valid immediate target.
+     */
+    private boolean isStaticJump(int instruction) {
+
+        int opcode = program.opcode(instruction);
+
+        if (opcode == CPU.JSR || (opcode == CPU.SET && writesProgramCounter(instruction))) {
+
+            int argument = opcode == CPU.JSR ? 0 : 1;
+            int target = program.operandValue(instruction, argument);
+
+            return program.operandKind(instruction, argument) == DecodedProgram.IMMEDIATE && target >= 0 && target <= program.length;
+        }
+
+        return false;
+    }
+
+    private int staticTarget(int instruction) {
+
+        return program.operandValue(instruction, program.opcode(instruction) == CPU.JSR ? 0 : 1);
+    }
+
+    private static boolean isConditional(int opcode) {
+
+        return opcode == CPU.IFE || opcode == CPU.IFN || opcode == CPU.IFG || opcode == CPU.IFL;
+    }
+
+    private static boolean isAtomic(int opcode) {
+
+        return opcode == CPU.CAS || opcode == CPU.XADD || opcode == CPU.XCHG;
+    }
+
+    private static boolean isWide(int opcode) {
+
+        return opcode >= CPU.ADDW && opcode <= CPU.SBX;
+    }
+
+    private static boolean isBlock(int opcode) {
+
+        return opcode == CPU.BCPY || opcode == CPU.BFIL || opcode == CPU.BCMP || opcode == CPU.BSCN;
+    }
+
+    private static boolean isVector(int opcode) {
+
+        return opcode >= CPU.VADD && opcode <= CPU.VDOT;
+    }
+
+    private static boolean isFrame(int opcode) {
+
+        return opcode == CPU.RET || opcode == CPU.ENTER || opcode == CPU.LEAVE;
+    }
+
+    /**
+     * Emits the method.
+     *
+     * @param entry The entry of the JIT region, not used for chunks.
+     */
+    private void emit(int entry) {
+
+        boolean[] used = new boolean[REGISTERS];
+
+        for (int instruction : region) {
+
+            labels.put(instruction, new Label());
+
+            if (!isWellFormed(instruction)) {
+
+                continue;
+            }
+
+            for (int i = 0; i < program.operandCount(instruction); i++) {
+
+                int kind = program.operandKind(instruction, i);
+                int value = program.operandValue(instruction, i);
+
+                if (kind == DecodedProgram.REGISTER || kind == DecodedProgram.INDIRECT || (kind == DecodedProgram.IMMEDIATE && program.opcode(instruction) == CPU.HRT && value >= 0 && value < REGISTERS)) {
+
+                    used[value] = true;
+                }
+                else if (kind == DecodedProgram.PUSH || kind == DecodedProgram.POP || kind == DecodedProgram.PEEK || kind == DecodedProgram.STACK) {
+
+                    used[CPU.SP] = true;
+                }
+            }
+
+            if (program.opcode(instruction) == CPU.JSR || isFrame(program.opcode(instruction))) {
+
+                used[CPU.SP] = true;
+            }
+
+            if (isAtomic(program.opcode(instruction)) || isWide(program.opcode(instruction)) || program.opcode(instruction) == CPU.BCMP || program.opcode(instruction) == CPU.BSCN || program.opcode(instruction) == CPU.FCMP) {
+
+                used[CPU.EX] = true;
+            }
+        }
+
+        used[CPU.PC] = false;
+
+        for (int register = 0; register < REGISTERS; register++) {
+
+            if (used[register]) {
+
+                method.local(ALOAD, REGISTERS_LOCAL).push(register).op(IALOAD).local(ISTORE, FIRST_REGISTER + register);
+            }
+        }
+
+        if (complete) {
+
+            method.local(ALOAD, RUNTIME_LOCAL).invoke(INVOKEVIRTUAL, RUNTIME, "clock", "()L" + CLOCK + ";").local(ASTORE, CLOCK_LOCAL);
+        }
+        else {
+
+            method.local(ALOAD, RUNTIME_LOCAL).local(ASTORE, CLOCK_LOCAL);
+        }
+
+        method.push(0).local(ISTORE, INSTRUCTIONS_LOCAL);
+        method.push(0).local(ISTORE, CYCLES_LOCAL);
+
+        // Every loop in the region passes the target of a jump backwards, or the dispatch
+        TreeSet<Integer> loopHeaders = new TreeSet<>();
+
+        for (int instruction : region) {
+
+            if (isStaticJump(instruction) && staticTarget(instruction) <= instruction && region.contains(staticTarget(instruction))) {
+
+                loopHeaders.add(staticTarget(instruction));
+            }
+
+            if (program.opcode(instruction) == CPU.JSR && region.contains(instruction + 1)) {
+
+                returns.add(instruction + 1);
+            }
+        }
+
+        for (int instruction : region) {
+
+            if (program.opcode(instruction) == CPU.RET) {
+
+                loopHeaders.addAll(returns.headSet(instruction, true));
+            }
+        }
+
+        Label start = new Label(), end = new Label(), handler = new Label();
+
+        if (complete) {
+
+            Label[] table = new Label[region.last() - region.first() + 1];
+
+            for (int instruction : region) {
+
+                table[instruction - region.first()] = labels.get(instruction);
+            }
+
+            method.place(dispatch);
+            flushBatch(-1);
+            method.local(ILOAD, PC_LOCAL).tableSwitch(region.first(), spill, table);
+        }
+        else {
+
+            method.push(entry).local(ISTORE, PC_LOCAL);
+            method.branch(GOTO, labels.get(entry));
+        }
+
+        method.place(start);
+
+        for (int instruction : region) {
+
+            method.place(labels.get(instruction));
+
+            if (loopHeaders.contains(instruction)) {
+
+                flushBatch(instruction);
+            }
+
+            if (complete || accessesMemory(instruction)) {
+
+                method.push(instruction).local(ISTORE, PC_LOCAL);
+            }
+
+            if (!isWellFormed(instruction)) {
+
+                int kind = program.operandCount(instruction) > 0 ? program.operandKind(instruction, 0) : -1;
+
+                fault(instruction, kind == DecodedProgram.INVALID ? "Invalid argument: " + "'" + program.operandValue(instruction, 0) + "'." : "Unknown instruction or too many/few arguments in instruction.");
+
+                continue;
+            }
+
+            emitInstruction(instruction);
+
+            if (!retiresItself(instruction)) {
+
+                retire(instruction);
+            }
+
+            if (!isStaticJump(instruction) && program.opcode(instruction) != CPU.RET) {
+
+                Integer next = region.higher(instruction);
+
+                if (next == null || next != instruction + 1) {
+
+                    method.branch(GOTO, target(instruction + 1));
+                }
+            }
+        }
+
+        method.place(end);
+
+        for (Integer target : exits.keySet()) {
+
+            method.place(exits.get(target));
+            method.push(target).local(ISTORE, PC_LOCAL);
+            method.branch(GOTO, spill);
+        }
+
+        method.place(handler);
+
+        if (complete) {
+
+            // Faults end up here as well, so that they carry the registers of the faulting instruction
+            method.local(ASTORE, EXCEPTION_LOCAL);
+            flush();
+            spill(used);
+            method.local(ALOAD, REGISTERS_LOCAL).push(CPU.PC).local(ILOAD, PC_LOCAL).op(IASTORE);
+            method.local(ALOAD, RUNTIME_LOCAL).local(ILOAD, PC_LOCAL).local(ALOAD, EXCEPTION_LOCAL).local(ALOAD, REGISTERS_LOCAL);
+            method.invoke(INVOKEVIRTUAL, RUNTIME, "fault", "(IL" + RUNTIME_EXCEPTION + ";[I)L" + RUNTIME_EXCEPTION + ";");
+            method.op(ATHROW);
+        }
+        else {
+
+            // An exception from memory leaves the instruction at PC_LOCAL to the interpreter
+            method.op(POP);
+        }
+
+        method.place(spill);
+
+        flush();
+        spill(used);
+
+        method.local(ILOAD, PC_LOCAL).op(IRETURN);
+
+        method.handler(start, end, handler, RUNTIME_EXCEPTION);
+    }
+
+    /**
+     * Writes the registers in locals back to the registers of the CPU.
+     */
+    private void spill(boolean[] used) {
+
+        for (int register = 0; register < REGISTERS; register++) {
+
+            if (used[register]) {
+
+                method.local(ALOAD, REGISTERS_LOCAL).push(register).local(ILOAD, FIRST_REGISTER + register).op(IASTORE);
+            }
+        }
+    }
+
+    /**
+     * @return If the code of the instruction counts it itself, as it leaves through a jump or reads the time.
+     */
+    private boolean retiresItself(int instruction) {
+
+        int opcode = program.opcode(instruction);
+
+        return isStaticJump(instruction) || isConditional(opcode) || opcode == CPU.JSR || opcode == CPU.RET || opcode == CPU.GET;
+    }
+
+    /**
+     * Counts an executed instruction. Emitted once the instruction can't fault anymore, as the JIT
+     * leaves the instruction to the interpreter when it would fault.
+     */
+    private void retire(int instruction) {
+
+        int cost = clock.cost(program.opcode(instruction));
+
+        method.increment(INSTRUCTIONS_LOCAL, 1);
+
+        if (cost != 0) {
+
+            method.increment(CYCLES_LOCAL, cost);
+        }
+    }
+
+    /**
+     * Reports the counted instructions to the clock.
+     */
+    private void flush() {
+
+        method.local(ALOAD, CLOCK_LOCAL);
+        method.local(ILOAD, INSTRUCTIONS_LOCAL).op(I2L).local(ILOAD, CYCLES_LOCAL).op(I2L);
+        method.invoke(INVOKEVIRTUAL, CLOCK, "advance", "(JJ)V");
+        method.push(0).local(ISTORE, INSTRUCTIONS_LOCAL);
+        method.push(0).local(ISTORE, CYCLES_LOCAL);
+    }
+
+    /**
+     * Reports the counted instructions to the clock if a batch of cycles or instructions has been
+     * counted, so that the clock keeps up in long running loops. The JIT leaves the region at the
+     * instruction if the CPU has to yield, so that a loop can't run past the instructions the CPU
+     * was given by more than a batch.
+     *
+     * @param instruction The loop header, or -1 for the dispatch.
+     */
+    private void flushBatch(int instruction) {
+
+        Label skip = new Label(), due = new Label();
+
+        method.local(ILOAD, CYCLES_LOCAL).push(Clock.BATCH).branch(IF_ICMPGE, due);
+        method.local(ILOAD, INSTRUCTIONS_LOCAL).push(Clock.BATCH).branch(IF_ICMPLT, skip);
+        method.place(due);
+        flush();
+
+        if (!complete && instruction >= 0) {
+
+            method.local(ALOAD, CLOCK_LOCAL).invoke(INVOKEVIRTUAL, CLOCK, "expired", "()Z").branch(IFEQ, skip);
+            method.push(instruction).local(ISTORE, PC_LOCAL);
+            method.branch(GOTO, spill);
+        }
+
+        method.place(skip);
+    }
+
+    /**
+     * @return The label of an instruction in the region, or a label leaving the region for it.
+     */
+    private Label target(int instruction) {
+
+        Label label = labels.get(instruction);
+
+        if (label == null) {
+
+            label = exits.computeIfAbsent(instruction, key -> new Label());
+        }
+
+        return label;
+    }
+
+    /**
+     * Emits a jump to an instruction. A JIT region compiled from code in memory leaves the region
+     * instead if its code has been written to, so that the CPU decodes the code again. Jumps leaving
+     * the region are checked by the CPU.
+     */
+    private void jumpTo(int instruction) {
+
+        if (code != -1 && labels.containsKey(instruction)) {
+
+            int first = code + program.position(region.first());
+            int last = code + program.position(region.last() + 1) - 1;
+
+            method.local(ALOAD, MEMORY_LOCAL).push(first).push(last).push(version);
+            method.invoke(INVOKEVIRTUAL, MEMORY, "codeModified", "(III)Z");
+            method.branch(IFNE, exits.computeIfAbsent(instruction, key -> new Label()));
+        }
+
+        method.branch(GOTO, target(instruction));
+    }
+
+    /**
+     * Emits a fault at an instruction. The JIT leaves the region for the interpreter to execute the
+     * instruction and report the fault.
+     */
+    private void fault(int instruction, String message) {
+
+        if (complete) {
+
+            method.local(ALOAD, RUNTIME_LOCAL).push(instruction).pushString(message);
+            method.invoke(INVOKEVIRTUAL, RUNTIME, "fault", "(ILjava/lang/String;)L" + RUNTIME_EXCEPTION + ";");
+            method.op(ATHROW);
+        }
+        else {
+
+            method.branch(GOTO, exits.computeIfAbsent(instruction, key -> new Label()));
+        }
+    }
+
+    /**
+     * Emits a conditional fault, where the branch is taken if the instruction faults.
+     */
+    private void faultIf(int branch, int instruction, String message) {
+
+        if (complete) {
+
+            Label ok = new Label();
+
+            method.branch(inverse(branch), ok);
+
+            fault(instruction, message);
+
+            method.place(ok);
+        }
+        else {
+
+            method.branch(branch, exits.computeIfAbsent(instruction, key -> new Label()));
+        }
+    }
+
+    private static int inverse(int branch) {
+
+        switch (branch) {
+
+            case IFEQ:      return IFNE;
+            case IFNE:      return IFEQ;
+            case IFLT:      return IFGE;
+            case IFGE:      return IFLT;
+            case IFGT:      return IFLE;
+            case IFLE:      return IFGT;
+            case IF_ICMPEQ: return IF_ICMPNE;
+            case IF_ICMPNE: return IF_ICMPEQ;
+            case IF_ICMPLT: return IF_ICMPGE;
+            case IF_ICMPGE: return IF_ICMPLT;
+            case IF_ICMPGT: return IF_ICMPLE;
+            default:        return IF_ICMPGT;
+        }
+    }
+
+    private void emitInstruction(int instruction) {
+
+        int opcode = program.opcode(instruction);
+        int amountOfArguments = program.operandCount(instruction);
+
+        switch (opcode) {
+
+            case CPU.SET:
+
+                if (isStaticJump(instruction)) {
+
+                    retire(instruction);
+                    jumpTo(staticTarget(instruction));
+
+                    return;
+                }
+
+                locate(instruction, 0);
+                read(instruction, 1);
+                method.local(ISTORE, RESULT_LOCAL);
+                store(instruction, 0);
+
+                return;
+
+            case CPU.GET:
+
+                // Counted before reading the time, as in the interpreter
+                retire(instruction);
+
+                locate(instruction, 0);
+                read(instruction, 1);
+                method.local(ISTORE, B_LOCAL);
+
+                Label notCapasity = new Label(), done = new Label();
+
+                method.local(ILOAD, B_LOCAL).branch(IFNE, notCapasity);
+                method.local(ALOAD, MEMORY_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "capasity", "()I").local(ISTORE, RESULT_LOCAL);
+                store(instruction, 0);
+                method.branch(GOTO, done);
+
+                Label notTime = new Label();
+
+                method.place(notCapasity);
+                method.local(ILOAD, B_LOCAL).push(1).branch(IF_ICMPNE, notTime);
+                flush();
+                method.local(ALOAD, RUNTIME_LOCAL).invoke(INVOKEVIRTUAL, RUNTIME, "time", "()I").local(ISTORE, RESULT_LOCAL);
+                store(instruction, 0);
+                method.branch(GOTO, done);
+
+                // Programs compiled ahead of time run on a single core
+                method.place(notTime);
+                method.local(ILOAD, B_LOCAL).push(2).branch(IF_ICMPNE, done);
+                method.push(0).local(ISTORE, RESULT_LOCAL);
+                store(instruction, 0);
+
+                method.place(done);
+
+                return;
+
+            case CPU.CAS:
+            case CPU.XADD:
+            case CPU.XCHG:
+
+                locate(instruction, 0);
+                load(instruction, 0);
+                method.local(ISTORE, A_LOCAL);
+                read(instruction, 1);
+                method.local(ISTORE, B_LOCAL);
+
+                if (opcode == CPU.CAS) {
+
+                    read(instruction, 2);
+                    method.local(ISTORE, RESULT_LOCAL);
+                }
+
+                if (program.operandKind(instruction, 0) == DecodedProgram.REGISTER) {
+
+                    // Registers belong to a single core
+                    method.local(ILOAD, A_LOCAL).local(ISTORE, FIRST_REGISTER + CPU.EX);
+
+                    Label keep = new Label();
+
+                    if (opcode == CPU.CAS) {
+
+                        method.local(ILOAD, A_LOCAL).local(ILOAD, B_LOCAL).branch(IF_ICMPNE, keep);
+                    }
+                    else if (opcode == CPU.XADD) {
+
+                        method.local(ILOAD, A_LOCAL).local(ILOAD, B_LOCAL).op(IADD).local(ISTORE, RESULT_LOCAL);
+                    }
+                    else {
+
+                        method.local(ILOAD, B_LOCAL).local(ISTORE, RESULT_LOCAL);
+                    }
+
+                    store(instruction, 0);
+                    method.place(keep);
+
+                    return;
+                }
+
+                method.local(ALOAD, MEMORY_LOCAL);
+                address(instruction, 0);
+                method.local(ILOAD, B_LOCAL);
+
+                if (opcode == CPU.CAS) {
+
+                    method.local(ILOAD, RESULT_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "compareAndExchange", "(III)I");
+                }
+                else {
+
+                    method.invoke(INVOKEVIRTUAL, MEMORY, opcode == CPU.XADD ? "getAndAdd" : "getAndSet", "(II)I");
+                }
+
+                method.local(ISTORE, FIRST_REGISTER + CPU.EX);
+
+                return;
+
+            case CPU.VADD: case CPU.VSUB: case CPU.VMUL: case CPU.VAND: case CPU.VOR: case CPU.VXOR: case CPU.VMIN: case CPU.VMAX:
+
+                method.local(ALOAD, MEMORY_LOCAL).push(opcode - CPU.VADD);
+                read(instruction, 0);
+                read(instruction, 1);
+                read(instruction, 2);
+                method.invoke(INVOKEVIRTUAL, MEMORY, "combine", "(IIII)V");
+
+                return;
+
+            case CPU.VSUM:
+            case CPU.VDOT:
+
+                locate(instruction, 0);
+                method.local(ALOAD, MEMORY_LOCAL);
+                read(instruction, 1);
+                read(instruction, 2);
+
+                if (opcode == CPU.VSUM) {
+
+                    method.invoke(INVOKEVIRTUAL, MEMORY, "sum", "(II)I");
+                }
+                else {
+
+                    read(instruction, 3);
+                    method.invoke(INVOKEVIRTUAL, MEMORY, "dot", "(III)I");
+                }
+
+                method.local(ISTORE, RESULT_LOCAL);
+                store(instruction, 0);
+
+                return;
+
+            case CPU.BCPY:
+            case CPU.BFIL:
+            case CPU.BCMP:
+            case CPU.BSCN:
+
+                // The memory checks the areas before writing, so a fault leaves nothing to undo
+                read(instruction, 0);
+                method.local(ISTORE, A_LOCAL);
+                read(instruction, 1);
+                method.local(ISTORE, B_LOCAL);
+                read(instruction, 2);
+                method.local(ISTORE, RESULT_LOCAL);
+
+                method.local(ALOAD, MEMORY_LOCAL);
+
+                switch (opcode) {
+
+                    case CPU.BCPY:
+
+                        method.local(ILOAD, B_LOCAL).local(ILOAD, A_LOCAL).local(ILOAD, RESULT_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "copy", "(III)V");
+
+                        break;
+
+                    case CPU.BFIL:
+
+                        method.local(ILOAD, A_LOCAL).local(ILOAD, RESULT_LOCAL).local(ILOAD, B_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "fill", "(III)V");
+
+                        break;
+
+                    case CPU.BCMP:
+
+                        method.local(ILOAD, A_LOCAL).local(ILOAD, B_LOCAL).local(ILOAD, RESULT_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "mismatch", "(III)I");
+                        method.local(ISTORE, FIRST_REGISTER + CPU.EX);
+
+                        break;
+
+                    default:
+
+                        method.local(ILOAD, A_LOCAL).local(ILOAD, RESULT_LOCAL).local(ILOAD, B_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "indexOf", "(III)I");
+                        method.local(ISTORE, FIRST_REGISTER + CPU.EX);
+                }
+
+                return;
+
+            case CPU.NOT:
+
+                locate(instruction, 0);
+                load(instruction, 0);
+                method.push(-1).op(IXOR).local(ISTORE, RESULT_LOCAL);
+                store(instruction, 0);
+
+                return;
+
+            case CPU.FCMP:
+
+                locate(instruction, 0);
+                load(instruction, 0);
+                read(instruction, 1);
+                method.invoke(INVOKESTATIC, FLOATS, "compare", "(II)I").local(ISTORE, FIRST_REGISTER + CPU.EX);
+
+                return;
+
+            case CPU.IFE: case CPU.IFN: case CPU.IFG: case CPU.IFL:
+
+                locate(instruction, 0);
+                load(instruction, 0);
+                read(instruction, 1);
+
+                int skip = opcode == CPU.IFE ? IF_ICMPNE : opcode == CPU.IFN ? IF_ICMPEQ : opcode == CPU.IFG ? IF_ICMPLE : IF_ICMPGE;
+
+                retire(instruction);
+                method.branch(skip, target(Math.min(instruction + 2, program.length)));
+
+                return;
+
+            case CPU.JSR:
+
+                read(instruction, 0);
+                method.local(ISTORE, B_LOCAL);
+                method.local(ILOAD, FIRST_REGISTER + CPU.SP).push(1).op(ISUB).local(ISTORE, RESULT_LOCAL);
+                method.local(ALOAD, MEMORY_LOCAL).local(ILOAD, RESULT_LOCAL).push(instruction + 1).invoke(INVOKEVIRTUAL, MEMORY, "set", "(II)V");
+                method.local(ILOAD, RESULT_LOCAL).local(ISTORE, FIRST_REGISTER + CPU.SP);
+
+                if (isStaticJump(instruction)) {
+
+                    retire(instruction);
+                    jumpTo(staticTarget(instruction));
+                }
+                else {
+
+                    method.local(ILOAD, B_LOCAL);
+                    jump(instruction);
+                }
+
+                return;
+
+            case CPU.RET:
+            case CPU.ENTER:
+            case CPU.LEAVE:
+
+                if (amountOfArguments == 0) {
+
+                    method.push(0);
+                }
+                else {
+
+                    read(instruction, 0);
+                }
+
+                method.local(ISTORE, A_LOCAL);
+
+                if (opcode == CPU.ENTER) {
+
+                    // Overflow if the words are unsigned more than SP
+                    method.local(ILOAD, A_LOCAL).push(Integer.MIN_VALUE).op(IXOR);
+                    method.local(ILOAD, FIRST_REGISTER + CPU.SP).push(Integer.MIN_VALUE).op(IXOR);
+                    faultIf(IF_ICMPGT, instruction, "Stack overflow.");
+                    method.local(ILOAD, FIRST_REGISTER + CPU.SP).local(ILOAD, A_LOCAL).op(ISUB).local(ISTORE, FIRST_REGISTER + CPU.SP);
+
+                    return;
+                }
+
+                // Underflow if the words above SP, and the return address, reach past the memory
+                unsigned(FIRST_REGISTER + CPU.SP);
+                unsigned(A_LOCAL);
+                method.op(LADD);
+
+                if (opcode == CPU.RET) {
+
+                    method.pushLong(1).op(LADD);
+                }
+
+                method.local(ALOAD, MEMORY_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "capasity", "()I").op(I2L).pushLong(0xffffffffl).op(LAND).op(LCMP);
+                faultIf(IFGE, instruction, "Stack underflow.");
+
+                if (opcode == CPU.LEAVE) {
+
+                    method.local(ILOAD, FIRST_REGISTER + CPU.SP).local(ILOAD, A_LOCAL).op(IADD).local(ISTORE, FIRST_REGISTER + CPU.SP);
+
+                    return;
+                }
+
+                method.local(ALOAD, MEMORY_LOCAL).local(ILOAD, FIRST_REGISTER + CPU.SP).invoke(INVOKEVIRTUAL, MEMORY, "get", "(I)I").local(ISTORE, B_LOCAL);
+
+                Label valid = new Label();
+
+                method.local(ILOAD, B_LOCAL).push(Integer.MIN_VALUE).op(IXOR).push(program.length ^ Integer.MIN_VALUE).branch(IF_ICMPLE, valid);
+
+                if (complete) {
+
+                    method.local(ALOAD, RUNTIME_LOCAL).push(instruction).local(ILOAD, B_LOCAL);
+                    method.invoke(INVOKEVIRTUAL, RUNTIME, "invalidProgramCounter", "(II)L" + RUNTIME_EXCEPTION + ";");
+                    method.op(ATHROW);
+                }
+                else {
+
+                    method.branch(GOTO, exits.computeIfAbsent(instruction, key -> new Label()));
+                }
+
+                method.place(valid);
+                method.local(ILOAD, FIRST_REGISTER + CPU.SP).local(ILOAD, A_LOCAL).op(IADD).push(1).op(IADD).local(ISTORE, FIRST_REGISTER + CPU.SP);
+                retire(instruction);
+
+                if (complete) {
+
+                    method.local(ILOAD, B_LOCAL).local(ISTORE, PC_LOCAL);
+                    method.branch(GOTO, dispatch);
+
+                    return;
+                }
+
+                for (int site : returns) {
+
+                    Label next = new Label();
+
+                    method.local(ILOAD, B_LOCAL).push(site).branch(IF_ICMPNE, next);
+                    jumpTo(site);
+                    method.place(next);
+                }
+
+                method.local(ILOAD, B_LOCAL).local(ISTORE, PC_LOCAL);
+                method.branch(GOTO, spill);
+
+                return;
+
+            case CPU.HDP:
+            case CPU.HRT:
+
+                locate(instruction, 0);
+                load(instruction, 0);
+                method.local(ISTORE, A_LOCAL);
+
+                method.local(ALOAD, RUNTIME_LOCAL).push(amountOfArguments - 1).invoke(INVOKEVIRTUAL, RUNTIME, "arguments", "(I)[I").local(ASTORE, ARRAY_LOCAL);
+
+                for (int i = 1; i < amountOfArguments; i++) {
+
+                    method.local(ALOAD, ARRAY_LOCAL).push(i - 1);
+
+                    if (i == 1) {
+
+                        locate(instruction, 1);
+                        load(instruction, 1);
+                    }
+                    else {
+
+                        read(instruction, i);
+                    }
+
+                    method.op(IASTORE);
+                }
+
+                method.local(ALOAD, RUNTIME_LOCAL).push(instruction).local(ILOAD, A_LOCAL).local(ALOAD, ARRAY_LOCAL).push(amountOfArguments - 1);
+
+                if (opcode == CPU.HDP) {
+
+                    method.invoke(INVOKEVIRTUAL, RUNTIME, "dispatch", "(II[II)V");
+                }
+                else {
+
+                    method.invoke(INVOKEVIRTUAL, RUNTIME, "retrieve", "(II[II)I").local(ISTORE, RESULT_LOCAL);
+
+                    store(instruction, amountOfArguments > 1 ? 1 : 0);
+                }
+
+                return;
+        }
+
+        locate(instruction, 0);
+        load(instruction, 0);
+        method.local(ISTORE, A_LOCAL);
+        read(instruction, 1);
+        method.local(ISTORE, B_LOCAL);
+
+        switch (opcode) {
+
+            case CPU.ADD:
+
+                // Overflow if the unsigned sum is less than a
+                method.local(ILOAD, A_LOCAL).local(ILOAD, B_LOCAL).op(IADD).local(ISTORE, RESULT_LOCAL);
+                method.local(ILOAD, RESULT_LOCAL).push(Integer.MIN_VALUE).op(IXOR);
+                method.local(ILOAD, A_LOCAL).push(Integer.MIN_VALUE).op(IXOR);
+                faultIf(IF_ICMPLT, instruction, "Overflow.");
+
+                break;
+
+            case CPU.SUB:
+
+                // Underflow if a is unsigned less than b
+                method.local(ILOAD, A_LOCAL).push(Integer.MIN_VALUE).op(IXOR);
+                method.local(ILOAD, B_LOCAL).push(Integer.MIN_VALUE).op(IXOR);
+                faultIf(IF_ICMPLT, instruction, "Underflow.");
+                method.local(ILOAD, A_LOCAL).local(ILOAD, B_LOCAL).op(ISUB).local(ISTORE, RESULT_LOCAL);
+
+                break;
+
+            case CPU.MUL:
+
+                // Same widening as the interpreter, including where the long product wraps
+                method.local(ILOAD, A_LOCAL).op(I2L).pushLong(0xffffffffl).op(LAND);
+                method.local(ILOAD, B_LOCAL).op(I2L).pushLong(0xffffffffl).op(LAND);
+                method.op(LMUL).local(LSTORE, LONG_LOCAL);
+                method.local(LLOAD, LONG_LOCAL).pushLong(0xffffffffl).op(LCMP);
+                faultIf(IFGT, instruction, "Overflow.");
+                method.local(LLOAD, LONG_LOCAL).op(L2I).local(ISTORE, RESULT_LOCAL);
+
+                break;
+
+            case CPU.ADDW:
+            case CPU.ADX:
+            case CPU.SUBW:
+            case CPU.SBX:
+
+                // EX takes the carry, or the borrow, from the high word of the long result
+                unsigned(A_LOCAL);
+                unsigned(B_LOCAL);
+                method.op(opcode == CPU.ADDW || opcode == CPU.ADX ? LADD : LSUB);
+
+                if (opcode == CPU.ADX || opcode == CPU.SBX) {
+
+                    unsigned(FIRST_REGISTER + CPU.EX);
+                    method.op(opcode == CPU.ADX ? LADD : LSUB);
+                }
+
+                method.local(LSTORE, LONG_LOCAL);
+
+                if (opcode == CPU.ADDW || opcode == CPU.ADX) {
+
+                    method.local(LLOAD, LONG_LOCAL).push(32).op(LUSHR).op(L2I);
+                }
+                else {
+
+                    method.local(LLOAD, LONG_LOCAL).push(32).op(LSHR).op(LNEG).op(L2I);
+                }
+
+                method.local(ISTORE, FIRST_REGISTER + CPU.EX);
+                method.local(LLOAD, LONG_LOCAL).op(L2I).local(ISTORE, RESULT_LOCAL);
+
+                break;
+
+            case CPU.MULW:
+            case CPU.MULH:
+
+                unsigned(A_LOCAL);
+                unsigned(B_LOCAL);
+                method.op(LMUL).local(LSTORE, LONG_LOCAL);
+
+                if (opcode == CPU.MULW) {
+
+                    method.local(LLOAD, LONG_LOCAL).push(32).op(LUSHR).op(L2I).local(ISTORE, FIRST_REGISTER + CPU.EX);
+                    method.local(LLOAD, LONG_LOCAL).op(L2I).local(ISTORE, RESULT_LOCAL);
+                }
+                else {
+
+                    method.local(LLOAD, LONG_LOCAL).push(32).op(LUSHR).op(L2I).local(ISTORE, RESULT_LOCAL);
+                }
+
+                break;
+
+            case CPU.FADD:
+            case CPU.FSUB:
+            case CPU.FMUL:
+            case CPU.FDIV:
+
+                method.local(ILOAD, A_LOCAL).local(ILOAD, B_LOCAL);
+                method.invoke(INVOKESTATIC, FLOATS, opcode == CPU.FADD ? "add" : opcode == CPU.FSUB ? "subtract" : opcode == CPU.FMUL ? "multiply" : "divide", "(II)I");
+                method.local(ISTORE, RESULT_LOCAL);
+
+                break;
+
+            case CPU.FSQRT:
+            case CPU.ITOF:
+            case CPU.FTOI:
+
+                method.local(ILOAD, B_LOCAL);
+                method.invoke(INVOKESTATIC, FLOATS, opcode == CPU.FSQRT ? "squareRoot" : opcode == CPU.ITOF ? "fromInteger" : "toInteger", "(I)I");
+                method.local(ISTORE, RESULT_LOCAL);
+
+                break;
+
+            case CPU.DIV:
+            case CPU.MOD:
+
+                method.local(ILOAD, B_LOCAL);
+                faultIf(IFEQ, instruction, "Can't divide by zero.");
+                method.local(ILOAD, A_LOCAL).local(ILOAD, B_LOCAL).op(opcode == CPU.DIV ? IDIV : IREM).local(ISTORE, RESULT_LOCAL);
+
+                break;
+
+            default:
+
+                int operation;
+
+                switch (opcode) {
+
+                    case CPU.AND:   operation = IAND;   break;
+                    case CPU.OR:    operation = IOR;    break;
+                    case CPU.XOR:   operation = IXOR;   break;
+                    case CPU.SHR:   operation = ISHR;   break;
+                    case CPU.SHL:   operation = ISHL;   break;
+                    default:        operation = IUSHR;  break;
+                }
+
+                method.local(ILOAD, A_LOCAL).local(ILOAD, B_LOCAL).op(operation).local(ISTORE, RESULT_LOCAL);
+        }
+
+        store(instruction, 0);
+    }
+
+    private boolean accessesMemory(int instruction) {
+
+        if (program.opcode(instruction) == CPU.JSR || program.opcode(instruction) == CPU.RET || isBlock(program.opcode(instruction)) || isVector(program.opcode(instruction))) {
+
+            return true;
+        }
+
+        for (int i = 0; i < program.operandCount(instruction); i++) {
+
+            int kind = program.operandKind(instruction, i);
+
+            if (kind == DecodedProgram.MEMORY || kind == DecodedProgram.INDIRECT || kind == DecodedProgram.STACK) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Performs the side effects of a destination argument and stores its address in ADDRESS_LOCAL
+     * if the address isn't known when compiling.
+     */
+    private void locate(int instruction, int argument) {
+
+        int value = program.operandValue(instruction, argument);
+
+        switch (program.operandKind(instruction, argument)) {
+
+            case DecodedProgram.INDIRECT:
+
+                register(instruction, value);
+                method.local(ISTORE, ADDRESS_LOCAL);
+
+                break;
+
+            case DecodedProgram.STACK:
+
+                method.local(ILOAD, FIRST_REGISTER + CPU.SP).push(value).op(IADD).local(ISTORE, ADDRESS_LOCAL);
+
+                break;
+
+            case DecodedProgram.PUSH:
+
+                // Overflow if the address below SP is unsigned outside the memory
+                method.local(ILOAD, FIRST_REGISTER + CPU.SP).push(1).op(ISUB).push(Integer.MIN_VALUE).op(IXOR);
+                method.local(ALOAD, MEMORY_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "capasity", "()I").push(Integer.MIN_VALUE).op(IXOR);
+                faultIf(IF_ICMPGE, instruction, "Stack overflow.");
+                method.local(ILOAD, FIRST_REGISTER + CPU.SP).push(1).op(ISUB).local(ISTORE, ADDRESS_LOCAL);
+                method.local(ILOAD, ADDRESS_LOCAL).local(ISTORE, FIRST_REGISTER + CPU.SP);
+
+                break;
+
+            case DecodedProgram.PEEK:
+
+                method.local(ILOAD, FIRST_REGISTER + CPU.SP).local(ISTORE, ADDRESS_LOCAL);
+
+                break;
+        }
+    }
+
+    /**
+     * Pushes the address of a located destination argument in memory.
+     */
+    private void address(int instruction, int argument) {
+
+        if (program.operandKind(instruction, argument) == DecodedProgram.MEMORY) {
+
+            method.push(program.operandValue(instruction, argument));
+        }
+        else {
+
+            method.local(ILOAD, ADDRESS_LOCAL);
+        }
+    }
+
+    /**
+     * Pushes the value of a located destination argument.
+     */
+    private void load(int instruction, int argument) {
+
+        switch (program.operandKind(instruction, argument)) {
+
+            case DecodedProgram.INDIRECT:
+            case DecodedProgram.STACK:
+            case DecodedProgram.PUSH:
+            case DecodedProgram.PEEK:
+
+                method.local(ALOAD, MEMORY_LOCAL).local(ILOAD, ADDRESS_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "get", "(I)I");
+
+                break;
+
+            default:
+
+                read(instruction, argument);
+        }
+    }
+
+    /**
+     * Pushes the value of a source argument.
+     */
+    private void read(int instruction, int argument) {
+
+        int value = program.operandValue(instruction, argument);
+
+        switch (program.operandKind(instruction, argument)) {
+
+            case DecodedProgram.IMMEDIATE:
+
+                method.push(value);
+
+                break;
+
+            case DecodedProgram.REGISTER:
+
+                register(instruction, value);
+
+                break;
+
+            case DecodedProgram.MEMORY:
+
+                method.local(ALOAD, MEMORY_LOCAL).push(value).invoke(INVOKEVIRTUAL, MEMORY, "get", "(I)I");
+
+                break;
+
+            case DecodedProgram.INDIRECT:
+
+                method.local(ALOAD, MEMORY_LOCAL);
+                register(instruction, value);
+                method.invoke(INVOKEVIRTUAL, MEMORY, "get", "(I)I");
+
+                break;
+
+            case DecodedProgram.STACK:
+
+                method.local(ALOAD, MEMORY_LOCAL).local(ILOAD, FIRST_REGISTER + CPU.SP).push(value).op(IADD).invoke(INVOKEVIRTUAL, MEMORY, "get", "(I)I");
+
+                break;
+
+            case DecodedProgram.POP:
+
+                method.local(ILOAD, FIRST_REGISTER + CPU.SP).push(1).op(IADD).push(Integer.MIN_VALUE).op(IXOR);
+                method.local(ALOAD, MEMORY_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "capasity", "()I").push(Integer.MIN_VALUE).op(IXOR);
+                faultIf(IF_ICMPGE, instruction, "Stack underflow.");
+                method.local(ALOAD, MEMORY_LOCAL).local(ILOAD, FIRST_REGISTER + CPU.SP).invoke(INVOKEVIRTUAL, MEMORY, "get", "(I)I");
+                method.local(ALOAD, MEMORY_LOCAL).local(ILOAD, FIRST_REGISTER + CPU.SP).push(0).invoke(INVOKEVIRTUAL, MEMORY, "set", "(II)V");
+                method.local(ILOAD, FIRST_REGISTER + CPU.SP).push(1).op(IADD).local(ISTORE, FIRST_REGISTER + CPU.SP);
+
+                break;
+
+            case DecodedProgram.PEEK:
+
+                method.local(ALOAD, MEMORY_LOCAL).local(ILOAD, FIRST_REGISTER + CPU.SP).invoke(INVOKEVIRTUAL, MEMORY, "get", "(I)I");
+
+                break;
+        }
+    }
+
+    /**
+     * Writes the value in RESULT_LOCAL to a located destination argument.
+     */
+    private void store(int instruction, int argument) {
+
+        int value = program.operandValue(instruction, argument);
+
+        switch (program.operandKind(instruction, argument)) {
+
+            case DecodedProgram.IMMEDIATE:
+
+                // HRT into an immediate writes the register with that index, as in the interpreter
+                if (value < 0 || value >= REGISTERS || value == CPU.PC) {
+
+                    fault(instruction, "Invalid argument: " + "'" + value + "'.");
+                }
+                else {
+
+                    method.local(ILOAD, RESULT_LOCAL).local(ISTORE, FIRST_REGISTER + value);
+                }
+
+                break;
+
+            case DecodedProgram.REGISTER:
+
+                if (value == CPU.PC) {
+
+                    method.local(ILOAD, RESULT_LOCAL);
+                    jump(instruction);
+                }
+                else {
+
+                    method.local(ILOAD, RESULT_LOCAL).local(ISTORE, FIRST_REGISTER + value);
+                }
+
+                break;
+
+            case DecodedProgram.MEMORY:
+
+                method.local(ALOAD, MEMORY_LOCAL).push(value).local(ILOAD, RESULT_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "set", "(II)V");
+
+                break;
+
+            case DecodedProgram.INDIRECT:
+            case DecodedProgram.STACK:
+            case DecodedProgram.PUSH:
+            case DecodedProgram.PEEK:
+
+                method.local(ALOAD, MEMORY_LOCAL).local(ILOAD, ADDRESS_LOCAL).local(ILOAD, RESULT_LOCAL).invoke(INVOKEVIRTUAL, MEMORY, "set", "(II)V");
+
+                break;
+        }
+    }
+
+    /**
+     * Jumps to the instruction on the stack. Only emitted for complete compilation.
+     */
+    private void jump(int instruction) {
+
+        Label valid = new Label();
+
+        method.op(DUP).local(ISTORE, B_LOCAL);
+        method.push(Integer.MIN_VALUE).op(IXOR).push(program.length ^ Integer.MIN_VALUE).branch(IF_ICMPLE, valid);
+        method.local(ALOAD, RUNTIME_LOCAL).push(instruction).local(ILOAD, B_LOCAL);
+        method.invoke(INVOKEVIRTUAL, RUNTIME, "invalidProgramCounter", "(II)L" + RUNTIME_EXCEPTION + ";");
+        method.op(ATHROW);
+
+        method.place(valid);
+        retire(instruction);
+        method.local(ILOAD, B_LOCAL).local(ISTORE, PC_LOCAL);
+        method.branch(GOTO, dispatch);
+    }
+
+    /**
+     * Pushes the value of an int local as an unsigned long.
+     */
+    private void unsigned(int local) {
+
+        method.local(ILOAD, local).op(I2L).pushLong(0xffffffffl).op(LAND);
+    }
+
+    /**
+     * Pushes the value of a register. PC is the instruction itself.
+     */
+    private void register(int instruction, int register) {
+
+        if (register == CPU.PC) {
+
+            method.push(instruction);
+        }
+        else {
+
+            method.local(ILOAD, FIRST_REGISTER + register);
+        }
+    }
+}
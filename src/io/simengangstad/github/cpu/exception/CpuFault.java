@@ -0,0 +1,97 @@
+package io.simengangstad.github.cpu.exception;
+
+/**
+ * Thrown when an instruction faults. The CPU stops at the faulting instruction and can still be
+ * inspected.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public class CpuFault extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The instruction that faulted.
+     */
+    private final int programCounter;
+
+    /**
+     * The instruction identifier of the instruction, or -1 if the fault isn't tied to one.
+     */
+    private final int opcode;
+
+    /**
+     * Why the instruction faulted.
+     */
+    private final String reason;
+
+    /**
+     * The registers when the instruction faulted, or null if they aren't known.
+     */
+    private final int[] registers;
+
+    /**
+     * Constructs a fault.
+     *
+     * @param programCounter The instruction that faulted.
+     * @param opcode The instruction identifier of the instruction, or -1 if the fault isn't tied to one.
+     * @param reason Why the instruction faulted.
+     * @param registers The registers when the instruction faulted, or null if they aren't known.
+     * @param cause The exception which caused the fault, or null.
+     */
+    public CpuFault(int programCounter, int opcode, String reason, int[] registers, Throwable cause) {
+
+        super("Instruction fault at " + programCounter + ": " + reason, cause);
+
+        this.programCounter = programCounter;
+        this.opcode = opcode;
+        this.reason = reason;
+        this.registers = registers == null ? null : registers.clone();
+    }
+
+    /**
+     * @return The instruction that faulted.
+     */
+    public int getProgramCounter() {
+
+        return programCounter;
+    }
+
+    /**
+     * @return The instruction identifier of the instruction, or -1 if the fault isn't tied to one.
+     */
+    public int getOpcode() {
+
+        return opcode;
+    }
+
+    /**
+     * @return Why the instruction faulted.
+     */
+    public String getReason() {
+
+        return reason;
+    }
+
+    /**
+     * @return The registers when the instruction faulted (A, B, C, X, Y, Z, I, J, PC, SP, PUSH|POP, PEEK, EX),
+     * or null if they aren't known.
+     */
+    public int[] getRegisters() {
+
+        return registers == null ? null : registers.clone();
+    }
+
+    /**
+     * @return The same fault with the registers when it occurred.
+     */
+    public CpuFault withRegisters(int[] registers) {
+
+        CpuFault fault = new CpuFault(programCounter, opcode, reason, registers, getCause());
+
+        fault.setStackTrace(getStackTrace());
+
+        return fault;
+    }
+}
@@ -2,6 +2,9 @@ package io.simengangstad.github.cpu.hardware;
 
 import io.simengangstad.github.cpu.AttachableHardware;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.Arrays;
 
@@ -69,6 +72,18 @@ public class Monitor extends AttachableHardware {
         window.repaint();
     }
 
+    @Override
+    public void save(DataOutput output) throws IOException {
+
+        output.writeInt(address);
+    }
+
+    @Override
+    public void restore(DataInput input) throws IOException {
+
+        address = input.readInt();
+    }
+
     @Override
     public void process(int[] arguments, int size) throws RuntimeException {
 
@@ -83,7 +98,7 @@ public class Monitor extends AttachableHardware {
 
                 address = arguments[1];
 
-                if (address + width * height > memory.capasity()) {
+                if (Integer.toUnsignedLong(address) + width * height > Integer.toUnsignedLong(memory.capasity())) {
 
                     throw new RuntimeException("Not enough allocated space at address " + address + " for " + (width * height) + " pixels.");
                 }
@@ -125,10 +140,7 @@ public class Monitor extends AttachableHardware {
                     throw new RuntimeException("Incorrect amount of arguments for clearing to black.");
                 }
 
-                for (int i = 0; i < width * height; i++) {
-
-                    memory.set(i, 0x0);
-                }
+                memory.fill(0, width * height, 0x0);
 
                 repaint();
 
@@ -0,0 +1,274 @@
+package io.simengangstad.github.cpu.hardware;
+
+import io.simengangstad.github.cpu.AttachableHardware;
+import io.simengangstad.github.cpu.InterruptController;
+import io.simengangstad.github.cpu.Memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer raising an interrupt line once after a delay, or periodically, see
+ * {@link InterruptController}. Together with HLT a program can wait for its next frame without
+ * executing instructions.
+ *
+ * An identifier is always the first argument. It's used for declaring which information is
+ * being dispatched. The rest of the arguments are the values. Times are in nanoseconds, given as
+ * the low word and optionally the high word.
+ *
+ * Processing:
+ *
+ * 0 l          - Sets the line (l) raised from the next start, 0 by default.
+ * 1 n (h)      - Raises the line once after n nanoseconds.
+ * 2 n (h)      - Raises the line every n nanoseconds.
+ * 3            - Stops the timer.
+ *
+ * Retrieving (HRT l b i, where i is the identifier):
+ *
+ * 0            - Returns the amount of times the timer expired since the last time this was
+ *                retrieved. More than 1 means the program missed an interrupt, as the line is
+ *                raised once while it's pending.
+ * 1            - Returns 1 if the timer is running, otherwise 0.
+ *
+ * Usage:
+ *
+ *      set *0x100 frame
+ *      ivt 0x100
+ *      ims 0x1
+ *      hdp 0x1 0x2 16666667    // 60 frames per second
+ *      @loop
+ *      hlt
+ *      set pc loop
+ *
+ * Every timer is run by one shared thread, which is idle between deadlines. How close to its
+ * deadline the line is raised depends on the host.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public class Timer extends AttachableHardware {
+
+    /**
+     * The modes of the timer.
+     */
+    private static final int
+
+            STOPPED         = 0x0,
+            ONCE            = 0x1,
+            PERIODIC        = 0x2;
+
+    /**
+     * The thread shared by every timer.
+     */
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+
+        Thread thread = new Thread(runnable, "cpu-timer");
+
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    static {
+
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * The line the timer raises.
+     */
+    private int line = 0;
+
+    /**
+     * The mode of the timer and the nanoseconds between expiries if periodic.
+     */
+    private int mode = STOPPED;
+    private long period = 0;
+
+    /**
+     * The next expiry, if the timer is running.
+     */
+    private ScheduledFuture<?> future;
+
+    /**
+     * The amount of times the timer expired since it was last retrieved.
+     */
+    private final AtomicInteger expiries = new AtomicInteger();
+
+    /**
+     * Stops the timer when it's detached, so that it doesn't keep the shared thread busy.
+     */
+    @Override
+    public void setMemory(Memory memory) {
+
+        if (memory == null) {
+
+            stop();
+        }
+
+        super.setMemory(memory);
+    }
+
+    @Override
+    public void save(DataOutput output) throws IOException {
+
+        output.writeInt(line);
+        output.writeInt(isRunning() ? mode : STOPPED);
+        output.writeLong(period);
+        output.writeLong(isRunning() ? Math.max(0, future.getDelay(TimeUnit.NANOSECONDS)) : 0);
+        output.writeInt(expiries.get());
+    }
+
+    @Override
+    public void restore(DataInput input) throws IOException {
+
+        stop();
+
+        line = input.readInt();
+
+        int mode = input.readInt();
+
+        period = input.readLong();
+
+        long delay = input.readLong();
+
+        expiries.set(input.readInt());
+
+        if (line < 0 || line >= InterruptController.LINES || mode < STOPPED || mode > PERIODIC || period < 0 || (mode == PERIODIC && period == 0) || delay < 0) {
+
+            throw new IOException("Invalid state of timer.");
+        }
+
+        if (mode != STOPPED) {
+
+            start(mode, delay, period);
+        }
+    }
+
+    @Override
+    public void process(int[] arguments, int size) throws RuntimeException {
+
+        switch (arguments[0]) {
+
+            case 0:
+
+                if (size != 2) {
+
+                    throw new RuntimeException("Incorrect amount of arguments for setting line.");
+                }
+
+                if (arguments[1] < 0 || arguments[1] >= InterruptController.LINES) {
+
+                    throw new RuntimeException("Invalid line: " + "'" + arguments[1] + "'.");
+                }
+
+                line = arguments[1];
+
+                break;
+
+            case 1:
+            case 2:
+
+                if (size != 2 && size != 3) {
+
+                    throw new RuntimeException("Incorrect amount of arguments for starting timer.");
+                }
+
+                long nanoseconds = Integer.toUnsignedLong(arguments[1]) | (size == 3 ? (long) arguments[2] << 32 : 0);
+
+                if (nanoseconds < 0 || (arguments[0] == 2 && nanoseconds == 0)) {
+
+                    throw new RuntimeException("Invalid time: " + "'" + Long.toUnsignedString(nanoseconds) + "'.");
+                }
+
+                stop();
+                start(arguments[0] == 1 ? ONCE : PERIODIC, nanoseconds, nanoseconds);
+
+                break;
+
+            case 3:
+
+                if (size != 1) {
+
+                    throw new RuntimeException("Incorrect amount of arguments for stopping timer.");
+                }
+
+                stop();
+
+                break;
+
+            default:
+
+                throw new RuntimeException("Unknown identifier.");
+        }
+    }
+
+    @Override
+    public int retrieve(int[] arguments, int size) throws RuntimeException {
+
+        // The first argument is the value of the destination
+        if (size != 2) {
+
+            throw new RuntimeException("Incorrect amount of arguments for retrieving from timer.");
+        }
+
+        switch (arguments[1]) {
+
+            case 0:
+
+                return expiries.getAndSet(0);
+
+            case 1:
+
+                return isRunning() ? 1 : 0;
+
+            default:
+
+                throw new RuntimeException("Unknown identifier.");
+        }
+    }
+
+    /**
+     * Schedules the expiries, where the line is captured so that the shared thread doesn't read it
+     * while the program sets it.
+     */
+    private void start(int mode, long delay, long period) {
+
+        int line = this.line;
+
+        Runnable expire = () -> {
+
+            expiries.incrementAndGet();
+
+            raise(line);
+        };
+
+        this.mode = mode;
+        this.period = mode == PERIODIC ? period : 0;
+
+        future = mode == PERIODIC ? EXECUTOR.scheduleAtFixedRate(expire, delay, period, TimeUnit.NANOSECONDS) : EXECUTOR.schedule(expire, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void stop() {
+
+        if (future != null) {
+
+            future.cancel(false);
+
+            future = null;
+        }
+
+        mode = STOPPED;
+        period = 0;
+    }
+
+    private boolean isRunning() {
+
+        return future != null && !future.isDone();
+    }
+}
@@ -0,0 +1,96 @@
+package io.simengangstad.github.test.cpu;
+
+import io.simengangstad.github.cpu.Assembler;
+import io.simengangstad.github.cpu.CPU;
+import io.simengangstad.github.cpu.Memory;
+import io.simengangstad.github.cpu.PagedMemory;
+import io.simengangstad.github.cpu.compiler.AheadOfTimeCompiler;
+import io.simengangstad.github.cpu.compiler.CompiledProgram;
+import io.simengangstad.github.cpu.compiler.JustInTimeCompiler;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Runs ENTER, LEAVE and RET on memories of 2^31 words and more, where the capasity is negative as
+ * an int, with every engine and ahead of time. The subroutine is called often enough for the JIT to
+ * compile it. Throws the fault of a run, or if a run leaves other registers than expected
+ * or a region fails to compile.
+ *
+ * @author simengangstad
+ * @since 18.10.26
+ */
+public class StackFrameTest {
+
+    private static final String PROGRAM =
+
+            "set i 0\n" +
+            "set x 0\n" +
+            "@loop\n" +
+            "set push 7\n" +
+            "jsr f\n" +
+            "add i 1\n" +
+            "ifn i 2000\n" +
+            "set pc loop\n" +
+            "set pc end\n" +
+            "@f\n" +
+            "enter 2\n" +
+            "set *sp+0 3\n" +
+            "add x *sp+0\n" +
+            "add x *sp+3\n" +
+            "leave 2\n" +
+            "ret 1\n" +
+            "@end\n";
+
+    public static void main(String[] args) throws Exception {
+
+        int[] program = new Assembler().assemble(PROGRAM, false);
+
+        Path jar = Files.createTempFile("stack-frame-test", ".jar");
+
+        try {
+
+            AheadOfTimeCompiler.compile(program, "programs.StackFrameTest", jar);
+
+            for (long words : new long[] {0x80000000L, PagedMemory.MAXIMUM_CAPASITY}) {
+
+                for (CPU.Engine engine : CPU.Engine.values()) {
+
+                    Memory memory = new PagedMemory(words);
+                    CPU cpu = new CPU(engine, memory);
+
+                    cpu.execute(program);
+
+                    check(engine.toString(), words, cpu.getRegister(3), cpu.getRegister(CPU.SP));
+                }
+
+                try (CompiledProgram compiled = AheadOfTimeCompiler.load(jar)) {
+
+                    int[] registers = compiled.run(new PagedMemory(words), new HashMap<>());
+
+                    check("AOT", words, registers[3], registers[CPU.SP]);
+                }
+            }
+        }
+        finally {
+
+            Files.delete(jar);
+        }
+
+        if (JustInTimeCompiler.failures() != 0) {
+
+            throw new AssertionError(JustInTimeCompiler.failures() + " regions failed to compile.");
+        }
+
+        System.out.println("Passed.");
+    }
+
+    private static void check(String engine, long words, int x, int sp) {
+
+        if (x != 2000 * 10 || sp != (int) (words - 1)) {
+
+            throw new AssertionError(engine + " with " + words + " words: X = " + x + ", SP = " + Integer.toUnsignedString(sp) + ".");
+        }
+    }
+}